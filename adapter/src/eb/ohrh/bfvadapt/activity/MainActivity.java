@@ -50,6 +50,21 @@ public class MainActivity extends Activity {
         SELECT_DEVICE, // 4
         REGISTER_CLIENT, // 5:
         UNREGISTER_CLIENT, // 6
+        SEND_COMMAND, // 7
+        CONFIGURE_VARIO, // 8
+        START_RECORDING, // 9
+        STOP_RECORDING, // 10
+        START_REPLAY, // 11
+        CONNECT_TCP, // 12
+        START_SIMULATOR, // 13
+        STOP_SIMULATOR, // 14
+        QUERY_LATENCY, // 15
+        CONFIGURE_DISPATCH, // 16
+        START_AUDIO, // 17
+        STOP_AUDIO, // 18
+        ADD_DEVICE, // 19
+        REMOVE_DEVICE, // 20
+        CONFIGURE_FUSION, // 21
         EXIT, START_SERVICE; // Extra values not supported by the service
     }
 
@@ -89,6 +104,11 @@ public class MainActivity extends Activity {
      * { {@link BluetoothConnectionManager.State}
      */
     static final int SEND_STATE_UPDATE = 3;
+    /**
+     * Message contains samples per second received (arg1) and delivered
+     * (arg2), and the NAMES and VALUES of the metrics.
+     */
+    static final int SEND_METRICS_UPDATE = 13;
 
     /** Messenger for sending requests to the service. */
     private Messenger mService = null;
@@ -127,12 +147,41 @@ public class MainActivity extends Activity {
                             + " unknown");
                 }
                 break;
+            case SEND_METRICS_UPDATE:
+                showMetrics(msg.arg1, msg.arg2, msg.getData());
+                break;
             default:
                 super.handleMessage(msg);
             }
         }
     }
 
+    private void showMetrics(int received, int delivered, Bundle b) {
+        String[] names = b.getStringArray("NAMES");
+        long[] values = b.getLongArray("VALUES");
+        if (names == null || values == null) {
+            return;
+        }
+        vh.metricsDisplay.setText(getString(R.string.metrics_text, received,
+                delivered, metric(names, values, "MALFORMED_LINES"),
+                metric(names, values, "UNKNOWN_LINES"),
+                metric(names, values, "LOST_SAMPLES"),
+                metric(names, values, "CONNECT_ATTEMPTS"),
+                metric(names, values, "CONNECTED_MILLIS") / 1000,
+                metric(names, values, "CLIENTS_EVICTED"),
+                metric(names, values, "SEND_FAILURES")));
+    }
+
+    /** The value of the metric with the given name, or 0 if not sent. */
+    private static long metric(String[] names, long[] values, String name) {
+        for (int i = 0; i < names.length && i < values.length; i++) {
+            if (names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return 0;
+    }
+
     /**
      * Class for interacting with the main interface of the service.
      */
@@ -222,6 +271,7 @@ public class MainActivity extends Activity {
         vh.pressureDisplay = (TextView) findViewById(R.id.pressureDisplay);
         vh.batteryDisplay = (TextView) findViewById(R.id.batteryDisplay);
         vh.pressureAndBatteryFrame = findViewById(R.id.pressureAndBattery);
+        vh.metricsDisplay = (TextView) findViewById(R.id.metricsDisplay);
     }
 
     @Override
@@ -461,6 +511,7 @@ public class MainActivity extends Activity {
         View pressureAndBatteryFrame;
         TextView pressureDisplay;
         TextView batteryDisplay;
+        TextView metricsDisplay;
 
         Button button1;
         Button button2;
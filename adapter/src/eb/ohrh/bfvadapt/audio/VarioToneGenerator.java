@@ -0,0 +1,139 @@
+package eb.ohrh.bfvadapt.audio;
+
+/**
+ * Synthesizes the vario tone as 16 bit mono PCM. Climbing at least the climb
+ * threshold gives beeps, which get higher and faster with the climb rate.
+ * Sinking at least the sink threshold gives a continuous low tone. In between
+ * the generator is silent.
+ *
+ * The climb rate is set by the thread dispatching the samples and read by
+ * render() once per block, so the latency of the tone is one block plus the
+ * buffer of the audio track. A beep starts at once, when the climb threshold
+ * is reached. render() does not allocate, and does not depend on Android, so
+ * it can also render into a plain buffer.
+ */
+public class VarioToneGenerator {
+
+    /** cm/s */
+    public static final int DEFAULT_CLIMB_THRESHOLD = 10;
+    /** cm/s */
+    public static final int DEFAULT_SINK_THRESHOLD = -200;
+    public static final int DEFAULT_VOLUME = 100;
+
+    /* Tone of the climb beeps */
+    private static final int CLIMB_FREQUENCY = 700; // Hz at 0 m/s
+    private static final int CLIMB_FREQUENCY_MAX = 2000; // Hz
+    private static final int CYCLE_MS = 600; // Beep and pause at 0 m/s
+    private static final int CYCLE_MS_MIN = 150;
+    /* Tone of the sink alarm */
+    private static final int SINK_FREQUENCY = 400; // Hz at the threshold
+    private static final int SINK_FREQUENCY_MIN = 200; // Hz
+
+    /** Fade in and out, to avoid clicks */
+    private static final int RAMP_MS = 2;
+    private static final int SINE_BITS = 10;
+    private static final int GAIN_ONE = 1 << 15;
+
+    private final int sampleRate;
+    private final short[] sine = new short[1 << SINE_BITS];
+    private final int rampStep;
+
+    private volatile int climb;
+    private volatile int climbThreshold = DEFAULT_CLIMB_THRESHOLD;
+    private volatile int sinkThreshold = DEFAULT_SINK_THRESHOLD;
+    private volatile int maxGain = GAIN_ONE;
+
+    /* State of the synthesis, only used by render() */
+    private int phase;
+    private int gain;
+    private boolean beeping;
+    private int cyclePosition;
+
+    public VarioToneGenerator(int sampleRate) {
+        this.sampleRate = sampleRate;
+        for (int i = 0; i < sine.length; i++) {
+            sine[i] = (short) Math.round(Short.MAX_VALUE
+                    * Math.sin(2 * Math.PI * i / sine.length));
+        }
+        rampStep = Math.max(1, GAIN_ONE / Math.max(1, sampleRate * RAMP_MS
+                / 1000));
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /** @param cmPerSecond vertical speed, positive when climbing */
+    public void setClimb(int cmPerSecond) {
+        climb = cmPerSecond;
+    }
+
+    /** Both in cm/s, the sink threshold is negative. */
+    public void setThresholds(int climbThreshold, int sinkThreshold) {
+        this.climbThreshold = climbThreshold;
+        this.sinkThreshold = sinkThreshold;
+    }
+
+    /** @param volume 0 to 100 */
+    public void setVolume(int volume) {
+        maxGain = Math.max(0, Math.min(volume, 100)) * GAIN_ONE / 100;
+    }
+
+    /** Fills the buffer with the tone for the current climb rate. */
+    public void render(short[] buffer, int offset, int length) {
+        int c = climb;
+        int frequency;
+        int cycle;
+        int on;
+        if (c >= climbThreshold) {
+            if (!beeping) {
+                // Start with the beep, not with the pause
+                beeping = true;
+                cyclePosition = 0;
+            }
+            frequency = Math.min(CLIMB_FREQUENCY + c, CLIMB_FREQUENCY_MAX);
+            cycle = Math.max(CYCLE_MS_MIN, CYCLE_MS - c * 4 / 5) * sampleRate
+                    / 1000;
+            on = cycle / 2;
+        } else {
+            beeping = false;
+            if (c <= sinkThreshold) {
+                frequency = Math.max(SINK_FREQUENCY + (c - sinkThreshold) / 2,
+                        SINK_FREQUENCY_MIN);
+                cycle = 0;
+                on = 0;
+            } else {
+                frequency = 0;
+                cycle = 0;
+                on = 0;
+            }
+        }
+        int increment = (int) (((long) frequency << 32) / sampleRate);
+        int max = maxGain;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int target;
+            if (frequency == 0) {
+                target = 0;
+            } else if (cycle == 0) {
+                target = max;
+            } else {
+                target = cyclePosition < on ? max : 0;
+                if (++cyclePosition >= cycle) {
+                    cyclePosition = 0;
+                }
+            }
+            if (gain < target) {
+                gain = Math.min(gain + rampStep, target);
+            } else if (gain > target) {
+                gain = Math.max(gain - rampStep, target);
+            }
+            if (gain == 0) {
+                buffer[i] = 0;
+                continue;
+            }
+            buffer[i] = (short) ((sine[phase >>> (32 - SINE_BITS)] * gain) >> 15);
+            phase += increment;
+        }
+    }
+}
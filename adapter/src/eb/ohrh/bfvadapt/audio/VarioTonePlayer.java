@@ -0,0 +1,79 @@
+package eb.ohrh.bfvadapt.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Plays the tone of a {@link VarioToneGenerator} with a streaming AudioTrack.
+ * The tone is rendered in small blocks into a buffer allocated once, and the
+ * track buffer is kept at the minimum, so a change of the climb rate is heard
+ * after a few milliseconds.
+ */
+public class VarioTonePlayer extends Thread {
+    private static final String TAG = VarioTonePlayer.class.getSimpleName();
+
+    /** Length of a rendered block */
+    private static final int BLOCK_MS = 5;
+
+    private final VarioToneGenerator generator;
+    private volatile boolean running = true;
+
+    public VarioTonePlayer() {
+        super("VarioTonePlayer");
+        int rate = AudioTrack
+                .getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        generator = new VarioToneGenerator(rate > 0 ? rate : 44100);
+        setDaemon(true);
+    }
+
+    public VarioToneGenerator getGenerator() {
+        return generator;
+    }
+
+    /** @param cmPerSecond vertical speed, positive when climbing */
+    public void setClimb(int cmPerSecond) {
+        generator.setClimb(cmPerSecond);
+    }
+
+    public void shutdown() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        int rate = generator.getSampleRate();
+        short[] block = new short[Math.max(1, rate * BLOCK_MS / 1000)];
+        int minBytes = AudioTrack.getMinBufferSize(rate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track;
+        try {
+            track = new AudioTrack(AudioManager.STREAM_MUSIC, rate,
+                    AudioFormat.CHANNEL_OUT_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT, Math.max(minBytes,
+                            2 * 2 * block.length), AudioTrack.MODE_STREAM);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Audio track could not be created", e);
+            return;
+        }
+        try {
+            track.play();
+            while (running) {
+                generator.render(block, 0, block.length);
+                // Blocks, while the track buffer is full
+                if (track.write(block, 0, block.length) < 0) {
+                    Log.e(TAG, "Audio track write failed");
+                    break;
+                }
+            }
+            track.stop();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Audio track failed", e);
+        } finally {
+            track.release();
+        }
+    }
+}
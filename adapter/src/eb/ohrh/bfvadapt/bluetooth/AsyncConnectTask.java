@@ -3,13 +3,12 @@ package eb.ohrh.bfvadapt.bluetooth;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.UUID;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.os.AsyncTask;
-import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
 /* Background task, which tries to establish the bluetooth connection.
@@ -19,14 +18,10 @@ import android.util.Log;
  */
 public class AsyncConnectTask extends
         AsyncTask<BluetoothDevice, String, String> {
-    private static final int CONNECT_NORMAL = 1;
-    private static final int CONNECT_REFLECT = 2;
-    private static int connectMethod = CONNECT_NORMAL;
-    private static final UUID MY_UUID = UUID
-            .fromString("00001101-0000-1000-8000-00805F9B34FB");
     private static final String TAG = AsyncConnectTask.class.getSimpleName();
     private BluetoothSocket socket;
     private CallbackHandler handler;
+    private final ConnectStrategy strategy;
     private boolean success = false;
 
     public interface CallbackHandler {
@@ -37,9 +32,10 @@ public class AsyncConnectTask extends
         void progress(String msg);
     }
 
-    public AsyncConnectTask(CallbackHandler handler) {
+    public AsyncConnectTask(CallbackHandler handler, ConnectStrategy strategy) {
         super();
         this.handler = handler;
+        this.strategy = strategy;
     }
 
     @Override
@@ -52,71 +48,73 @@ public class AsyncConnectTask extends
         // Log.i(BFVService.TAG, "bondstate " + device.getBondState());
 
         // try uuidLookup - sometimes it might help for api v14 or later.
-        uuidLookup(device);
-
-        /* Alternate the ConnectMethod on each try (test only ) */
-        // TODO: Store last successful connectMethod in preferences.
-        if (connectMethod == CONNECT_NORMAL) {
-            connectMethod = CONNECT_REFLECT;
-        } else {
-            connectMethod = CONNECT_NORMAL;
-        }
-        Log.i(TAG, "connectMethod: " + connectMethod);
-
-        if (connectMethod == CONNECT_NORMAL) { // this should be
-                                               // the default
-            try {
-                // Log.i(BFVService.TAG, "Try create secure");
-                socket = device.createRfcommSocketToServiceRecord(MY_UUID);
-                tryConnectToSocket(device, socket);
-                return "Connected via createRfcommSocketToServiceRecord";
-            } catch (IOException e) {
-                if (socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException e1) {
-                    }
-                }
-                // Try again below
+        ServiceRecordCache.getInstance().lookup(device);
+
+        /*
+         * Try the methods in the order learned by the strategy. If a method,
+         * which worked before, fails, the device is most probably switched off
+         * or out of range, and the other methods are not tried.
+         */
+        String address = device.getAddress();
+        String result = "No connect method";
+        for (ConnectStrategy.Method method : strategy.getOrder(address)) {
+            if (isCancelled()) {
+                return "Cancelled";
             }
+            Log.i(TAG, "connectMethod: " + method);
+            long start = SystemClock.elapsedRealtime();
             try {
-                // Log.i(BFVService.TAG, "Try create insecure");
-                socket = device
-                        .createInsecureRfcommSocketToServiceRecord(MY_UUID);
+                socket = createSocket(device, method);
                 tryConnectToSocket(device, socket);
-                return "Connected via createInsecureRfcommSocketToServiceRecord";
-
-            } catch (IOException e) {
-                if (socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException e1) {
-                    }
+                if (success) {
+                    strategy.record(address, method, true,
+                            SystemClock.elapsedRealtime() - start);
                 }
-                return "IOExeception: " + e.getLocalizedMessage();
-            }
-        }
-
-        if (connectMethod == CONNECT_REFLECT) {
-            try {
-                // Log.i(BFVService.TAG, "Try create from reflect");
-                Method m;
-                m = device.getClass().getMethod("createRfcommSocket",
-                        new Class[] { int.class });
-                socket = (BluetoothSocket) m.invoke(device, Integer.valueOf(1));
-                tryConnectToSocket(device, socket);
-                return "Connected via reflection";
+                return "Connected via " + method;
             } catch (IOException e) {
-                return "IOException: " + e.getLocalizedMessage();
+                result = "IOException: " + e.getLocalizedMessage();
             } catch (NoSuchMethodException e) {
-                return "NoSuchMethodException: " + e.getLocalizedMessage();
+                result = "NoSuchMethodException: " + e.getLocalizedMessage();
             } catch (IllegalAccessException e) {
-                return "IllegalAccessException: " + e.getLocalizedMessage();
+                result = "IllegalAccessException: " + e.getLocalizedMessage();
             } catch (InvocationTargetException e) {
-                return "InvocationTargetException: " + e.getLocalizedMessage();
+                result = "InvocationTargetException: "
+                        + e.getLocalizedMessage();
+            }
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e1) {
+                }
+                socket = null;
+            }
+            boolean knownGood = strategy.hasSucceeded(address, method);
+            strategy.record(address, method, false, 0);
+            if (knownGood) {
+                return result;
             }
         }
-        throw new IllegalStateException();
+        // No method ever worked, maybe the cached service record is wrong
+        ServiceRecordCache.getInstance().invalidate(address);
+        return result;
+    }
+
+    private BluetoothSocket createSocket(BluetoothDevice device,
+            ConnectStrategy.Method method) throws IOException,
+            NoSuchMethodException, IllegalAccessException,
+            InvocationTargetException {
+        switch (method) {
+        case SECURE:
+            return device.createRfcommSocketToServiceRecord(
+                    ServiceRecordCache.SPP_UUID);
+        case INSECURE:
+            return device.createInsecureRfcommSocketToServiceRecord(
+                    ServiceRecordCache.SPP_UUID);
+        default:
+            Method m = device.getClass().getMethod("createRfcommSocket",
+                    new Class[] { int.class });
+            return (BluetoothSocket) m.invoke(device, Integer.valueOf(1));
+        }
     }
 
     private void tryConnectToSocket(BluetoothDevice device,
@@ -142,45 +140,6 @@ public class AsyncConnectTask extends
         publishProgress("Connected successfully");
     }
 
-    private boolean uuidLookup(BluetoothDevice device) {
-
-        // Log.i(BFVService.TAG, "Finding UUIDs");
-        try {
-            /*
-             * Use reflection, as the methods are only available with API Level
-             * 15 (4.0.3)
-             */
-            Method m = device.getClass().getMethod("getUuids", null);
-            ParcelUuid[] uuids = (ParcelUuid[]) m.invoke(device, null);
-            if (uuids != null) {
-                Log.i(TAG, "Device supports following UUIDs:");
-                for (int i = 0; i < uuids.length; i++) {
-                    ParcelUuid uuid = uuids[i];
-                    Log.i(TAG, uuid.toString());
-                    if (uuid.getUuid().compareTo(MY_UUID) == 0) {
-                        // UUID is already cached
-                        return true;
-                    }
-
-                }
-            }
-            // Refresh the local cache with the UUIDs supported by the device
-            Method fetch = device.getClass().getMethod("fetchUuidsWithSdp",
-                    null);
-            fetch.invoke(device, null);
-            return false;
-
-        } catch (NoSuchMethodException e) {
-            Log.e(TAG, "", e);
-        } catch (IllegalAccessException e) {
-            Log.e(TAG, "", e);
-        } catch (InvocationTargetException e) {
-            Log.e(TAG, "", e);
-        }
-        Log.i(TAG, "Finding Uuids could not be invoked");
-        return false;
-    }
-
     @Override
     protected void onPreExecute() {
         super.onPreExecute();
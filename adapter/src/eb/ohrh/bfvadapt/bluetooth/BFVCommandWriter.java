@@ -0,0 +1,84 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Writes commands to the BFV. The commands are queued and written by this
+ * thread, such that neither the reading thread nor the caller is ever blocked
+ * by a slow bluetooth connection.
+ *
+ * The BFV accepts commands of the form "$KEY VALUE*", where KEY is one of the
+ * three letter keys sent with the BST sentence (see BFVSettings). E.g.
+ * "$BRM 2*" sends the pressure only every second measurement.
+ */
+public class BFVCommandWriter extends Thread {
+    private static final String TAG = BFVCommandWriter.class.getSimpleName();
+    private static final int QUEUE_SIZE = 16;
+
+    private final OutputStream out;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(
+            QUEUE_SIZE);
+
+    public BFVCommandWriter(OutputStream out) {
+        super(TAG);
+        this.out = out;
+    }
+
+    /**
+     * Queues the command for writing.
+     *
+     * @return false, if the queue is full.
+     */
+    public boolean enqueue(byte[] command) {
+        return queue.offer(command);
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                byte[] command = queue.take();
+                out.write(command);
+                out.flush();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+                break;
+            }
+        }
+    }
+
+    /** Creates the command to change a setting. */
+    public static byte[] settingCommand(String key, int value) {
+        if (!isValidKey(key)) {
+            throw new IllegalArgumentException("Illegal key " + key);
+        }
+        return ("$" + key + " " + value + "*").getBytes();
+    }
+
+    /** A raw command must be enclosed in $ and *. */
+    public static boolean isValidCommand(String command) {
+        return command != null && command.length() > 2
+                && command.charAt(0) == '$'
+                && command.charAt(command.length() - 1) == '*';
+    }
+
+    private static boolean isValidKey(String key) {
+        if (key == null || key.length() != 3) {
+            return false;
+        }
+        for (int i = 0; i < 3; i++) {
+            char c = key.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
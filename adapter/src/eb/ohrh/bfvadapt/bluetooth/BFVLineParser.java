@@ -0,0 +1,280 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the raw bytes sent by the BFV and decodes the lines without creating
+ * any objects per line.
+ *
+ * The bytes are read into a reusable buffer. Each complete line is copied into
+ * a second, fixed size line buffer, where the prefix and the payload are
+ * parsed in place. The decoded values are passed to the {@link LineHandler}.
+ *
+ * The sentence is looked up by its three letter prefix in a table, which maps
+ * every possible prefix to one of the UPDATE_* constants of ConnectedThread.
+ * The sentences sent by the BFV are:
+ *
+ * <pre>
+ * PRS hex      Pressure in Pascal
+ * TMP decimal  Temperature in 1/10 degrees Celsius
+ * BFV decimal  Hardware/firmware version
+ * BAT hex      Battery level in milliVolts
+ * BST keys     Names of the settings (3 letters each)
+ * SET values   Values of the settings (decimal) in the order of BST
+ * </pre>
+ *
+ * Lines longer than the line buffer and lines with a payload, which is not a
+ * valid number, are counted as malformed and otherwise ignored (like the
+ * NumberFormatException in the former String based parser).
+ */
+public class BFVLineParser {
+
+    /** Receiver of the decoded values. */
+    public interface LineHandler {
+        /** Pressure in Pascal */
+        void onPressure(int pressure);
+
+        /** Battery level in milliVolts */
+        void onBattery(int milliVolts);
+
+        /** Temperature in 1/10 degrees Celsius */
+        void onTemperature(int tenthDegrees);
+
+        void onVersion(int version);
+
+        /**
+         * Called when the values of the settings are received. The settings
+         * are only valid until the method returns.
+         */
+        void onSettings(BFVSettings settings);
+
+        /**
+         * Any line with an unknown prefix. The content is only valid until the
+         * method returns.
+         */
+        void onOtherLine(byte[] line, int length);
+    }
+
+    private static final int LETTERS = 26;
+    /** Sentence (UPDATE_*) for each prefix of three upper case letters. */
+    private static final byte[] SENTENCES = new byte[LETTERS * LETTERS
+            * LETTERS];
+
+    static {
+        register("PRS", ConnectedThread.UPDATE_PRS);
+        register("TMP", ConnectedThread.UPDATE_TMP);
+        register("BFV", ConnectedThread.UPDATE_VER);
+        register("BAT", ConnectedThread.UPDATE_BAT);
+        register("BST", ConnectedThread.UPDATE_KEYS);
+        register("SET", ConnectedThread.UPDATE_VALUES);
+    }
+
+    private static void register(String prefix, int sentence) {
+        SENTENCES[tableIndex(prefix.charAt(0), prefix.charAt(1),
+                prefix.charAt(2))] = (byte) sentence;
+    }
+
+    private static final int READ_BUFFER_SIZE = 256;
+    private static final int LINE_BUFFER_SIZE = 512;
+
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private final byte[] lineBuffer = new byte[LINE_BUFFER_SIZE];
+    private int lineLength;
+    private boolean lineOverflow;
+
+    private final LineHandler handler;
+    private final BFVSettings settings = new BFVSettings();
+
+    /* Result of parseNumber */
+    private int value;
+    private int position;
+
+    private long malformedLines;
+    private long arrivalNanos;
+
+    public BFVLineParser(LineHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Reads one chunk of bytes from the stream and handles all lines, which
+     * are completed by it. Blocks until at least one byte is available.
+     *
+     * @return false if the end of the stream was reached.
+     */
+    public boolean read(InputStream in) throws IOException {
+        int count = in.read(readBuffer, 0, readBuffer.length);
+        if (count < 0) {
+            return false;
+        }
+        arrivalNanos = System.nanoTime();
+        parse(readBuffer, 0, count);
+        return true;
+    }
+
+    /**
+     * Handles the given bytes. Incomplete lines are kept until the rest of the
+     * line is received with one of the next calls.
+     */
+    public void parse(byte[] bytes, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '\n' || b == '\r') {
+                if (lineOverflow) {
+                    malformedLines++;
+                } else if (lineLength > 0) {
+                    handleLine(lineBuffer, lineLength);
+                }
+                lineLength = 0;
+                lineOverflow = false;
+            } else if (lineLength < lineBuffer.length) {
+                lineBuffer[lineLength++] = b;
+            } else {
+                lineOverflow = true;
+            }
+        }
+    }
+
+    /** System.nanoTime() when the bytes of the current line were read. */
+    public long getArrivalNanos() {
+        return arrivalNanos;
+    }
+
+    /** Number of lines which could not be parsed since creation. */
+    public long getMalformedLines() {
+        return malformedLines;
+    }
+
+    private void handleLine(byte[] line, int length) {
+        switch (sentenceOf(line, length)) {
+        case ConnectedThread.UPDATE_PRS:
+            if (parseNumber(line, 3, length, 16)) {
+                handler.onPressure(value);
+            }
+            break;
+        case ConnectedThread.UPDATE_BAT:
+            if (parseNumber(line, 3, length, 16)) {
+                handler.onBattery(value);
+            }
+            break;
+        case ConnectedThread.UPDATE_TMP:
+            if (parseNumber(line, 3, length, 10)) {
+                handler.onTemperature(value);
+            }
+            break;
+        case ConnectedThread.UPDATE_VER:
+            if (parseNumber(line, 3, length, 10)) {
+                handler.onVersion(value);
+            }
+            break;
+        case ConnectedThread.UPDATE_KEYS:
+            parseKeys(line, length);
+            break;
+        case ConnectedThread.UPDATE_VALUES:
+            if (parseValues(line, length)) {
+                handler.onSettings(settings);
+            }
+            break;
+        default:
+            handler.onOtherLine(line, length);
+        }
+    }
+
+    /** @return one of the UPDATE_* constants of ConnectedThread */
+    private static int sentenceOf(byte[] line, int length) {
+        if (length < 3 || (length > 3 && line[3] != ' ')) {
+            return ConnectedThread.UPDATE_NONE;
+        }
+        int c0 = line[0] - 'A';
+        int c1 = line[1] - 'A';
+        int c2 = line[2] - 'A';
+        if ((c0 | c1 | c2) < 0 || c0 >= LETTERS || c1 >= LETTERS
+                || c2 >= LETTERS) {
+            return ConnectedThread.UPDATE_NONE;
+        }
+        return SENTENCES[(c0 * LETTERS + c1) * LETTERS + c2];
+    }
+
+    private void parseKeys(byte[] line, int length) {
+        settings.clearKeys();
+        int i = 4;
+        while (i + 3 <= length) {
+            settings.addKey(prefixCode(line[i], line[i + 1], line[i + 2]));
+            i += 4;
+        }
+    }
+
+    private boolean parseValues(byte[] line, int length) {
+        settings.clearValues();
+        position = 3;
+        // A trailing blank is no value
+        while (position < length - 1) {
+            if (!parseNumber(line, position, length, 10)) {
+                return false;
+            }
+            settings.addValue(value);
+        }
+        return true;
+    }
+
+    /**
+     * Parses the number, which follows the separating blank at position
+     * start. Parsing stops at the next blank or at the end of the line. The
+     * result is stored in value, and the position of the next blank in
+     * position.
+     *
+     * @return false, if the number is missing or malformed.
+     */
+    private boolean parseNumber(byte[] line, int start, int length, int radix) {
+        if (start >= length || line[start] != ' ') {
+            malformedLines++;
+            return false;
+        }
+        int i = start + 1;
+        boolean negative = false;
+        if (radix == 10 && i < length && line[i] == '-') {
+            negative = true;
+            i++;
+        }
+        long result = 0;
+        int digits = 0;
+        for (; i < length && line[i] != ' '; i++) {
+            int digit = digit(line[i], radix);
+            if (digit < 0 || digits == 10) {
+                malformedLines++;
+                return false;
+            }
+            result = result * radix + digit;
+            digits++;
+        }
+        if (digits == 0 || result > Integer.MAX_VALUE) {
+            malformedLines++;
+            return false;
+        }
+        value = negative ? (int) -result : (int) result;
+        position = i;
+        return true;
+    }
+
+    private static int digit(byte b, int radix) {
+        int digit = -1;
+        if (b >= '0' && b <= '9') {
+            digit = b - '0';
+        } else if (b >= 'A' && b <= 'F') {
+            digit = b - 'A' + 10;
+        } else if (b >= 'a' && b <= 'f') {
+            digit = b - 'a' + 10;
+        }
+        return digit < radix ? digit : -1;
+    }
+
+    private static int tableIndex(char c0, char c1, char c2) {
+        return ((c0 - 'A') * LETTERS + (c1 - 'A')) * LETTERS + (c2 - 'A');
+    }
+
+    static int prefixCode(int c0, int c1, int c2) {
+        return ((c0 & 0xff) << 16) | ((c1 & 0xff) << 8) | (c2 & 0xff);
+    }
+}
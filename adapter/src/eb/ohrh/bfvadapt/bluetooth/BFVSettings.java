@@ -0,0 +1,114 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+/**
+ * The hardware settings of the BFV. The keys are sent by the BFV with the BST
+ * sentence (e.g. "BST BFK BFL BFP ..."), the values with the SET sentence in
+ * the same order (e.g. "SET 0 20 ...").
+ *
+ * The instance used by the parser is filled in place. Listeners, which keep
+ * the settings, must keep a {@link #copy()}.
+ */
+public class BFVSettings {
+    /** Max. number of settings */
+    static final int CAPACITY = 64;
+
+    private final int[] keyCodes = new int[CAPACITY];
+    private final int[] values = new int[CAPACITY];
+    private int keyCount;
+    private int valueCount;
+
+    void clearKeys() {
+        keyCount = 0;
+    }
+
+    void addKey(int keyCode) {
+        if (keyCount < CAPACITY) {
+            keyCodes[keyCount++] = keyCode;
+        }
+    }
+
+    void clearValues() {
+        valueCount = 0;
+    }
+
+    void addValue(int value) {
+        if (valueCount < CAPACITY) {
+            values[valueCount++] = value;
+        }
+    }
+
+    /** Number of settings, for which key and value are known. */
+    public int size() {
+        return Math.min(keyCount, valueCount);
+    }
+
+    /** The three letter key of the setting at the given index. */
+    public String getKey(int index) {
+        int code = keyCodes[index];
+        return new String(new char[] { (char) ((code >> 16) & 0xff),
+                (char) ((code >> 8) & 0xff), (char) (code & 0xff) });
+    }
+
+    public int getValue(int index) {
+        return values[index];
+    }
+
+    /** @return the index of the setting with the given key, or -1. */
+    public int indexOf(String key) {
+        if (key.length() != 3) {
+            return -1;
+        }
+        int code = BFVLineParser.prefixCode(key.charAt(0), key.charAt(1),
+                key.charAt(2));
+        for (int i = 0; i < size(); i++) {
+            if (keyCodes[i] == code) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public BFVSettings copy() {
+        BFVSettings copy = new BFVSettings();
+        System.arraycopy(keyCodes, 0, copy.keyCodes, 0, keyCount);
+        System.arraycopy(values, 0, copy.values, 0, valueCount);
+        copy.keyCount = keyCount;
+        copy.valueCount = valueCount;
+        return copy;
+    }
+
+    /** Same keys and values. */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof BFVSettings)) {
+            return false;
+        }
+        BFVSettings other = (BFVSettings) o;
+        if (keyCount != other.keyCount || valueCount != other.valueCount) {
+            return false;
+        }
+        for (int i = 0; i < keyCount; i++) {
+            if (keyCodes[i] != other.keyCodes[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < valueCount; i++) {
+            if (values[i] != other.values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = keyCount * 31 + valueCount;
+        for (int i = 0; i < valueCount; i++) {
+            hash = hash * 31 + values[i];
+        }
+        return hash;
+    }
+}
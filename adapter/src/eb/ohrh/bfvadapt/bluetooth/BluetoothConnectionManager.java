@@ -2,23 +2,31 @@ package eb.ohrh.bfvadapt.bluetooth;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.AsyncTask;
 import android.os.Handler;
-import android.os.Parcelable;
 import android.util.Log;
 import eb.ohrh.bfvadapt.bluetooth.BluetoothDevicePicker.BluetoothDevicePickResultHandler;
 import eb.ohrh.bfvadapt.model.Model;
-
-/** Manages the state and state transitions of the bluetooth connection. */
+import eb.ohrh.bfvadapt.source.InputSource;
+import eb.ohrh.bfvadapt.source.TcpInputSource;
+
+/**
+ * Manages the state and state transitions of the bluetooth connections.
+ * 
+ * The primary device is the one selected with the device picker (or a TCP
+ * connection or replay instead). Its state is the state of the manager. Further
+ * devices (e.g. a backup vario) can be added with addDevice. Each device is a
+ * {@link DeviceConnection} with its own state, reconnects and reader, and its
+ * samples are published into the Model tagged with its id.
+ */
 public class BluetoothConnectionManager extends BroadcastReceiver implements
         BluetoothDevicePickResultHandler {
 
@@ -70,29 +78,37 @@ public class BluetoothConnectionManager extends BroadcastReceiver implements
         ENABLE_BLUETOOTH, // 3
         SELECT_DEVICE, // 4
         REGISTER_CLIENT, // 5:
-        UNREGISTER_CLIENT; // 6
+        UNREGISTER_CLIENT, // 6
+        SEND_COMMAND, // 7: Data contains KEY and VALUE or COMMAND
+        CONFIGURE_VARIO, // 8: Data contains QNH and/or filter variances
+        START_RECORDING, // 9
+        STOP_RECORDING, // 10
+        START_REPLAY, // 11: Data contains FILE (none: synthetic) and SPEED
+        CONNECT_TCP, // 12: Data contains HOST and PORT
+        START_SIMULATOR, // 13: Data contains PORT, RATE and DISCONNECT_AFTER
+        STOP_SIMULATOR, // 14
+        QUERY_LATENCY, // 15: Data may contain EXPORT and RESET
+        CONFIGURE_DISPATCH, // 16: Data contains OVERFLOW_POLICY
+        START_AUDIO, // 17: Data may contain the thresholds and VOLUME
+        STOP_AUDIO, // 18
+        ADD_DEVICE, // 19: Data contains ADDRESS
+        REMOVE_DEVICE, // 20: Data contains DEVICE_ID
+        CONFIGURE_FUSION; // 21: Data contains ENABLED, OUTLIER_THRESHOLD
     }
 
     private static final String TAG = BluetoothConnectionManager.class
             .getSimpleName();
 
-    /**
-     * Retry every 15 seconds to connect to a predefined device, which might be
-     * switched off.
-     */
-    private static final long RETRY_INTERVAL = 15000;
-
     private Context context;
-    private State currentState;
     private BluetoothDevicePicker mgr;
-    private BluetoothDevice device;
-    private BluetoothSocket socket;
-    private ConnectedThread connectedThread;
+    /** The device selected with the picker, first of the devices */
+    private DeviceConnection primary;
+    private final List<DeviceConnection> devices = new ArrayList<DeviceConnection>();
+    private int nextDeviceId = Model.PRIMARY_DEVICE + 1;
     private List<Listener> listeners = new ArrayList<Listener>();
 
-    private Handler retryHandler;
-
-    private AsyncTask<BluetoothDevice, String, String> asyncConnectionTask;
+    /** Learns the best way to connect to each device */
+    private ConnectStrategy connectStrategy;
 
     public BluetoothConnectionManager(Context context) {
         this.context = context;
@@ -102,39 +118,72 @@ public class BluetoothConnectionManager extends BroadcastReceiver implements
     private void onInit() {
         boolean hasNoAdapter = BluetoothAdapter.getDefaultAdapter() == null;
 
+        primary = new DeviceConnection(Model.PRIMARY_DEVICE, this,
+                Model.getInstance());
+        devices.add(primary);
         if (hasNoAdapter) {
-            setCurrentState(State.NOT_SUPPORTED);
+            primary.setState(State.NOT_SUPPORTED);
             return;
         }
-        retryHandler = new Handler();
+        connectStrategy = new ConnectStrategy(context);
         /*
          * Check, whether bluetooth is on or off, and whether a device is
          * already stored in the preferences.
          */
         mgr = new BluetoothDevicePicker(context);
-        device = mgr.getDeviceFromPrefs();
+        primary.setDevice(mgr.getDeviceFromPrefs());
+        for (BluetoothDevice device : mgr.getAdditionalDevicesFromPrefs()) {
+            newDevice(device);
+        }
         if (isBluetoothEnabled()) {
-            if (device != null) {
+            if (primary.getDevice() != null) {
                 // connect directly
-                doConnect();
+                primary.connect();
             } else {
                 // offer to select a device
                 doSelectDevice();
             }
+            connectAdditionalDevices();
         } else {
+            for (DeviceConnection connection : devices) {
+                if (connection != primary) {
+                    connection.setState(State.BLUETOOTH_OFF);
+                }
+            }
             doSwitchOnBluetooth();
         }
         // TODO: Isn't that too late ???
         IntentFilter filter = new IntentFilter(
                 BluetoothAdapter.ACTION_STATE_CHANGED);
         filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+        filter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
         /* Register for notifications about changes in the bluetooth state */
         context.registerReceiver(this, filter);
 
     }
 
+    private DeviceConnection newDevice(BluetoothDevice device) {
+        DeviceConnection connection = new DeviceConnection(nextDeviceId,
+                this, Model.getInstance().newDeviceInput(nextDeviceId));
+        nextDeviceId++;
+        connection.setDevice(device);
+        devices.add(connection);
+        return connection;
+    }
+
+    /** Connects the devices other than the primary, which are not yet. */
+    private void connectAdditionalDevices() {
+        for (DeviceConnection connection : devices) {
+            State state = connection.getState();
+            if (connection != primary
+                    && (state == null || state == State.BLUETOOTH_OFF)) {
+                connection.connect();
+            }
+        }
+    }
+
     private void doSwitchOnBluetooth() {
-        setCurrentState(State.BLUETOOTH_OFF);
+        primary.setState(State.BLUETOOTH_OFF);
         BluetoothAdapter bluetoothAdapter = BluetoothAdapter
                 .getDefaultAdapter();
         boolean isEnabled = bluetoothAdapter.isEnabled();
@@ -160,9 +209,9 @@ public class BluetoothConnectionManager extends BroadcastReceiver implements
     private void doSelectDevice() {
         // TODO: Remove the selected device from the preferences (?)
 
-        doDisconnect();
-        setCurrentState(State.SELECT_DEVICE);
-        device = null;
+        primary.disconnect();
+        primary.setState(State.SELECT_DEVICE);
+        primary.setDevice(null);
         /*
          * Make sure, the state is still SELECT_DEVICE, if the dialog is
          * cancelled
@@ -179,86 +228,85 @@ public class BluetoothConnectionManager extends BroadcastReceiver implements
             Log.e(TAG, "Error when unregistering receiver", e);
         }
         listeners.clear();
-        doDisconnect();
+        for (DeviceConnection connection : devices) {
+            connection.disconnect();
+        }
     }
 
-    private void doConnect() {
-        /**
-         * If current state is connection failed, then its rather a RECONNECTING
-         * than a CONNECTING.
-         */
-        if (currentState == State.CONNECTION_FAILED) {
-            setCurrentState(State.RECONNECTING);
-        } else {
-            setCurrentState(State.CONNECTING);
-        }
-        asyncConnectionTask = new AsyncConnectTask(new ConnectionListener())
-                .execute(device);
-        // currentState will be changed to CONNECT or CONNECT_FAILED by the
-        // Callback-Handler
+    /** State of the primary device. */
+    public State getState() {
+        return primary.getState();
     }
 
-    private void doDisconnect() {
-        setCurrentState(State.DISCONNECTED);
-        if (asyncConnectionTask != null) {
-            asyncConnectionTask.cancel(true);
-        }
-        if (socket != null) {
-            try {
-                socket.close();
-                socket = null;
-            } catch (IOException e) {
-            }
-        }
+    /** Name of the primary device. */
+    public String getDeviceName() {
+        return primary.getDeviceName();
     }
 
-    public State getState() {
-        return currentState;
+    /** All devices, the primary device first. */
+    public List<DeviceConnection> getDevices() {
+        return Collections.unmodifiableList(devices);
     }
 
-    public String getDeviceName() {
-        if (device != null) {
-            /**
-             * Seems that the device name is not available as long as Bluetooth
-             * is switched off.
-             */
-            String name = device.getName();
-            if (name != null) {
-                return name;
+    /**
+     * Adds a device, which is connected concurrently to the primary device,
+     * and is reconnected after the next start.
+     * 
+     * @return the id of the device, or -1 if the address is invalid.
+     */
+    public int addDevice(String address) {
+        if (mgr == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return -1;
+        }
+        for (DeviceConnection connection : devices) {
+            BluetoothDevice device = connection.getDevice();
+            if (device != null && device.getAddress().equals(address)) {
+                return connection.getId();
             }
-            return device.getAddress();
+        }
+        DeviceConnection connection = newDevice(BluetoothAdapter
+                .getDefaultAdapter().getRemoteDevice(address));
+        saveAdditionalDevices();
+        if (isBluetoothEnabled()) {
+            connection.connect();
         } else {
-            return null;
+            connection.setState(State.BLUETOOTH_OFF);
         }
-    }
-
-    private void setCurrentState(State state) {
-        currentState = state;
-        Log.v(TAG, "State set to " + state);
-        notifyObservers();
+        return connection.getId();
     }
 
     /**
-     * Start a Handler, which starts itself again, as long as the state is
-     * CONNECTION_FAILED.
+     * Disconnects and forgets a device added with addDevice.
+     * 
+     * @return false, if there is no such device.
      */
-    private void startRetryHandler() {
-        Runnable retryThread = new Runnable() {
-            @Override
-            public void run() {
-                Log.v(TAG, "Trying to reconnect");
-                if (currentState == State.CONNECTION_FAILED) {
-                    doConnect();
-                    /*
-                     * This will change the state to CONNECTING. If that fails
-                     * again, startRetryHandler will be called so there is no
-                     * need, to repeat the call inside the Runnable.
-                     */
+    public boolean removeDevice(int id) {
+        for (int i = 0; i < devices.size(); i++) {
+            DeviceConnection connection = devices.get(i);
+            if (connection != primary && connection.getId() == id) {
+                devices.remove(i);
+                connection.disconnect();
+                Model.getInstance().removeDeviceInput(id);
+                saveAdditionalDevices();
+                notifyObservers();
+                return true;
+            }
+        }
+        return false;
+    }
 
-                }
+    private void saveAdditionalDevices() {
+        List<String> addresses = new ArrayList<String>();
+        for (DeviceConnection connection : devices) {
+            if (connection != primary) {
+                addresses.add(connection.getDevice().getAddress());
             }
-        };
-        retryHandler.postDelayed(retryThread, RETRY_INTERVAL);
+        }
+        mgr.saveAdditionalDevices(addresses);
+    }
+
+    ConnectStrategy getConnectStrategy() {
+        return connectStrategy;
     }
 
     public void addListener(Listener listener) {
@@ -269,68 +317,113 @@ public class BluetoothConnectionManager extends BroadcastReceiver implements
         listeners.clear();
     }
 
-    private void notifyObservers() {
+    /** Called by the devices, when their state changed. */
+    void notifyObservers() {
         for (BluetoothConnectionManager.Listener listener : listeners) {
             listener.update(this);
         }
     }
 
-    private void startReadingPressure() {
-        // Start a Thread, which receives the pressure reading
-        // and sends the values to the model.
-        Model model = Model.getInstance();
-        if (connectedThread != null && connectedThread.isAlive()) {
-            connectedThread.interrupt();
+    /**
+     * Connects to a BFV (or BFVSimulator) via TCP instead of bluetooth. The
+     * socket is connected by a background thread, as network operations are
+     * not allowed on the main thread.
+     */
+    public void connectTcp(String host, int port) {
+        primary.disconnect();
+        primary.setState(State.CONNECTING);
+        openTcp(host, port);
+    }
+
+    /**
+     * Opens the TCP connection in the background, and starts reading it with
+     * onTcpConnected.
+     */
+    private void openTcp(final String host, final int port) {
+        final Handler handler = new Handler();
+        new Thread("TcpConnect") {
+            @Override
+            public void run() {
+                TcpInputSource tcp = new TcpInputSource(host, port);
+                try {
+                    tcp.connect();
+                } catch (IOException e) {
+                    Log.e(TAG, "TCP connection failed", e);
+                    try {
+                        tcp.close();
+                    } catch (IOException e1) {
+                    }
+                    tcp = null;
+                }
+                final TcpInputSource connected = tcp;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTcpConnected(connected, host, port);
+                    }
+                });
+            }
+        }.start();
+    }
+
+    /**
+     * @param tcp
+     *            null, if the connection failed.
+     */
+    private void onTcpConnected(TcpInputSource tcp, final String host,
+            final int port) {
+        State state = primary.getState();
+        if (state != State.CONNECTING && state != State.RECONNECTING) {
+            // Disconnected in the meantime
+            if (tcp != null) {
+                try {
+                    tcp.close();
+                } catch (IOException e) {
+                }
+            }
+        } else if (tcp != null) {
+            primary.startSource(tcp, new Runnable() {
+                @Override
+                public void run() {
+                    openTcp(host, port);
+                }
+            });
+        } else if (state == State.RECONNECTING) {
+            primary.sourceFailed("TCP connection failed");
+        } else {
+            primary.setState(State.DISCONNECTED);
         }
-        connectedThread = new ConnectedThread(socket, model);
-        connectedThread.start();
     }
 
-    private void setStatusMsg(String msg) {
+    /**
+     * Reads the given source (e.g. a replay) instead of the primary BFV. The
+     * current connection is closed. The replay is stopped by DISCONNECT.
+     */
+    public void startReplay(InputSource replay) {
+        primary.startSource(replay, null);
+    }
+
+    /**
+     * Sends a command to the primary BFV (see BFVCommandWriter).
+     * 
+     * @return false, if not connected or too many commands are pending.
+     */
+    public boolean sendCommand(byte[] command) {
+        return primary.sendCommand(command);
+    }
+
+    void setStatusMsg(String msg) {
         // TODO Auto-generated method stub
     }
 
     // Defined by BluetoothDevicePicker.BluetoothDevicePickResultHandler
     @Override
     public void onDevicePicked(BluetoothDevice device) {
-        this.device = device;
+        primary.setDevice(device);
         // try to connect (asynchronously)
         Log.v(TAG, "Device " + device.getName()
                 + " was selected. Trying to connect");
-        doConnect();
-    }
-
-    /** Listener for result of asynchronous connection task. */
-    class ConnectionListener implements AsyncConnectTask.CallbackHandler {
-
-        @Override
-        public void connected(String msg, BluetoothSocket socket) {
-            onConnectedSuccessfully(msg, socket);
-        }
-
-        @Override
-        public void connectionFailed(String msg) {
-            onConnectionFailed(msg);
-        }
-
-        @Override
-        public void progress(String msg) {
-            setStatusMsg(msg);
-        }
-
-    }
-
-    private void onConnectedSuccessfully(String msg, BluetoothSocket socket) {
-        setStatusMsg(msg);
-        this.socket = socket;
-        setCurrentState(State.CONNECTED);
-        startReadingPressure();
-    }
-
-    private void onConnectionFailed(String msg) {
-        setStatusMsg(msg);
-        setCurrentState(State.CONNECTION_FAILED);
-        startRetryHandler();
+        primary.connect();
     }
 
     public boolean isBluetoothEnabled() {
@@ -360,22 +453,16 @@ public class BluetoothConnectionManager extends BroadcastReceiver implements
                 break;
             }
         } else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)) {
-            /*
-             * Detected that device was disconnected. If the state is already
-             * DISCONNECTED, then the device was disconnected by intention, and
-             */
-            if (currentState == State.DISCONNECTED || device == null) {
-                return;
-            }
-            if (device == null) {
-                setCurrentState(State.SELECT_DEVICE);
+            BluetoothDevice disconnectedDevice = (BluetoothDevice) intent
+                    .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            for (DeviceConnection connection : devices) {
+                connection.onAclDisconnected(disconnectedDevice);
             }
-            Parcelable parcelable = intent
+        } else if (action.equals(BluetoothDevice.ACTION_ACL_CONNECTED)) {
+            BluetoothDevice connectedDevice = (BluetoothDevice) intent
                     .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            BluetoothDevice disconnectedDevice = (BluetoothDevice) parcelable;
-            if (disconnectedDevice.getAddress().equals(device.getAddress())) {
-                setCurrentState(State.CONNECTION_FAILED);
-                startRetryHandler();
+            for (DeviceConnection connection : devices) {
+                connection.onAclConnected(connectedDevice);
             }
         }
     }
@@ -386,37 +473,40 @@ public class BluetoothConnectionManager extends BroadcastReceiver implements
      * may need to be updated.
      */
     private void onBluetoothEnabled() {
-        if (currentState == State.BLUETOOTH_OFF) {
-            if (device != null) {
-                doConnect();
+        if (primary.getState() == State.BLUETOOTH_OFF) {
+            if (primary.getDevice() != null) {
+                primary.connect();
             } else {
                 doSelectDevice();
             }
         } else {
-            setCurrentState(currentState);
+            notifyObservers();
         }
+        connectAdditionalDevices();
     }
 
     /**
-     * Call disconnect, to cleanup the threads, and set the state to
-     * BLUETOOTH_OFF.
+     * Call disconnect, to cleanup the threads, and set the state of all
+     * devices to BLUETOOTH_OFF.
      */
     private void onBluetoothDisabled() {
-        doDisconnect();
-        setCurrentState(State.BLUETOOTH_OFF);
+        for (DeviceConnection connection : devices) {
+            connection.disconnect();
+            connection.setState(State.BLUETOOTH_OFF);
+        }
     }
 
     /** Request for actions from outside */
     public void performAction(Actions action) {
         switch (action) {
         case CONNECT:
-            doConnect();
+            primary.connect();
             break;
         case DISCONNECT:
-            doDisconnect();
+            primary.disconnect();
             break;
         case CANCEL_CONNECTING:
-            doDisconnect();
+            primary.disconnect();
             break;
         case SELECT_DEVICE:
             doSelectDevice();
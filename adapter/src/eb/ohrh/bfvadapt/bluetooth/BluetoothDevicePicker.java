@@ -1,5 +1,8 @@
 package eb.ohrh.bfvadapt.bluetooth;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
@@ -13,6 +16,8 @@ import android.util.Log;
 
 public class BluetoothDevicePicker implements BluetoothDevicePickerConstants {
     private static final String SELECTED_DEVICE = "eb.ohrh.bfvadapt.selected_device";
+    /** Comma separated addresses of the devices added to the selected one */
+    private static final String ADDITIONAL_DEVICES = "eb.ohrh.bfvadapt.additional_devices";
     public static final String TAG = BluetoothDevicePicker.class
             .getSimpleName();
     protected Context context;
@@ -115,4 +120,37 @@ public class BluetoothDevicePicker implements BluetoothDevicePickerConstants {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Read the devices stored with saveAdditionalDevices. Invalid addresses are
+     * skipped.
+     */
+    public List<BluetoothDevice> getAdditionalDevicesFromPrefs() {
+        SharedPreferences preferences = PreferenceManager
+                .getDefaultSharedPreferences(context);
+        String addresses = preferences.getString(ADDITIONAL_DEVICES, "");
+        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+        for (String address : addresses.split(",")) {
+            if (BluetoothAdapter.checkBluetoothAddress(address)) {
+                devices.add(BluetoothAdapter.getDefaultAdapter()
+                        .getRemoteDevice(address));
+            }
+        }
+        return devices;
+    }
+
+    public void saveAdditionalDevices(List<String> addresses) {
+        StringBuilder value = new StringBuilder();
+        for (String address : addresses) {
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(address);
+        }
+        SharedPreferences preferences = PreferenceManager
+                .getDefaultSharedPreferences(context);
+        Editor editor = preferences.edit();
+        editor.putString(ADDITIONAL_DEVICES, value.toString());
+        editor.commit();
+    }
+
+}
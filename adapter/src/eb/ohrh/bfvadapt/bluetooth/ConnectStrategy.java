@@ -0,0 +1,168 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Build;
+import android.preference.PreferenceManager;
+
+/**
+ * Learns, which way of creating the bluetooth socket works best for a device.
+ * Some phones only connect with one of the methods, and the time to connect
+ * differs as well.
+ *
+ * For each device and method, the successes, failures and the average time of
+ * a successful connect are kept in the preferences. The methods are tried in
+ * the order of the expected time to connect (average time divided by the rate
+ * of success). Methods, which were not yet tried, are expected to work,
+ * preferring SECURE over INSECURE over REFLECTION.
+ *
+ * May be used by any thread.
+ */
+public class ConnectStrategy {
+
+    public enum Method {
+        /** createRfcommSocketToServiceRecord */
+        SECURE,
+        /** createInsecureRfcommSocketToServiceRecord */
+        INSECURE,
+        /** createRfcommSocket(1) via reflection */
+        REFLECTION;
+    }
+
+    private static final String PREFIX = "eb.ohrh.bfvadapt.connect.";
+
+    /** Expected connect times (ms) of methods without successes. */
+    private static final long[] DEFAULT_LATENCY = { 1000, 1500, 2000 };
+    /** Weight of the newest connect time in the average */
+    private static final double LATENCY_WEIGHT = 0.3;
+    /** Older results are halved, to adapt to changes (e.g. OS updates) */
+    private static final int MAX_COUNT = 20;
+
+    /** Results of one method for one device. */
+    private static class Stats {
+        int successes;
+        int failures;
+        long latency;
+
+        /** Expected time (ms) until connected with this method. */
+        double expectedCost() {
+            double successRate = (successes + 1.0)
+                    / (successes + failures + 2.0);
+            return latency / successRate;
+        }
+    }
+
+    private final Context context;
+    /** Cached stats per device address */
+    private final Map<String, Stats[]> devices = new HashMap<String, Stats[]>();
+
+    public ConnectStrategy(Context context) {
+        this.context = context;
+    }
+
+    /** The methods in the order they should be tried. */
+    public synchronized Method[] getOrder(String address) {
+        final Stats[] stats = getStats(address);
+        Method[] order = Method.values();
+        Arrays.sort(order, new Comparator<Method>() {
+            @Override
+            public int compare(Method lhs, Method rhs) {
+                return Double.compare(stats[lhs.ordinal()].expectedCost(),
+                        stats[rhs.ordinal()].expectedCost());
+            }
+        });
+        return order;
+    }
+
+    /**
+     * @return true, if the method connected to the device recently (within
+     *         about the last MAX_COUNT attempts).
+     */
+    public synchronized boolean hasSucceeded(String address, Method method) {
+        return getStats(address)[method.ordinal()].successes > 0;
+    }
+
+    /**
+     * Records the result of an attempt and stores it in the preferences.
+     * 
+     * @param latency
+     *            ms until connected, ignored on failure.
+     */
+    public synchronized void record(String address, Method method,
+            boolean success, long latency) {
+        Stats s = getStats(address)[method.ordinal()];
+        if (success) {
+            if (s.successes == 0) {
+                s.latency = latency;
+            } else {
+                s.latency = Math.round(LATENCY_WEIGHT * latency
+                        + (1 - LATENCY_WEIGHT) * s.latency);
+            }
+            s.successes++;
+        } else {
+            s.failures++;
+        }
+        if (s.successes + s.failures > MAX_COUNT) {
+            // Rounded down, so a single old success is forgotten, too
+            s.successes /= 2;
+            s.failures /= 2;
+        }
+        SharedPreferences preferences = PreferenceManager
+                .getDefaultSharedPreferences(context);
+        Editor editor = preferences.edit();
+        editor.putString(key(address, method), s.successes + ","
+                + s.failures + "," + s.latency);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            // Written in the background, not on the connecting thread
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+
+    private Stats[] getStats(String address) {
+        Stats[] stats = devices.get(address);
+        if (stats == null) {
+            stats = load(address);
+            devices.put(address, stats);
+        }
+        return stats;
+    }
+
+    private Stats[] load(String address) {
+        SharedPreferences preferences = PreferenceManager
+                .getDefaultSharedPreferences(context);
+        Method[] methods = Method.values();
+        Stats[] stats = new Stats[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            Stats s = new Stats();
+            s.latency = DEFAULT_LATENCY[i];
+            String value = preferences.getString(key(address, methods[i]),
+                    null);
+            if (value != null) {
+                String[] parts = value.split(",");
+                try {
+                    s.successes = Integer.parseInt(parts[0]);
+                    s.failures = Integer.parseInt(parts[1]);
+                    s.latency = Long.parseLong(parts[2]);
+                } catch (RuntimeException e) {
+                    // Ignore broken values
+                    s = new Stats();
+                    s.latency = DEFAULT_LATENCY[i];
+                }
+            }
+            stats[i] = s;
+        }
+        return stats;
+    }
+
+    private static String key(String address, Method method) {
+        return PREFIX + address + "." + method.name();
+    }
+}
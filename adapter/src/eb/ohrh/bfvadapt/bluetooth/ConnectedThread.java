@@ -18,26 +18,28 @@
 
 package eb.ohrh.bfvadapt.bluetooth;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 
-import android.bluetooth.BluetoothSocket;
 //import android.os.Bundle;
 //import android.os.Message;
+import android.os.Process;
 import android.util.Log;
+import eb.ohrh.bfvadapt.metrics.Metrics;
+import eb.ohrh.bfvadapt.source.InputSource;
 
 /**
  * This thread receives the data of the BFV via an open socket. (Opened by
- * AsyncConnectTask and handled by BluetoothConnectionManager)
+ * AsyncConnectTask and handled by BluetoothConnectionManager). Instead of the
+ * socket, any other InputSource (e.g. a replay) may be read.
  * 
- * It currently only cares for Pressure and Battery values. To connect other
- * protocols, mainly this class and especially the method handleLine would need
- * to be adapted.
+ * The lines are decoded by BFVLineParser, and the values are passed on to the
+ * BFVVarioListener. To connect other protocols, mainly this class and
+ * BFVLineParser would need to be adapted.
  */
-public class ConnectedThread extends Thread {
+public class ConnectedThread extends Thread implements
+        BFVLineParser.LineHandler {
     public static final int UPDATE_NONE = 0;
     public static final int UPDATE_PRS = 1;
     public static final int UPDATE_TMP = 2;
@@ -47,8 +49,9 @@ public class ConnectedThread extends Thread {
     public static final int UPDATE_VALUES = 6;
     private static final String TAG = ConnectedThread.class.getSimpleName();
 
-    private final OutputStream mmOutStream;
-    private final BufferedReader mmReader;
+    private final InputStream mmInStream;
+    private final BFVCommandWriter writer;
+    private final BFVLineParser parser = new BFVLineParser(this);
 
     //
     //
@@ -62,128 +65,184 @@ public class ConnectedThread extends Thread {
     // private int pauses;
 
     private BFVVarioListener service;
-    private long currentTime;
+    /** Run by this thread, when the stream ended, may be null */
+    private final Runnable ended;
+    private final SampleClock clock = new SampleClock(20);
     private boolean batUpdateReceived;
+    private final Metrics metrics = Metrics.getInstance();
+    /* Values of the parser and the clock already added to the metrics */
+    private long reportedMalformed;
+    private long reportedLost;
 
     public interface BFVVarioListener {
 
         void connectionLost();
 
-        void updatePressure(int pressure, long currentTime);
+        /**
+         * @param arrivalNanos
+         *            System.nanoTime() when the bytes of the line were
+         *            received.
+         */
+        void updatePressure(int pressure, long currentTime, long arrivalNanos);
 
         void updateBattery(double d);
 
+        /** Temperature in degrees Celsius */
+        void updateTemperature(double celsius);
+
+        void updateVersion(int version);
+
+        /**
+         * The settings are only valid until the method returns. Use
+         * BFVSettings.copy() to keep them.
+         */
+        void updateSettings(BFVSettings settings);
+
     }
 
-    public ConnectedThread(BluetoothSocket socket, BFVVarioListener service) {
+    public ConnectedThread(InputSource source, BFVVarioListener service) {
+        this(source, service, null);
+    }
+
+    /**
+     * @param ended
+     *            Run by this thread after service.connectionLost(), when the
+     *            stream ended or failed.
+     */
+    public ConnectedThread(InputSource source, BFVVarioListener service,
+            Runnable ended) {
 
         this.service = service;
+        this.ended = ended;
 
         Log.d(TAG, "create ConnectedThread");
         InputStream tmpIn = null;
         OutputStream tmpOut = null;
-        BufferedReader tmpReader = null;
 
-        // Get the BluetoothSocket input and output streams
+        // Get the input and output streams
         try {
-            tmpIn = socket.getInputStream();
-            tmpOut = socket.getOutputStream();
-            tmpReader = new BufferedReader(new InputStreamReader(tmpIn), 256);
+            tmpIn = source.getInputStream();
+            tmpOut = source.getOutputStream();
         } catch (IOException e) {
             Log.e(TAG, "temp sockets not created", e);
         }
 
-        mmOutStream = tmpOut;
-        mmReader = tmpReader;
+        mmInStream = tmpIn;
+        writer = new BFVCommandWriter(tmpOut);
     }
 
     @Override
     public void run() {
         // Log.i(TAG, "BEGIN mConnectedThread");
+        // This thread only reads and parses. The listeners of the model are
+        // informed by the SampleDispatcher, so they can't delay the reading.
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
 
-        long sysTime = System.nanoTime();
-        int nanoPerMSec = 1000000;
-        currentTime = sysTime / nanoPerMSec;
-
-        String line = null;
-
+        writer.start();
         while (!isInterrupted()) {
             try {
-                // Read from the InputStream
-                line = mmReader.readLine();
-                this.handleLine(line);
-
+                // Read from the InputStream. The parser calls back
+                // onPressure, onBattery or onOtherLine for each line.
+                if (!parser.read(mmInStream)) {
+                    throw new IOException("End of stream");
+                }
+                long malformed = parser.getMalformedLines();
+                if (malformed != reportedMalformed) {
+                    metrics.add(Metrics.MALFORMED_LINES, malformed
+                            - reportedMalformed);
+                    reportedMalformed = malformed;
+                }
             } catch (IOException e) {
                 Log.d(TAG, "disconnected", e);
                 service.connectionLost();
+                if (ended != null) {
+                    ended.run();
+                }
                 break;
             }
         }
+        writer.interrupt();
     }
 
     /**
-     * Write to the connected OutStream. Not used here -> private
+     * Write to the connected OutStream. The bytes are written asynchronously
+     * by the BFVCommandWriter.
      * 
      * @param buffer
      *            The bytes to write
+     * @return false, if the bytes could not be queued.
      */
-    @SuppressWarnings("unused")
-    private void write(byte[] buffer) {
-        try {
-            mmOutStream.write(buffer);
+    public boolean write(byte[] buffer) {
+        return writer.enqueue(buffer);
+    }
 
-        } catch (IOException e) {
-            Log.e(TAG, "Exception during write", e);
+    @Override
+    public void onPressure(int pressure) {
+        if (service == null) {
+            return;
+        }
+        // Using the arrival time directly does not work, because BFV sends
+        // the pressure in equal time intervals, but the
+        // bluetooth stack destroys this intervals.
+        // The clock fits the nominal interval of 20 mSecs to the
+        // arrival times. A Battery-Update takes the time of one
+        // measurement.
+        int slots = 1;
+        if (batUpdateReceived) {
+            batUpdateReceived = false;
+            slots = 2;
+        }
+        long arrivalNanos = parser.getArrivalNanos();
+        long currentTime = clock.timestamp(arrivalNanos, slots);
+        metrics.increment(Metrics.SAMPLES_RECEIVED);
+        long lost = clock.getLostSamples();
+        if (lost != reportedLost) {
+            metrics.add(Metrics.LOST_SAMPLES, lost - reportedLost);
+            reportedLost = lost;
         }
+        service.updatePressure(pressure, currentTime, arrivalNanos);
     }
 
-    public void handleLine(String line) {
-
-        try {
-            if (line == null || service == null) {
-                return;
-            }
-            String[] split = line.split(" ");
-            String prefix = split[0];
-            if (prefix == null) {
-                return;
-            }
-
-            if (prefix.equals("PRS")) {
-
-                // Using system time does not work, because BFV sends
-                // the pressure in equal time intervals, but the
-                // buffered reader destroys this intervals.
-                // So we either have to compute an average time,
-                // or rely on the fact, that the BFV sends
-                // one measurement every 20 mSecs, and sometimes
-                // sends a Battery-Update in between.
-                // long currentTime = System.currentTimeMillis();
-                currentTime += 20;
-                if (batUpdateReceived) {
-                    batUpdateReceived = false;
-                    currentTime += 20;
-                }
-
-                int pressure = Integer.parseInt(split[1], 16);
-                service.updatePressure(pressure, currentTime);
+    @Override
+    public void onBattery(int milliVolts) {
+        if (service == null) {
+            return;
+        }
+        service.updateBattery(milliVolts / 1000.0);
+        batUpdateReceived = true;
+    }
 
-            } else if (prefix.equals("BAT")) {
+    @Override
+    public void onTemperature(int tenthDegrees) {
+        if (service == null) {
+            return;
+        }
+        service.updateTemperature(tenthDegrees / 10.0);
+    }
 
-                int bat = Integer.parseInt(split[1], 16); // bat is in mV
-                service.updateBattery(bat / 1000.0);
-                batUpdateReceived = true;
+    @Override
+    public void onVersion(int version) {
+        if (service == null) {
+            return;
+        }
+        service.updateVersion(version);
+    }
 
-            } else {
-                /**
-                 * Other prefixes sent by BFV: BFV, TMP, BST, and SET
-                 */
-                Log.v(TAG, "Ignored: " + line);
-            }
-        } catch (NumberFormatException e) {
+    @Override
+    public void onSettings(BFVSettings settings) {
+        if (service == null) {
             return;
         }
+        service.updateSettings(settings);
+    }
 
+    @Override
+    public void onOtherLine(byte[] line, int length) {
+        metrics.increment(Metrics.UNKNOWN_LINES);
+        // Only create the String, if it is logged
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "Ignored: " + new String(line, 0, length));
+        }
     }
 
 }
@@ -0,0 +1,340 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+import java.io.IOException;
+import java.util.Random;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import eb.ohrh.bfvadapt.bluetooth.BluetoothConnectionManager.State;
+import eb.ohrh.bfvadapt.metrics.Metrics;
+import eb.ohrh.bfvadapt.model.Model;
+import eb.ohrh.bfvadapt.source.BluetoothSocketSource;
+import eb.ohrh.bfvadapt.source.InputSource;
+
+/**
+ * State, connection and reader of one device managed by the
+ * {@link BluetoothConnectionManager}. Each device has its own ConnectedThread,
+ * which passes the values to the BFVVarioListener of the device. The device
+ * with the id Model.PRIMARY_DEVICE is the one selected with the device picker.
+ * 
+ * If the stream of the device ends unexpectedly, the state is set to
+ * CONNECTION_FAILED and the ReconnectScheduler retries. The retry reconnects
+ * the bluetooth device, or reopens the source given to startSource (e.g. the
+ * TCP connection to a simulator). A source, which can't be reopened (a replay),
+ * is DISCONNECTED at its end.
+ * 
+ * All methods must be called on the main thread.
+ */
+public class DeviceConnection {
+    private static final String TAG = DeviceConnection.class.getSimpleName();
+
+    private final int id;
+    private final BluetoothConnectionManager manager;
+    private final ConnectedThread.BFVVarioListener input;
+    private State currentState;
+    private BluetoothDevice device;
+    private InputSource source;
+    private ConnectedThread connectedThread;
+    /** Reopens the source given to startSource, null for bluetooth */
+    private Runnable reopen;
+    private final Handler handler = new Handler();
+
+    /**
+     * Retries to connect to a predefined device, which might be switched off
+     * or out of range.
+     */
+    private final ReconnectScheduler reconnectScheduler;
+
+    private AsyncTask<BluetoothDevice, String, String> asyncConnectionTask;
+
+    DeviceConnection(int id, BluetoothConnectionManager manager,
+            ConnectedThread.BFVVarioListener input) {
+        this.id = id;
+        this.manager = manager;
+        this.input = input;
+        reconnectScheduler = new ReconnectScheduler(
+                new ReconnectScheduler.HandlerTimer(handler),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.v(TAG, "Trying to reconnect device " + getId());
+                        if (getState() == State.CONNECTION_FAILED) {
+                            reconnect();
+                            /*
+                             * This will change the state to CONNECTING. If
+                             * that fails again, startRetryHandler will be
+                             * called so there is no need, to repeat the call
+                             * inside the Runnable.
+                             */
+                        }
+                    }
+                }, new Random());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public State getState() {
+        return currentState;
+    }
+
+    BluetoothDevice getDevice() {
+        return device;
+    }
+
+    void setDevice(BluetoothDevice device) {
+        this.device = device;
+    }
+
+    public String getDeviceName() {
+        if (source != null && !(source instanceof BluetoothSocketSource)) {
+            return source.getName();
+        }
+        if (device != null) {
+            /**
+             * Seems that the device name is not available as long as Bluetooth
+             * is switched off.
+             */
+            String name = device.getName();
+            if (name != null) {
+                return name;
+            }
+            return device.getAddress();
+        } else {
+            return null;
+        }
+    }
+
+    /** Connects the bluetooth device. */
+    void connect() {
+        reopen = null;
+        /**
+         * If current state is connection failed, then its rather a RECONNECTING
+         * than a CONNECTING.
+         */
+        if (currentState == State.CONNECTION_FAILED) {
+            setState(State.RECONNECTING);
+        } else {
+            setState(State.CONNECTING);
+        }
+        AsyncConnectTask task = new AsyncConnectTask(new ConnectionListener(),
+                manager.getConnectStrategy());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Since Honeycomb, execute() runs the tasks one after the other,
+            // so a device out of range would delay the connect of all others.
+            asyncConnectionTask = task.executeOnExecutor(
+                    AsyncTask.THREAD_POOL_EXECUTOR, device);
+        } else {
+            asyncConnectionTask = task.execute(device);
+        }
+        // currentState will be changed to CONNECT or CONNECT_FAILED by the
+        // Callback-Handler
+    }
+
+    void disconnect() {
+        reconnectScheduler.cancel();
+        setState(State.DISCONNECTED);
+        if (asyncConnectionTask != null) {
+            asyncConnectionTask.cancel(true);
+        }
+        closeSource();
+    }
+
+    /**
+     * Closes the source and stops its thread. A replay may be waiting for its
+     * next line, not blocked in a read, so the thread is also interrupted.
+     */
+    private void closeSource() {
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException e) {
+            }
+            source = null;
+        }
+        if (connectedThread != null) {
+            connectedThread.interrupt();
+        }
+    }
+
+    /**
+     * Reads the given source (e.g. a replay) instead of the device. The
+     * current connection is closed.
+     * 
+     * @param reopen
+     *            Opens the source again after it was lost, and calls
+     *            startSource or sourceFailed. null, if the source can't be
+     *            reopened.
+     */
+    void startSource(InputSource replay, Runnable reopen) {
+        disconnect();
+        reconnectScheduler.reset();
+        source = replay;
+        this.reopen = reopen;
+        setState(State.CONNECTED);
+        startReadingPressure();
+    }
+
+    /** The source could not be reopened. Retries later. */
+    void sourceFailed(String msg) {
+        onConnectionFailed(msg);
+    }
+
+    /** @return false, if not connected or too many commands are pending. */
+    boolean sendCommand(byte[] command) {
+        ConnectedThread thread = connectedThread;
+        if (thread == null || !thread.isAlive()) {
+            return false;
+        }
+        return thread.write(command);
+    }
+
+    void setState(State state) {
+        Metrics metrics = Metrics.getInstance();
+        if (state == State.CONNECTING || state == State.RECONNECTING) {
+            metrics.increment(Metrics.CONNECT_ATTEMPTS);
+        }
+        if (id == Model.PRIMARY_DEVICE
+                && (state == State.CONNECTED) != (currentState == State.CONNECTED)) {
+            metrics.setConnected(state == State.CONNECTED,
+                    SystemClock.elapsedRealtime());
+        }
+        currentState = state;
+        Log.v(TAG, "State of device " + id + " set to " + state);
+        manager.notifyObservers();
+    }
+
+    /**
+     * Schedule the next attempt to connect, as long as the state is
+     * CONNECTION_FAILED. The delay grows with each failure (see
+     * ReconnectScheduler).
+     */
+    private void startRetryHandler() {
+        long delay = reconnectScheduler.scheduleRetry();
+        if (delay >= 0) {
+            Log.v(TAG, "Retrying device " + id + " in " + delay + " ms");
+        }
+    }
+
+    private void startReadingPressure() {
+        // Start a Thread, which receives the pressure reading
+        // and sends the values to the model.
+        if (connectedThread != null && connectedThread.isAlive()) {
+            connectedThread.interrupt();
+        }
+        connectedThread = new ConnectedThread(source, input, new Runnable() {
+            @Override
+            public void run() {
+                // Run by the ConnectedThread itself
+                final Thread thread = Thread.currentThread();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStreamEnded(thread);
+                    }
+                });
+            }
+        });
+        connectedThread.start();
+    }
+
+    private void reconnect() {
+        if (reopen != null) {
+            setState(State.RECONNECTING);
+            reopen.run();
+        } else {
+            connect();
+        }
+    }
+
+    /**
+     * The stream read by the thread ended. Ignored, if the thread was already
+     * replaced, or the device disconnected by intention.
+     */
+    private void onStreamEnded(Thread thread) {
+        if (thread != connectedThread || currentState != State.CONNECTED) {
+            return;
+        }
+        boolean bluetooth = source instanceof BluetoothSocketSource;
+        closeSource();
+        if (bluetooth || reopen != null) {
+            setState(State.CONNECTION_FAILED);
+            startRetryHandler();
+        } else {
+            Log.v(TAG, "End of the source of device " + id);
+            setState(State.DISCONNECTED);
+        }
+    }
+
+    /** Listener for result of asynchronous connection task. */
+    class ConnectionListener implements AsyncConnectTask.CallbackHandler {
+
+        @Override
+        public void connected(String msg, BluetoothSocket socket) {
+            onConnectedSuccessfully(msg, socket);
+        }
+
+        @Override
+        public void connectionFailed(String msg) {
+            onConnectionFailed(msg);
+        }
+
+        @Override
+        public void progress(String msg) {
+            manager.setStatusMsg(msg);
+        }
+
+    }
+
+    private void onConnectedSuccessfully(String msg, BluetoothSocket socket) {
+        manager.setStatusMsg(msg);
+        this.source = new BluetoothSocketSource(socket);
+        reconnectScheduler.reset();
+        setState(State.CONNECTED);
+        startReadingPressure();
+    }
+
+    private void onConnectionFailed(String msg) {
+        manager.setStatusMsg(msg);
+        setState(State.CONNECTION_FAILED);
+        startRetryHandler();
+    }
+
+    private boolean isDevice(BluetoothDevice other) {
+        return other != null && device != null
+                && other.getAddress().equals(device.getAddress());
+    }
+
+    /**
+     * Detected that a device was disconnected. If the state is already
+     * DISCONNECTED, then the device was disconnected by intention.
+     */
+    void onAclDisconnected(BluetoothDevice disconnectedDevice) {
+        if (currentState == State.DISCONNECTED) {
+            return;
+        }
+        if (isDevice(disconnectedDevice)) {
+            closeSource();
+            setState(State.CONNECTION_FAILED);
+            startRetryHandler();
+        }
+    }
+
+    /**
+     * The device became reachable (e.g. switched on). Don't wait for the
+     * scheduled retry.
+     */
+    void onAclConnected(BluetoothDevice connectedDevice) {
+        if (currentState == State.CONNECTION_FAILED
+                && isDevice(connectedDevice)) {
+            Log.v(TAG, "Device " + id + " reachable, retrying now");
+            reconnectScheduler.retryNow();
+        }
+    }
+}
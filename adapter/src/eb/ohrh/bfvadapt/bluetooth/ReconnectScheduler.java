@@ -0,0 +1,129 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+import java.util.Random;
+
+import android.os.Handler;
+
+/**
+ * Schedules the attempts to reconnect after a failed or lost connection.
+ *
+ * The first retry follows quickly, so a short dropout in flight costs only a
+ * fraction of a second. After each further failure the delay is doubled up to
+ * MAX_DELAY, so a vario which was switched off does not keep the radio busy.
+ * Half of each delay is random (jitter), to avoid retrying in lock step with
+ * other devices. A successful connection resets the delay.
+ *
+ * Only one retry is pending at a time. The timing is done by a {@link Timer},
+ * so the scheduler can be driven by a virtual clock in tests.
+ */
+public class ReconnectScheduler {
+
+    /** Executes the retry after a delay. */
+    public interface Timer {
+        void schedule(Runnable task, long delay);
+
+        void cancel(Runnable task);
+    }
+
+    /** Timer of the thread, which created the handler. */
+    public static class HandlerTimer implements Timer {
+        private final Handler handler;
+
+        public HandlerTimer(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delay) {
+            handler.postDelayed(task, delay);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    }
+
+    public static final long FIRST_DELAY = 250; // ms
+    public static final long MAX_DELAY = 120000; // ms
+
+    private final Timer timer;
+    private final Runnable retry;
+    private final Random random;
+
+    private int failures;
+    private boolean pending;
+
+    private final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+            pending = false;
+            retry.run();
+        }
+    };
+
+    /**
+     * @param retry
+     *            The attempt to reconnect. If it fails, scheduleRetry must be
+     *            called again.
+     */
+    public ReconnectScheduler(Timer timer, Runnable retry, Random random) {
+        this.timer = timer;
+        this.retry = retry;
+        this.random = random;
+    }
+
+    /**
+     * Schedules the next retry after a failure. A retry already pending is
+     * kept.
+     * 
+     * @return the delay in ms, or -1 if a retry was already pending.
+     */
+    public long scheduleRetry() {
+        if (pending) {
+            return -1;
+        }
+        long delay = nextDelay();
+        failures++;
+        pending = true;
+        timer.schedule(task, delay);
+        return delay;
+    }
+
+    /** Retries immediately, e.g. when the device became reachable. */
+    public void retryNow() {
+        cancel();
+        pending = true;
+        timer.schedule(task, 0);
+    }
+
+    /** Cancels the pending retry. */
+    public void cancel() {
+        timer.cancel(task);
+        pending = false;
+    }
+
+    /** Called after a successful connection. */
+    public void reset() {
+        cancel();
+        failures = 0;
+    }
+
+    public boolean isPending() {
+        return pending;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    /** Exponential delay with equal jitter: between half and all of it. */
+    private long nextDelay() {
+        long delay = MAX_DELAY;
+        if (failures < 30) {
+            delay = Math.min(MAX_DELAY, FIRST_DELAY << failures);
+        }
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}
@@ -0,0 +1,206 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+/**
+ * Computes the timestamps of the BFV samples.
+ *
+ * The BFV sends one sample every 20 ms, but the bluetooth stack delivers the
+ * bytes in bursts, so the arrival time of a single line is not usable as
+ * timestamp. Simply adding 20 ms per sample however drifts away from the real
+ * time, as soon as the clock of the BFV differs from the nominal rate or lines
+ * are lost.
+ *
+ * Therefore a straight line (time = offset + period * sampleNo) is fitted to
+ * the arrival times by a least squares regression with exponential forgetting
+ * (about 30 seconds), and the timestamp is taken from this line. The estimated
+ * period is limited to +/- 5% of the nominal period. If the arrival times stay
+ * behind the line for more than 3 periods during a whole window of samples,
+ * the missing samples are counted as lost and skipped.
+ *
+ * The line goes through the mean of the arrival times, but the samples
+ * delivered at the end of a burst arrive earlier. So the timestamps are taken
+ * from the line moved down to the earliest arrivals of each window (the lead),
+ * else these samples would be clamped to their arrival time.
+ *
+ * The returned timestamps are in milliseconds on the System.nanoTime() time
+ * base, strictly increasing, and never later than the arrival time.
+ */
+public class SampleClock {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    /** Weight of older samples is reduced to 1/e after about 30 s at 50 Hz */
+    private static final double FORGETTING = 1.0 - 1.0 / 1500;
+    /** Max. deviation of the estimated period from the nominal one */
+    private static final double MAX_PERIOD_DEVIATION = 0.05;
+    /** Number of samples, before the estimated period is used */
+    private static final int MIN_SAMPLES = 50;
+    /** Number of samples, over which the lower envelope is checked for lost samples */
+    private static final int LOSS_WINDOW = 25;
+    private static final double LOSS_THRESHOLD_PERIODS = 3;
+    /** Weight of the newest window in the lead */
+    private static final double LEAD_SMOOTHING = 0.2;
+    /** Rebase the regression to keep the sums small */
+    private static final int REBASE_INTERVAL = 10000;
+
+    private final double nominalPeriod;
+
+    private boolean started;
+    private long startNanos;
+    /** Sample number and arrival time (ms since start) of the regression origin */
+    private long baseSample;
+    private double baseTime;
+    private long sampleNo;
+    private int samples;
+
+    /* Weighted sums of the regression. x = sampleNo - baseSample, y = ms - baseTime */
+    private double s;
+    private double sx;
+    private double sy;
+    private double sxx;
+    private double sxy;
+
+    private double period;
+    private double offset;
+    /** How much the line is later than the earliest arrivals (ms) */
+    private double lead;
+    private boolean leadKnown;
+
+    private int windowCount;
+    private double windowMinResidual;
+    private long lostSamples;
+    private long lastTimestamp;
+
+    /**
+     * @param nominalPeriod
+     *            Time between two samples in milliseconds
+     */
+    public SampleClock(double nominalPeriod) {
+        this.nominalPeriod = nominalPeriod;
+        reset();
+    }
+
+    /** Starts again with the next sample. */
+    public void reset() {
+        started = false;
+        samples = 0;
+        s = sx = sy = sxx = sxy = 0;
+        period = nominalPeriod;
+        offset = 0;
+        lead = 0;
+        leadKnown = false;
+        windowCount = 0;
+        windowMinResidual = Double.MAX_VALUE;
+    }
+
+    /**
+     * Computes the timestamp of the next sample.
+     *
+     * @param arrivalNanos
+     *            System.nanoTime() when the bytes of the sample were received
+     * @param slots
+     *            Number of sample periods since the previous sample. (Usually
+     *            1, but the BFV skips one sample when sending the battery)
+     * @return Timestamp in milliseconds
+     */
+    public long timestamp(long arrivalNanos, int slots) {
+        if (!started) {
+            started = true;
+            startNanos = arrivalNanos;
+            baseSample = 0;
+            baseTime = 0;
+            sampleNo = 0;
+            lastTimestamp = Math.round(arrivalNanos / NANOS_PER_MILLI);
+            addPoint(0, 0);
+            return lastTimestamp;
+        }
+        sampleNo += slots;
+        double arrival = (arrivalNanos - startNanos) / NANOS_PER_MILLI;
+        checkLoss(arrival - predict(sampleNo));
+        if (sampleNo - baseSample > REBASE_INTERVAL) {
+            rebase();
+        }
+        addPoint(sampleNo - baseSample, arrival - baseTime);
+
+        double time = Math.min(predict(sampleNo) - lead, arrival);
+        long timestamp = Math.round(startNanos / NANOS_PER_MILLI + time);
+        if (timestamp <= lastTimestamp) {
+            timestamp = lastTimestamp + 1;
+        }
+        lastTimestamp = timestamp;
+        return timestamp;
+    }
+
+    /** Estimated time between two samples in milliseconds. */
+    public double getPeriod() {
+        return period;
+    }
+
+    /** Number of samples detected as lost since creation. */
+    public long getLostSamples() {
+        return lostSamples;
+    }
+
+    /** Time of the given sample (ms since start) according to the fitted line. */
+    private double predict(long sample) {
+        return baseTime + offset + period * (sample - baseSample);
+    }
+
+    private void addPoint(double x, double y) {
+        s = s * FORGETTING + 1;
+        sx = sx * FORGETTING + x;
+        sy = sy * FORGETTING + y;
+        sxx = sxx * FORGETTING + x * x;
+        sxy = sxy * FORGETTING + x * y;
+        samples++;
+
+        double p = nominalPeriod;
+        double det = s * sxx - sx * sx;
+        if (samples >= MIN_SAMPLES && det > 0) {
+            p = (s * sxy - sx * sy) / det;
+            double min = nominalPeriod * (1 - MAX_PERIOD_DEVIATION);
+            double max = nominalPeriod * (1 + MAX_PERIOD_DEVIATION);
+            p = Math.max(min, Math.min(max, p));
+        }
+        period = p;
+        offset = (sy - period * sx) / s;
+    }
+
+    /**
+     * If the arrival times stay behind the fitted line during a whole window,
+     * samples were lost. Skip them. Else update the lead.
+     */
+    private void checkLoss(double residual) {
+        windowMinResidual = Math.min(windowMinResidual, residual);
+        windowCount++;
+        if (windowCount < LOSS_WINDOW) {
+            return;
+        }
+        if (windowMinResidual > LOSS_THRESHOLD_PERIODS * period) {
+            long lost = Math.round(windowMinResidual / period);
+            sampleNo += lost;
+            lostSamples += lost;
+        } else {
+            double windowLead = Math.max(0, -windowMinResidual);
+            if (leadKnown) {
+                lead += LEAD_SMOOTHING * (windowLead - lead);
+            } else {
+                lead = windowLead;
+                leadKnown = true;
+            }
+        }
+        windowCount = 0;
+        windowMinResidual = Double.MAX_VALUE;
+    }
+
+    /** Moves the origin of the regression to the current sample. */
+    private void rebase() {
+        double dx = sampleNo - baseSample;
+        double dy = offset + period * dx;
+        sxx = sxx - 2 * dx * sx + dx * dx * s;
+        sxy = sxy - dx * sy - dy * sx + dx * dy * s;
+        sx = sx - dx * s;
+        sy = sy - dy * s;
+        baseSample = sampleNo;
+        baseTime += dy;
+        offset -= dy - period * dx;
+    }
+}
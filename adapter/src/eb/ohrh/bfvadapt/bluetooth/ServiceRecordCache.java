@@ -0,0 +1,133 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Remembers per device, whether it offers the serial port profile (SPP), so
+ * the service discovery (SDP) is not repeated before every connect and retry.
+ *
+ * getUuids and fetchUuidsWithSdp are only available with API Level 15
+ * (4.0.3), so they are called by reflection. The methods are looked up only
+ * once. An SDP fetch is only started, if the cache has no valid entry for the
+ * device. A positive result is kept for POSITIVE_EXPIRY, a started fetch for
+ * FETCH_EXPIRY, before the device is asked again.
+ *
+ * May be used by any thread.
+ */
+public class ServiceRecordCache {
+    private static final String TAG = ServiceRecordCache.class
+            .getSimpleName();
+
+    public static final UUID SPP_UUID = UUID
+            .fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private static final long POSITIVE_EXPIRY = 60 * 60 * 1000; // ms
+    private static final long FETCH_EXPIRY = 60 * 1000; // ms
+
+    private static final Method GET_UUIDS = lookupMethod("getUuids");
+    private static final Method FETCH_UUIDS = lookupMethod("fetchUuidsWithSdp");
+
+    private static ServiceRecordCache instance = new ServiceRecordCache();
+
+    private static class Entry {
+        boolean supportsSpp;
+        long expires;
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private ServiceRecordCache() {
+    }
+
+    public static ServiceRecordCache getInstance() {
+        return instance;
+    }
+
+    private static Method lookupMethod(String name) {
+        try {
+            return BluetoothDevice.class.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            Log.i(TAG, name + " not available");
+            return null;
+        }
+    }
+
+    /**
+     * Checks, whether the device offers SPP. If this is not known, an SDP
+     * fetch is started (asynchronously), which may help the following connect
+     * (sometimes needed for API v14 or later).
+     * 
+     * @return true, if SPP is known to be supported.
+     */
+    public synchronized boolean lookup(BluetoothDevice device) {
+        String address = device.getAddress();
+        long now = SystemClock.elapsedRealtime();
+        Entry entry = entries.get(address);
+        if (entry != null && now < entry.expires) {
+            return entry.supportsSpp;
+        }
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(address, entry);
+        }
+        entry.supportsSpp = hasSpp(device);
+        if (entry.supportsSpp) {
+            entry.expires = now + POSITIVE_EXPIRY;
+        } else {
+            fetch(device);
+            entry.expires = now + FETCH_EXPIRY;
+        }
+        return entry.supportsSpp;
+    }
+
+    /** Forgets the device, so the next lookup asks it again. */
+    public synchronized void invalidate(String address) {
+        entries.remove(address);
+    }
+
+    /** Reads the UUIDs known by the system (no radio traffic). */
+    private static boolean hasSpp(BluetoothDevice device) {
+        if (GET_UUIDS == null) {
+            return false;
+        }
+        try {
+            ParcelUuid[] uuids = (ParcelUuid[]) GET_UUIDS.invoke(device);
+            if (uuids != null) {
+                for (ParcelUuid uuid : uuids) {
+                    if (SPP_UUID.equals(uuid.getUuid())) {
+                        return true;
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "", e);
+        } catch (InvocationTargetException e) {
+            Log.e(TAG, "", e);
+        }
+        return false;
+    }
+
+    /** Refreshes the UUIDs supported by the device via SDP. */
+    private static void fetch(BluetoothDevice device) {
+        if (FETCH_UUIDS == null) {
+            return;
+        }
+        Log.i(TAG, "Fetching UUIDs of " + device.getAddress());
+        try {
+            FETCH_UUIDS.invoke(device);
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "", e);
+        } catch (InvocationTargetException e) {
+            Log.e(TAG, "", e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package eb.ohrh.bfvadapt.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with fixed memory, in the style of
+ * HdrHistogram: The values are counted in buckets, which are linear (1 us
+ * wide) below 64 us, and above that each power of 2 is divided into 32
+ * buckets. So each value is kept with a precision of about 3 %, up to about
+ * 71 minutes (larger values are counted as the maximum).
+ *
+ * Recording a value neither allocates nor locks. Values may be recorded by
+ * any thread, and read at the same time by other threads. A reader may see a
+ * value in the count, but not yet in its bucket, which is irrelevant for the
+ * statistics.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_BITS = 32;
+    /** Largest value, which can be recorded (us). */
+    public static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = Math.max(0, msb - SUB_BITS);
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    /** Smallest value counted in the bucket. */
+    private static long lowestValue(int index) {
+        if (index < 2 * SUB_COUNT) {
+            return index;
+        }
+        int shift = (index >> SUB_BITS) - 1;
+        return (long) (index - (shift << SUB_BITS)) << shift;
+    }
+
+    /** Largest value counted in the bucket. */
+    private static long highestValue(int index) {
+        return lowestValue(index + 1) - 1;
+    }
+
+    /**
+     * @param micros
+     *            Negative values are recorded as 0.
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        } else if (micros > MAX_VALUE) {
+            micros = MAX_VALUE;
+        }
+        counts.incrementAndGet(index(micros));
+        sum.addAndGet(micros);
+        count.incrementAndGet();
+        long m = max.get();
+        while (micros > m && !max.compareAndSet(m, micros)) {
+            m = max.get();
+        }
+    }
+
+    /** Records the time between two System.nanoTime() values. */
+    public void recordNanos(long startNanos, long endNanos) {
+        record((endNanos - startNanos) / 1000);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile
+     *            0 to 100
+     * @return The value (us), which is not exceeded by the given percentage
+     *         of the recorded values, or 0 if nothing is recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(percentile, 100) / 100);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** Not atomic: Values recorded meanwhile may partially survive. */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Writes the distribution like HdrHistogram's percentile output: value,
+     * percentile, count up to this value.
+     */
+    public void write(PrintWriter out) {
+        out.println("#  Value(us)  Percentile  TotalCount");
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c == 0) {
+                continue;
+            }
+            seen += c;
+            out.println(String.format("%12d  %10.6f  %10d",
+                    Math.min(highestValue(i), max.get()), (double) seen / total,
+                    seen));
+        }
+        out.println(String.format("#[Mean = %.1f, Max = %d, Count = %d]",
+                getMean(), getMax(), getCount()));
+    }
+}
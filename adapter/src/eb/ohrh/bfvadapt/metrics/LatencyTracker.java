@@ -0,0 +1,73 @@
+package eb.ohrh.bfvadapt.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Latencies of the stages every pressure sample passes from the arrival of its
+ * bytes until it is delivered to the clients. Each stage is measured with
+ * System.nanoTime() and counted in a {@link LatencyHistogram}.
+ */
+public class LatencyTracker {
+
+    /** Arrival of the bytes until the line is parsed and timestamped */
+    public static final int STAGE_PARSE = 0;
+    /** Filter, recorder and publishing in the model */
+    public static final int STAGE_MODEL = 1;
+    /** Publishing until the sample is sent to all clients */
+    public static final int STAGE_DELIVERY = 2;
+    /** Arrival of the bytes until the sample is sent to all clients */
+    public static final int STAGE_TOTAL = 3;
+
+    public static final String[] STAGE_NAMES = { "PARSE", "MODEL",
+            "DELIVERY", "TOTAL" };
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_NAMES.length];
+
+    public LatencyTracker() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public void record(int stage, long startNanos, long endNanos) {
+        histograms[stage].recordNanos(startNanos, endNanos);
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return histograms[stage];
+    }
+
+    public int getStageCount() {
+        return histograms.length;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /** Writes the distributions of all stages to the file. */
+    public void export(File file) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            for (int i = 0; i < histograms.length; i++) {
+                out.println("# Stage " + STAGE_NAMES[i]);
+                histograms[i].write(out);
+                out.println();
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Error writing " + file);
+        }
+    }
+}
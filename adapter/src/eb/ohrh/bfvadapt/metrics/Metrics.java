@@ -0,0 +1,123 @@
+package eb.ohrh.bfvadapt.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the runtime metrics for field diagnosis. The counters only
+ * increase, and may be incremented by any thread without locking. The gauges
+ * hold the current value of something.
+ *
+ * The service publishes a snapshot of all values periodically to the clients
+ * (see BFVAdapterService.SEND_METRICS_UPDATE).
+ */
+public class Metrics {
+
+    /** Pressure samples received from the BFV */
+    public static final int SAMPLES_RECEIVED = 0;
+    /** Pressure samples sent to the clients */
+    public static final int SAMPLES_DELIVERED = 1;
+    /** Lines with a known prefix, but an invalid value */
+    public static final int MALFORMED_LINES = 2;
+    /** Lines with an unknown prefix */
+    public static final int UNKNOWN_LINES = 3;
+    /** Samples missing in the 20 ms cadence (see SampleClock) */
+    public static final int LOST_SAMPLES = 4;
+    /** Clients removed, because they were dead */
+    public static final int CLIENTS_EVICTED = 5;
+    /** Messages, which could not be sent to a client */
+    public static final int SEND_FAILURES = 6;
+    /** Attempts to connect, including the automatic retries */
+    public static final int CONNECT_ATTEMPTS = 7;
+    /** Successful connections */
+    public static final int CONNECTIONS = 8;
+    /** Time connected in ms, up to the last disconnect */
+    public static final int CONNECTED_MILLIS = 9;
+
+    /** Gauge: SystemClock.elapsedRealtime() of the connect, 0 if not */
+    public static final int GAUGE_CONNECTED_SINCE = 10;
+    /** Gauge: Number of registered clients */
+    public static final int GAUGE_CLIENTS = 11;
+    /** Samples overwritten, before they were dispatched to the clients */
+    public static final int DISPATCH_DROPPED = 12;
+    /** Samples skipped by the dispatch with OverflowPolicy.COALESCE */
+    public static final int DISPATCH_COALESCED = 13;
+    /** Samples and batches dropped, because the outbox of a client was full */
+    public static final int CLIENT_DROPPED = 14;
+    /** Samples replaced by a newer one in the outbox of a slow client */
+    public static final int CLIENT_COALESCED = 15;
+
+    public static final String[] NAMES = { "SAMPLES_RECEIVED",
+            "SAMPLES_DELIVERED", "MALFORMED_LINES", "UNKNOWN_LINES",
+            "LOST_SAMPLES", "CLIENTS_EVICTED", "SEND_FAILURES",
+            "CONNECT_ATTEMPTS", "CONNECTIONS", "CONNECTED_MILLIS",
+            "CONNECTED_SINCE", "CLIENTS", "DISPATCH_DROPPED",
+            "DISPATCH_COALESCED", "CLIENT_DROPPED", "CLIENT_COALESCED" };
+
+    private static Metrics instance = new Metrics();
+
+    private final AtomicLongArray values = new AtomicLongArray(NAMES.length);
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    public void increment(int counter) {
+        values.incrementAndGet(counter);
+    }
+
+    public void add(int counter, long delta) {
+        values.addAndGet(counter, delta);
+    }
+
+    public void set(int gauge, long value) {
+        values.set(gauge, value);
+    }
+
+    public long get(int metric) {
+        return values.get(metric);
+    }
+
+    public int size() {
+        return NAMES.length;
+    }
+
+    /**
+     * Called on connect and disconnect to account the time connected.
+     * 
+     * @param now
+     *            SystemClock.elapsedRealtime()
+     */
+    public void setConnected(boolean connected, long now) {
+        long since = values.getAndSet(GAUGE_CONNECTED_SINCE, connected ? now
+                : 0);
+        if (since != 0) {
+            add(CONNECTED_MILLIS, now - since);
+        }
+        if (connected) {
+            increment(CONNECTIONS);
+        }
+    }
+
+    /**
+     * Time connected in ms, including the current connection.
+     * 
+     * @param now
+     *            SystemClock.elapsedRealtime()
+     */
+    public long getConnectedMillis(long now) {
+        long since = values.get(GAUGE_CONNECTED_SINCE);
+        long millis = values.get(CONNECTED_MILLIS);
+        return since == 0 ? millis : millis + now - since;
+    }
+
+    /** Copies all values into the array (of length size()). */
+    public void snapshot(long[] out, long now) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = values.get(i);
+        }
+        out[CONNECTED_MILLIS] = getConnectedMillis(now);
+    }
+}
@@ -0,0 +1,68 @@
+package eb.ohrh.bfvadapt.model;
+
+import eb.ohrh.bfvadapt.bluetooth.BFVSettings;
+import eb.ohrh.bfvadapt.bluetooth.ConnectedThread;
+import eb.ohrh.bfvadapt.metrics.LatencyTracker;
+
+/**
+ * Receives the values of an additional device (e.g. a backup vario). Its
+ * pressure samples get altitude, vertical speed and acceleration from an own
+ * {@link VarioFilter}, and are published tagged with the device id into the
+ * samples of the {@link Model}. The other values of the device are not used.
+ */
+class DeviceInput implements ConnectedThread.BFVVarioListener {
+
+    private final Model model;
+    private final int device;
+    private final VarioFilter varioFilter = new VarioFilter();
+
+    DeviceInput(Model model, int device) {
+        this.model = model;
+        this.device = device;
+    }
+
+    int getDevice() {
+        return device;
+    }
+
+    VarioFilter getVarioFilter() {
+        return varioFilter;
+    }
+
+    @Override
+    public void connectionLost() {
+        varioFilter.reset();
+    }
+
+    @Override
+    public void updatePressure(int pressure, long currentTime,
+            long arrivalNanos) {
+        long start = System.nanoTime();
+        LatencyTracker latency = model.getLatencyTracker();
+        latency.record(LatencyTracker.STAGE_PARSE, arrivalNanos, start);
+        varioFilter.update(pressure, currentTime);
+        int altitude = (int) Math.round(varioFilter.getAltitude() * 100);
+        int vario = (int) Math.round(varioFilter.getVario() * 100);
+        int acceleration = (int) Math.round(varioFilter.getAcceleration() * 100);
+        model.publish(device, pressure, currentTime, altitude, vario,
+                acceleration, arrivalNanos);
+        latency.record(LatencyTracker.STAGE_MODEL, start, System.nanoTime());
+        model.notifyListeners();
+    }
+
+    @Override
+    public void updateBattery(double d) {
+    }
+
+    @Override
+    public void updateTemperature(double celsius) {
+    }
+
+    @Override
+    public void updateVersion(int version) {
+    }
+
+    @Override
+    public void updateSettings(BFVSettings settings) {
+    }
+}
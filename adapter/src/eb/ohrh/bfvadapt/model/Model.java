@@ -1,15 +1,65 @@
 package eb.ohrh.bfvadapt.model;
 
-import java.util.Observable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import eb.ohrh.bfvadapt.bluetooth.BFVSettings;
 import eb.ohrh.bfvadapt.bluetooth.ConnectedThread;
+import eb.ohrh.bfvadapt.metrics.LatencyTracker;
+import eb.ohrh.bfvadapt.recorder.FlightRecorder;
 
-public class Model extends Observable implements
-        ConnectedThread.BFVVarioListener {
+/**
+ * Receives the values from the BFV. Altitude, vertical speed and acceleration
+ * are computed by the {@link VarioFilter}, and stored together with the pressure samples in
+ * a {@link SampleRingBuffer}, from where each listener reads them with its own
+ * cursor. If a {@link FlightRecorder} is attached, all received values are
+ * recorded. The latencies of the processing stages are counted by the
+ * {@link LatencyTracker}.
+ *
+ * The listeners are informed by the {@link SampleDispatcher} thread, not by the
+ * thread receiving the BFV data. The dispatcher runs as long as there are
+ * listeners.
+ *
+ * The Model itself receives the values of the PRIMARY_DEVICE. The pressure of
+ * additional devices is received by their {@link #newDeviceInput(int)}, and
+ * published into the same samples, tagged with the device id. With fusion
+ * enabled, the pressure of all devices is also fused by the
+ * {@link PressureFusion} and published as FUSED_DEVICE. The configuration of
+ * the vario (e.g. setQnh) applies to the filters of all devices.
+ */
+public class Model implements ConnectedThread.BFVVarioListener {
+
+    /** Id of the device, whose values are received by the Model itself. */
+    public static final int PRIMARY_DEVICE = 0;
+    /** Id of the fused pressure of all devices */
+    public static final int FUSED_DEVICE = -1;
+
+    /** About 5 seconds of samples at 50 Hz */
+    private static final int SAMPLE_CAPACITY = 256;
 
     private static Model instance = new Model();
-    private double battery; // Volts
-    private long[] pressureAndTime = new long[2];
+    private volatile double battery; // Volts
+    private volatile double temperature = Double.NaN; // Celsius
+    private volatile int version;
+    private volatile BFVSettings settings;
+    private final SampleRingBuffer samples = new SampleRingBuffer(
+            SAMPLE_CAPACITY);
+    private volatile FlightRecorder recorder;
+    /** Time of the last pressure sample, used for the other values */
+    private long lastTime;
+    private final VarioFilter varioFilter = new VarioFilter();
+    private final LatencyTracker latency = new LatencyTracker();
+    private final List<ModelListener> listeners = new CopyOnWriteArrayList<ModelListener>();
+    private volatile SampleDispatcher dispatcher;
+    private final PressureFusion fusion = new PressureFusion();
+    /** Altitude, vertical speed and acceleration of the fused pressure */
+    private final VarioFilter fusedFilter = new VarioFilter();
+    private volatile boolean fusionEnabled;
+    private final List<DeviceInput> deviceInputs = new CopyOnWriteArrayList<DeviceInput>();
+    /* Configuration of all filters */
+    private volatile double qnh = VarioFilter.STANDARD_QNH;
+    private volatile double measurementVariance = VarioFilter.DEFAULT_MEASUREMENT_VARIANCE;
+    private volatile double processVariance = VarioFilter.DEFAULT_PROCESS_VARIANCE;
 
     private Model() {
     };
@@ -20,27 +70,232 @@ public class Model extends Observable implements
 
     @Override
     public void connectionLost() {
+        varioFilter.reset();
+        FlightRecorder rec = recorder;
+        if (rec != null) {
+            rec.endSession();
+        }
     }
 
     @Override
-    public void updatePressure(int pressure, long currentTime) {
-        pressureAndTime[0] = pressure;
-        pressureAndTime[1] = currentTime;
-        this.setChanged();
-        this.notifyObservers();
+    public void updatePressure(int pressure, long currentTime,
+            long arrivalNanos) {
+        long start = System.nanoTime();
+        latency.record(LatencyTracker.STAGE_PARSE, arrivalNanos, start);
+        lastTime = currentTime;
+        FlightRecorder rec = recorder;
+        if (rec != null) {
+            rec.recordPressure(pressure, currentTime);
+        }
+        varioFilter.update(pressure, currentTime);
+        int altitude = (int) Math.round(varioFilter.getAltitude() * 100);
+        int vario = (int) Math.round(varioFilter.getVario() * 100);
+        int acceleration = (int) Math.round(varioFilter.getAcceleration() * 100);
+        publish(PRIMARY_DEVICE, pressure, currentTime, altitude, vario,
+                acceleration, arrivalNanos);
+        latency.record(LatencyTracker.STAGE_MODEL, start, System.nanoTime());
+        notifyListeners();
+    }
+
+    /** Publishes a sample. The listeners must be notified afterwards. */
+    void publish(int device, int pressure, long time, int altitude,
+            int vario, int acceleration, long arrivalNanos) {
+        samples.publish(device, pressure, time, altitude, vario, acceleration,
+                arrivalNanos);
+        if (fusionEnabled) {
+            fuse(device, pressure, time, arrivalNanos);
+        }
+    }
+
+    /**
+     * Offers the sample to the fusion, and publishes the fused samples, which
+     * are due. Called by the threads of all devices.
+     */
+    private void fuse(int device, int pressure, long time, long arrivalNanos) {
+        synchronized (fusion) {
+            fusion.offer(device, pressure, time);
+            while (fusion.next()) {
+                double fused = fusion.getPressure();
+                long fusedTime = fusion.getTime();
+                fusedFilter.update(fused, fusedTime);
+                samples.publish(FUSED_DEVICE, (int) Math.round(fused),
+                        fusedTime,
+                        (int) Math.round(fusedFilter.getAltitude() * 100),
+                        (int) Math.round(fusedFilter.getVario() * 100),
+                        (int) Math.round(fusedFilter.getAcceleration() * 100),
+                        arrivalNanos);
+            }
+        }
+    }
+
+    /**
+     * Starts or stops the fusion of the pressure of all devices. The fusion
+     * starts anew each time it is enabled.
+     */
+    public void setFusionEnabled(boolean enabled) {
+        if (enabled && !fusionEnabled) {
+            synchronized (fusion) {
+                fusion.reset();
+                fusedFilter.reset();
+            }
+        }
+        fusionEnabled = enabled;
+    }
+
+    public boolean isFusionEnabled() {
+        return fusionEnabled;
+    }
+
+    /**
+     * The fusion of the pressure of all devices. Synchronize on it, while
+     * reading the state of the sources.
+     */
+    public PressureFusion getFusion() {
+        return fusion;
+    }
+
+    /**
+     * Receiver of the values of an additional device, read by its own
+     * ConnectedThread.
+     * 
+     * @param device
+     *            Id of the device, other than PRIMARY_DEVICE.
+     */
+    public ConnectedThread.BFVVarioListener newDeviceInput(int device) {
+        DeviceInput input = new DeviceInput(this, device);
+        configure(input.getVarioFilter());
+        deviceInputs.add(input);
+        return input;
+    }
+
+    /** Forgets the receiver created by newDeviceInput. */
+    public void removeDeviceInput(int device) {
+        for (DeviceInput input : deviceInputs) {
+            if (input.getDevice() == device) {
+                deviceInputs.remove(input);
+            }
+        }
     }
 
     @Override
     public void updateBattery(double bat) {
         this.battery = bat;
+        FlightRecorder rec = recorder;
+        if (rec != null) {
+            rec.recordBattery((int) Math.round(bat * 1000), lastTime);
+        }
+    }
+
+    @Override
+    public void updateTemperature(double celsius) {
+        this.temperature = celsius;
+        FlightRecorder rec = recorder;
+        if (rec != null) {
+            rec.recordTemperature((int) Math.round(celsius * 10), lastTime);
+        }
+    }
+
+    @Override
+    public void updateVersion(int version) {
+        this.version = version;
+    }
+
+    @Override
+    public void updateSettings(BFVSettings settings) {
+        // A new copy only if they changed, so listeners can tell a change
+        if (!settings.equals(this.settings)) {
+            this.settings = settings.copy();
+        }
+    }
+
+    /** Cursor to read the pressure samples published from now on. */
+    public SampleRingBuffer.Cursor newCursor() {
+        return samples.newCursor();
     }
 
-    public long[] getPressureAndTime() {
-        return pressureAndTime;
+    /** Attaches a recorder, or detaches it with null. */
+    public void setRecorder(FlightRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public FlightRecorder getRecorder() {
+        return recorder;
+    }
+
+    /** Sets the QNH of the filters of all devices (see VarioFilter). */
+    public void setQnh(double qnh) {
+        this.qnh = qnh;
+        configureAll();
+    }
+
+    public void setMeasurementVariance(double variance) {
+        this.measurementVariance = variance;
+        configureAll();
+    }
+
+    public void setProcessVariance(double variance) {
+        this.processVariance = variance;
+        configureAll();
+    }
+
+    private void configureAll() {
+        configure(varioFilter);
+        configure(fusedFilter);
+        for (DeviceInput input : deviceInputs) {
+            configure(input.getVarioFilter());
+        }
+    }
+
+    private void configure(VarioFilter filter) {
+        filter.setQnh(qnh);
+        filter.setMeasurementVariance(measurementVariance);
+        filter.setProcessVariance(processVariance);
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latency;
     }
 
     public double getBattery() {
         return battery;
     }
 
-}
\ No newline at end of file
+    /** Temperature in Celsius, or NaN if not yet received. */
+    public double getTemperature() {
+        return temperature;
+    }
+
+    /** Hardware version of the BFV, or 0 if not yet received. */
+    public int getVersion() {
+        return version;
+    }
+
+    /** The settings of the BFV, or null if not yet received. */
+    public BFVSettings getSettings() {
+        return settings;
+    }
+
+    public synchronized void addListener(ModelListener listener) {
+        listeners.add(listener);
+        if (dispatcher == null) {
+            dispatcher = new SampleDispatcher(this, samples, listeners);
+            dispatcher.start();
+        }
+    }
+
+    public synchronized void removeListener(ModelListener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty() && dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher = null;
+        }
+    }
+
+    void notifyListeners() {
+        SampleDispatcher d = dispatcher;
+        if (d != null) {
+            d.signal();
+        }
+    }
+
+}
@@ -1,10 +1,11 @@
 package eb.ohrh.bfvadapt.model;
 
-import java.util.Observable;
-import java.util.Observer;
+/**
+ * Informed about new samples in the model. The samples are read with an own
+ * cursor (see {@link Model#newCursor()}). Called by the SampleDispatcher
+ * thread, possibly once for several new samples.
+ */
+public interface ModelListener {
 
-public interface ModelListener extends Observer {
-
-    @Override
-    public void update(Observable observable, Object data);
+    public void update(Model model);
 }
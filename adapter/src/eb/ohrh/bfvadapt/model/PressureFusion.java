@@ -0,0 +1,387 @@
+package eb.ohrh.bfvadapt.model;
+
+/**
+ * Fuses the pressure of several barometers (the devices) into one stream.
+ *
+ * The samples of each source are kept in a short history, and interpolated to
+ * the ticks of a common clock (every PERIOD milliseconds on the time base of
+ * the samples). A tick is computed, as soon as every source has a sample at or
+ * after it, or the newest sample is MAX_WAIT later.
+ *
+ * The constant offset between the barometers (the bias) is learned relative to
+ * the first source offered, and subtracted. A value differing by more than the
+ * outlier threshold from the reference (the median of three or more sources,
+ * else the previous result) is rejected. A source rejected for FAIL_AFTER ticks
+ * in a row is FAILED, and only used again after RECOVER_AFTER good ticks. So
+ * is a source, whose pressure did not change for STUCK_AFTER samples, which
+ * the noise of a working barometer never allows. A source without samples for
+ * STALE_AFTER is STALE. The accepted values are
+ * weighted with the inverse of the noise variance of their source, estimated
+ * from the second differences of its samples.
+ *
+ * Only arrays allocated in the constructor are used. The class is not thread
+ * safe; the Model synchronizes on the instance.
+ */
+public class PressureFusion {
+
+    public enum Health {
+        OK, STALE, OUTLIER, FAILED;
+    }
+
+    public static final int MAX_SOURCES = 8;
+    /** ms between the ticks of the common clock */
+    public static final long PERIOD = 20;
+    /** Pa, about 2.5 m within one tick */
+    public static final int DEFAULT_OUTLIER_THRESHOLD = 30;
+
+    /** ms a tick waits for a late source */
+    private static final long MAX_WAIT = 100;
+    /** ms without samples, until a source is STALE */
+    private static final long STALE_AFTER = 500;
+    private static final int FAIL_AFTER = 25;
+    private static final int RECOVER_AFTER = 50;
+    /** One second at 50 Hz */
+    private static final int STUCK_AFTER = 50;
+    /** Samples kept per source, must cover MAX_WAIT */
+    private static final int HISTORY = 16;
+    private static final double NOISE_SMOOTHING = 0.02;
+    private static final double BIAS_SMOOTHING = 0.001;
+    /** Pa^2, limits the weight of a noiseless source */
+    private static final double MIN_VARIANCE = 0.01;
+
+    private volatile int outlierThreshold = DEFAULT_OUTLIER_THRESHOLD;
+
+    /* Per source */
+    private final int[] devices = new int[MAX_SOURCES];
+    private int sources;
+    private final long[][] times = new long[MAX_SOURCES][HISTORY];
+    private final int[][] pressures = new int[MAX_SOURCES][HISTORY];
+    /** Number of samples received, the newest is at (count - 1) % HISTORY */
+    private final long[] counts = new long[MAX_SOURCES];
+    private final double[] variances = new double[MAX_SOURCES];
+    private final double[] biases = new double[MAX_SOURCES];
+    private final boolean[] biasKnown = new boolean[MAX_SOURCES];
+    private final Health[] health = new Health[MAX_SOURCES];
+    private final int[] rejected = new int[MAX_SOURCES];
+    private final int[] accepted = new int[MAX_SOURCES];
+    /** Number of samples in a row equal to the previous one */
+    private final int[] unchanged = new int[MAX_SOURCES];
+
+    /* Values of the current tick */
+    private final double[] values = new double[MAX_SOURCES];
+    private final boolean[] present = new boolean[MAX_SOURCES];
+    private final double[] sorted = new double[MAX_SOURCES];
+
+    private boolean started;
+    private long nextTick;
+    private boolean havePrevious;
+
+    /* Result of the last tick */
+    private double pressure;
+    private long time;
+    private int used;
+
+    public void setOutlierThreshold(int pascal) {
+        outlierThreshold = pascal;
+    }
+
+    /** Forgets all sources. */
+    public void reset() {
+        sources = 0;
+        started = false;
+        havePrevious = false;
+    }
+
+    /**
+     * Adds a sample of a source. Samples older than the previous one of the
+     * source are ignored, as well as more than MAX_SOURCES sources.
+     */
+    public void offer(int device, int pressure, long time) {
+        int i = indexOf(device);
+        if (i < 0) {
+            if (sources == MAX_SOURCES) {
+                return;
+            }
+            i = sources++;
+            devices[i] = device;
+            counts[i] = 0;
+            variances[i] = 0;
+            biasKnown[i] = i == 0;
+            biases[i] = 0;
+            health[i] = Health.OK;
+            rejected[i] = 0;
+            accepted[i] = 0;
+            unchanged[i] = 0;
+        }
+        long n = counts[i];
+        if (n > 0 && time <= sample(times[i], n - 1)) {
+            return;
+        }
+        if (n > 0 && pressure == sample(pressures[i], n - 1)) {
+            unchanged[i]++;
+        } else {
+            unchanged[i] = 0;
+        }
+        int slot = (int) (n % HISTORY);
+        times[i][slot] = time;
+        pressures[i][slot] = pressure;
+        counts[i] = ++n;
+        if (n >= 3) {
+            // The second difference of white noise has 6 times its variance
+            double d = pressure - 2.0 * sample(pressures[i], n - 2)
+                    + sample(pressures[i], n - 3);
+            double v = d * d / 6;
+            variances[i] = n == 3 ? v : variances[i] + NOISE_SMOOTHING
+                    * (v - variances[i]);
+        }
+        if (!started) {
+            started = true;
+            nextTick = ceilTick(time);
+        }
+    }
+
+    /**
+     * Computes the next tick, which is due. Ticks without any value are
+     * skipped.
+     *
+     * @return false, if the next tick must still wait for samples.
+     */
+    public boolean next() {
+        if (!started) {
+            return false;
+        }
+        while (true) {
+            long newest = Long.MIN_VALUE;
+            for (int i = 0; i < sources; i++) {
+                newest = Math.max(newest, newestTime(i));
+            }
+            if (newest - nextTick > STALE_AFTER) {
+                // All sources were silent, restart after the gap
+                nextTick = ceilTick(newest - MAX_WAIT);
+                havePrevious = false;
+            }
+            boolean waiting = false;
+            for (int i = 0; i < sources; i++) {
+                if (newest - newestTime(i) > STALE_AFTER) {
+                    health[i] = Health.STALE;
+                } else if (health[i] == Health.STALE) {
+                    health[i] = Health.OK;
+                }
+                if (health[i] != Health.STALE && newestTime(i) < nextTick) {
+                    waiting = true;
+                }
+            }
+            if (waiting && newest < nextTick + MAX_WAIT) {
+                return false;
+            }
+            long tick = nextTick;
+            nextTick += PERIOD;
+            int n = 0;
+            for (int i = 0; i < sources; i++) {
+                present[i] = health[i] != Health.STALE && interpolate(i, tick);
+                if (present[i]) {
+                    n++;
+                }
+            }
+            if (n > 0) {
+                learnBias();
+                fuse(n);
+                time = tick;
+                return true;
+            }
+        }
+    }
+
+    /** Fused pressure of the last tick in Pascal. */
+    public double getPressure() {
+        return pressure;
+    }
+
+    /** Time of the last tick. */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Number of sources used for the last tick, 0 if only FAILED sources were
+     * left (the pressure is then their median).
+     */
+    public int getUsed() {
+        return used;
+    }
+
+    public int getSourceCount() {
+        return sources;
+    }
+
+    /** Device id of the source */
+    public int getDevice(int source) {
+        return devices[source];
+    }
+
+    public Health getHealth(int source) {
+        return health[source];
+    }
+
+    /** Standard deviation of the noise of the source in Pascal */
+    public double getNoise(int source) {
+        return Math.sqrt(variances[source]);
+    }
+
+    /** Offset of the source relative to the first source in Pascal */
+    public double getBias(int source) {
+        return biases[source];
+    }
+
+    private int indexOf(int device) {
+        for (int i = 0; i < sources; i++) {
+            if (devices[i] == device) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long ceilTick(long t) {
+        long tick = t - t % PERIOD;
+        return tick < t ? tick + PERIOD : tick;
+    }
+
+    private static long sample(long[] history, long index) {
+        return history[(int) (index % HISTORY)];
+    }
+
+    private static int sample(int[] history, long index) {
+        return history[(int) (index % HISTORY)];
+    }
+
+    private long newestTime(int i) {
+        return counts[i] == 0 ? Long.MIN_VALUE : sample(times[i], counts[i] - 1);
+    }
+
+    /**
+     * Sets values[i] to the pressure of the source at the tick, interpolated
+     * between the samples before and after it.
+     *
+     * @return false, if the samples don't cover the tick.
+     */
+    private boolean interpolate(int i, long tick) {
+        long n = counts[i];
+        long oldest = Math.max(0, n - HISTORY);
+        for (long k = n - 1; k > oldest; k--) {
+            long t0 = sample(times[i], k - 1);
+            long t1 = sample(times[i], k);
+            if (t0 <= tick && tick <= t1) {
+                int p0 = sample(pressures[i], k - 1);
+                int p1 = sample(pressures[i], k);
+                values[i] = p0 + (double) (p1 - p0) * (tick - t0) / (t1 - t0);
+                return true;
+            }
+        }
+        if (n > 0 && sample(times[i], n - 1) == tick) {
+            values[i] = sample(pressures[i], n - 1);
+            return true;
+        }
+        return false;
+    }
+
+    /** Learns the offset of each source to the first one. */
+    private void learnBias() {
+        if (sources == 0 || !present[0] || health[0] == Health.FAILED) {
+            return;
+        }
+        for (int i = 1; i < sources; i++) {
+            if (!present[i] || health[i] == Health.FAILED) {
+                continue;
+            }
+            double offset = values[i] - values[0];
+            if (!biasKnown[i]) {
+                biasKnown[i] = true;
+                biases[i] = offset;
+            } else if (Math.abs(offset - biases[i]) <= outlierThreshold) {
+                biases[i] += BIAS_SMOOTHING * (offset - biases[i]);
+            }
+        }
+    }
+
+    private void fuse(int n) {
+        int m = 0;
+        for (int i = 0; i < sources; i++) {
+            if (present[i]) {
+                values[i] -= biases[i];
+                sorted[m++] = values[i];
+            }
+        }
+        double median = median(m);
+        int threshold = outlierThreshold;
+        double reference = median;
+        if (n < 3 && havePrevious && withinThreshold(pressure, threshold)) {
+            // Else all differ from the previous result, but agree with each
+            // other: The pressure really changed.
+            reference = pressure;
+        }
+        double sum = 0;
+        double weights = 0;
+        used = 0;
+        for (int i = 0; i < sources; i++) {
+            if (!present[i]) {
+                continue;
+            }
+            boolean ok = unchanged[i] < STUCK_AFTER
+                    && (n == 1 || Math.abs(values[i] - reference) <= threshold);
+            if (ok) {
+                rejected[i] = 0;
+                accepted[i]++;
+                if (health[i] != Health.FAILED || accepted[i] >= RECOVER_AFTER) {
+                    health[i] = Health.OK;
+                }
+            } else {
+                accepted[i] = 0;
+                rejected[i]++;
+                if (rejected[i] >= FAIL_AFTER || unchanged[i] >= STUCK_AFTER) {
+                    health[i] = Health.FAILED;
+                } else if (health[i] != Health.FAILED) {
+                    health[i] = Health.OUTLIER;
+                }
+            }
+            if (health[i] == Health.OK) {
+                double w = 1 / (variances[i] + MIN_VARIANCE);
+                sum += w * values[i];
+                weights += w;
+                used++;
+            }
+        }
+        if (used == 0) {
+            // Only failed sources left, better than nothing
+            pressure = median;
+        } else {
+            pressure = sum / weights;
+        }
+        havePrevious = true;
+    }
+
+    /** @return true, if any present value is within the threshold. */
+    private boolean withinThreshold(double reference, int threshold) {
+        for (int i = 0; i < sources; i++) {
+            if (present[i] && Math.abs(values[i] - reference) <= threshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Median of the first m sorted values, sorted in place. */
+    private double median(int m) {
+        for (int i = 1; i < m; i++) {
+            double v = sorted[i];
+            int j = i - 1;
+            while (j >= 0 && sorted[j] > v) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = v;
+        }
+        return m % 2 == 1 ? sorted[m / 2]
+                : (sorted[m / 2 - 1] + sorted[m / 2]) / 2;
+    }
+}
@@ -0,0 +1,62 @@
+package eb.ohrh.bfvadapt.model;
+
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+
+/**
+ * Thread, which informs the listeners of the model about new samples. This
+ * decouples the thread receiving the BFV data from the listeners: The reader
+ * only publishes the sample to the {@link SampleRingBuffer} (the bounded queue)
+ * and signals this thread. A slow listener (e.g. a binder call to a slow
+ * client) therefore never delays the reading of the socket. If the listeners
+ * fall behind by more than the capacity of the ring buffer, the oldest samples
+ * are dropped, or coalesced, depending on the OverflowPolicy of their cursor.
+ *
+ * The signal does not lock: The reader unparks this thread, which parks
+ * whenever it has seen the last published sample.
+ */
+class SampleDispatcher extends Thread {
+
+    private final Model model;
+    private final SampleRingBuffer samples;
+    private final List<ModelListener> listeners;
+    private volatile boolean running = true;
+
+    SampleDispatcher(Model model, SampleRingBuffer samples,
+            List<ModelListener> listeners) {
+        super("SampleDispatcher");
+        this.model = model;
+        this.samples = samples;
+        this.listeners = listeners;
+        setDaemon(true);
+    }
+
+    /** Called by the reader after publishing a sample. */
+    void signal() {
+        LockSupport.unpark(this);
+    }
+
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        long seen = samples.getPublished();
+        while (running) {
+            long published = samples.getPublished();
+            if (published == seen) {
+                LockSupport.park(this);
+                continue;
+            }
+            seen = published;
+            for (ModelListener listener : listeners) {
+                listener.update(model);
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package eb.ohrh.bfvadapt.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring buffer of pressure samples with one writer at a time (the threads
+ * receiving the data of the devices, serialized by publish) and any number of
+ * readers. Each sample is tagged with the id of the device it comes from.
+ *
+ * Each sample gets a sequence number. The readers use a {@link Cursor} to read
+ * the samples at their own pace without any locking. A reader never sees a
+ * half written sample: Each slot carries the sequence number of its sample,
+ * which is set to BUSY while the writer changes the slot. If the sequence
+ * number read before and after the values does not match the requested one,
+ * the slot was overwritten in the meantime. If a reader is too slow, the
+ * oldest samples are overwritten, and the reader's cursor counts them as
+ * missed.
+ *
+ * The devices are received by different threads, so publish is synchronized.
+ * This costs an uncontended lock per sample with one device, and at most a
+ * short wait with several, as each device only sends about 50 samples per
+ * second. The readers stay lock free.
+ */
+public class SampleRingBuffer {
+
+    /** Values of one sample, filled by {@link Cursor#poll(Sample)}. */
+    public static class Sample {
+        public long sequence;
+        /** Id of the device (see Model.PRIMARY_DEVICE) */
+        public int device;
+        /** Pressure in Pascal */
+        public int pressure;
+        /** Time in milliseconds */
+        public long time;
+        /** Altitude in centimeters (see VarioFilter) */
+        public int altitude;
+        /** Vertical speed in cm/s (see VarioFilter) */
+        public int vario;
+        /** Vertical acceleration in cm/s^2 (see VarioFilter) */
+        public int acceleration;
+        /** System.nanoTime() when the bytes of the sample were received */
+        public long arrivalNanos;
+        /** System.nanoTime() when the sample was published */
+        public long publishedNanos;
+    }
+
+    /** What a cursor does, if it falls behind. */
+    public enum OverflowPolicy {
+        /**
+         * Read every sample. Only if the reader is behind by more than the
+         * capacity, the oldest samples are lost (counted as missed).
+         */
+        DROP_OLDEST,
+        /**
+         * Only read the newest sample of each device (of at most
+         * MAX_COALESCED_DEVICES devices). The samples skipped are counted as
+         * coalesced.
+         */
+        COALESCE;
+    }
+
+    /** Devices, whose newest sample a COALESCE cursor keeps */
+    public static final int MAX_COALESCED_DEVICES = 16;
+
+    private static final long BUSY = -1;
+
+    /*
+     * Layout of a slot: sequence, pressure, time, altitude, vario, arrival,
+     * published, device, acceleration
+     */
+    private static final int STRIDE = 9;
+    private static final int SEQUENCE = 0;
+    private static final int PRESSURE = 1;
+    private static final int TIME = 2;
+    private static final int ALTITUDE = 3;
+    private static final int VARIO = 4;
+    private static final int ARRIVAL = 5;
+    private static final int PUBLISHED = 6;
+    private static final int DEVICE = 7;
+    private static final int ACCELERATION = 8;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray slots;
+    /** Sequence number of the last published sample. -1 if none. */
+    private final AtomicLong published = new AtomicLong(-1);
+
+    /**
+     * @param capacity
+     *            Number of samples kept. Must be a power of 2.
+     */
+    public SampleRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException(
+                    "Capacity must be a power of 2: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slots = new AtomicLongArray(capacity * STRIDE);
+        for (int i = 0; i < capacity; i++) {
+            slots.set(i * STRIDE + SEQUENCE, BUSY);
+        }
+    }
+
+    /**
+     * Publishes a sample of the given device. The writers are serialized, the
+     * readers don't lock.
+     */
+    public synchronized void publish(int device, int pressure, long time,
+            int altitude, int vario, int acceleration, long arrivalNanos) {
+        long sequence = published.get() + 1;
+        int base = (int) (sequence & mask) * STRIDE;
+        slots.set(base + SEQUENCE, BUSY);
+        slots.set(base + PRESSURE, pressure);
+        slots.set(base + TIME, time);
+        slots.set(base + ALTITUDE, altitude);
+        slots.set(base + VARIO, vario);
+        slots.set(base + ACCELERATION, acceleration);
+        slots.set(base + ARRIVAL, arrivalNanos);
+        slots.set(base + PUBLISHED, System.nanoTime());
+        slots.set(base + DEVICE, device);
+        slots.set(base + SEQUENCE, sequence);
+        published.set(sequence);
+    }
+
+    /** Sequence number of the last published sample. -1 if none. */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * Creates a cursor, which starts with the next published sample. A cursor
+     * must only be used by one thread.
+     */
+    public Cursor newCursor() {
+        return new Cursor(published.get() + 1);
+    }
+
+    /**
+     * Reads the sample with the given sequence number.
+     *
+     * @return false, if the sample is not (or no longer) in the buffer.
+     */
+    private boolean read(long sequence, Sample out) {
+        int base = (int) (sequence & mask) * STRIDE;
+        if (slots.get(base + SEQUENCE) != sequence) {
+            return false;
+        }
+        int pressure = (int) slots.get(base + PRESSURE);
+        long time = slots.get(base + TIME);
+        int altitude = (int) slots.get(base + ALTITUDE);
+        int vario = (int) slots.get(base + VARIO);
+        int acceleration = (int) slots.get(base + ACCELERATION);
+        long arrivalNanos = slots.get(base + ARRIVAL);
+        long publishedNanos = slots.get(base + PUBLISHED);
+        int device = (int) slots.get(base + DEVICE);
+        if (slots.get(base + SEQUENCE) != sequence) {
+            return false;
+        }
+        out.sequence = sequence;
+        out.device = device;
+        out.pressure = pressure;
+        out.time = time;
+        out.altitude = altitude;
+        out.vario = vario;
+        out.acceleration = acceleration;
+        out.arrivalNanos = arrivalNanos;
+        out.publishedNanos = publishedNanos;
+        return true;
+    }
+
+    /**
+     * Reads the device of the sample with the given sequence number.
+     *
+     * @return false, if the sample is not (or no longer) in the buffer.
+     */
+    private boolean readDevice(long sequence, int[] devices, int index) {
+        int base = (int) (sequence & mask) * STRIDE;
+        if (slots.get(base + SEQUENCE) != sequence) {
+            return false;
+        }
+        int device = (int) slots.get(base + DEVICE);
+        if (slots.get(base + SEQUENCE) != sequence) {
+            return false;
+        }
+        devices[index] = device;
+        return true;
+    }
+
+    /** Read position of one reader. */
+    public class Cursor {
+        private long next;
+        private long missed;
+        private long coalesced;
+        private volatile OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+        /*
+         * Sequence numbers still to read with COALESCE, the newest first, and
+         * their devices
+         */
+        private final long[] pending = new long[MAX_COALESCED_DEVICES];
+        private final int[] pendingDevices = new int[MAX_COALESCED_DEVICES + 1];
+        private int pendingCount;
+
+        private Cursor(long next) {
+            this.next = next;
+        }
+
+        /**
+         * Reads the next sample, if available.
+         *
+         * @return false, if there is no new sample.
+         */
+        public boolean poll(Sample out) {
+            if (pollPending(out)) {
+                return true;
+            }
+            long last = published.get();
+            if (policy == OverflowPolicy.COALESCE && next < last) {
+                coalesce(last);
+                return pollPending(out);
+            }
+            while (next <= last) {
+                long oldest = last - capacity + 1;
+                if (next < oldest) {
+                    missed += oldest - next;
+                    next = oldest;
+                }
+                if (read(next, out)) {
+                    next++;
+                    return true;
+                }
+                // Overwritten while reading
+                missed++;
+                next++;
+                last = published.get();
+            }
+            return false;
+        }
+
+        /** Reads the oldest pending sample of coalesce. */
+        private boolean pollPending(Sample out) {
+            while (pendingCount > 0) {
+                if (read(pending[--pendingCount], out)) {
+                    return true;
+                }
+                missed++;
+            }
+            return false;
+        }
+
+        /**
+         * Collects the newest sample of each device up to last in pending, and
+         * skips the others.
+         */
+        private void coalesce(long last) {
+            long oldest = Math.max(next, last - capacity + 1);
+            missed += oldest - next;
+            for (long sequence = last; sequence >= oldest; sequence--) {
+                if (!readDevice(sequence, pendingDevices, pendingCount)) {
+                    // Overwritten, so are all older ones
+                    missed += sequence - oldest + 1;
+                    break;
+                }
+                if (isPending(pendingDevices[pendingCount])) {
+                    coalesced++;
+                } else if (pendingCount < MAX_COALESCED_DEVICES) {
+                    pending[pendingCount++] = sequence;
+                } else {
+                    coalesced++;
+                }
+            }
+            next = last + 1;
+        }
+
+        private boolean isPending(int device) {
+            for (int i = 0; i < pendingCount; i++) {
+                if (pendingDevices[i] == device) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Number of samples overwritten before this cursor could read them. */
+        public long getMissed() {
+            return missed;
+        }
+
+        /** Number of samples skipped with OverflowPolicy.COALESCE. */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        /** May be called by any thread. Takes effect with the next poll. */
+        public void setOverflowPolicy(OverflowPolicy policy) {
+            this.policy = policy;
+        }
+    }
+}
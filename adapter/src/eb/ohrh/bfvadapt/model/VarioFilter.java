@@ -0,0 +1,148 @@
+package eb.ohrh.bfvadapt.model;
+
+/**
+ * Computes altitude and vertical speed from the pressure samples.
+ *
+ * The pressure is converted to altitude with the international standard
+ * atmosphere, relative to the configured QNH. The altitude is then filtered by
+ * a Kalman filter with the state altitude, vertical speed and acceleration,
+ * assuming a constant acceleration disturbed by random jerk.
+ *
+ * Only primitive fields are used, so the filter does not allocate any objects
+ * per sample. The configuration may be changed by another thread at any time.
+ */
+public class VarioFilter {
+
+    public static final double STANDARD_QNH = 101325; // Pa
+    /** Variance of the altitude measurement in m^2 */
+    public static final double DEFAULT_MEASUREMENT_VARIANCE = 0.1;
+    /** Variance of the jerk in (m/s^3)^2 */
+    public static final double DEFAULT_PROCESS_VARIANCE = 1.0;
+
+    /** Restart the filter, if there was no sample for more than 1 second */
+    private static final long MAX_GAP = 1000;
+
+    private volatile double qnh = STANDARD_QNH;
+    private volatile double measurementVariance = DEFAULT_MEASUREMENT_VARIANCE;
+    private volatile double processVariance = DEFAULT_PROCESS_VARIANCE;
+
+    private boolean started;
+    private long lastTime;
+
+    /* State: altitude (m), vertical speed (m/s), acceleration (m/s^2) */
+    private double altitude;
+    private double vario;
+    private double acceleration;
+
+    /* Symmetric covariance matrix */
+    private double p00, p01, p02, p11, p12, p22;
+
+    public void setQnh(double qnh) {
+        this.qnh = qnh;
+    }
+
+    public void setMeasurementVariance(double variance) {
+        this.measurementVariance = variance;
+    }
+
+    public void setProcessVariance(double variance) {
+        this.processVariance = variance;
+    }
+
+    public void reset() {
+        started = false;
+    }
+
+    /**
+     * @param pressure
+     *            in Pascal
+     * @param time
+     *            in milliseconds
+     */
+    public void update(double pressure, long time) {
+        double measured = altitude(pressure);
+        long gap = time - lastTime;
+        lastTime = time;
+        if (!started || gap <= 0 || gap > MAX_GAP) {
+            started = true;
+            altitude = measured;
+            vario = 0;
+            acceleration = 0;
+            p00 = measurementVariance;
+            p01 = p02 = p12 = 0;
+            p11 = 1;
+            p22 = 1;
+            return;
+        }
+        predict(gap / 1000.0);
+        correct(measured);
+    }
+
+    /** Altitude in meters */
+    public double getAltitude() {
+        return altitude;
+    }
+
+    /** Vertical speed in m/s */
+    public double getVario() {
+        return vario;
+    }
+
+    /** Vertical acceleration in m/s^2 */
+    public double getAcceleration() {
+        return acceleration;
+    }
+
+    /** Altitude of the pressure in the standard atmosphere relative to qnh. */
+    public double altitude(double pressure) {
+        return 44330.0 * (1.0 - Math.pow(pressure / qnh, 1 / 5.255));
+    }
+
+    private void predict(double dt) {
+        double d = dt;
+        double e = dt * dt / 2;
+        altitude += d * vario + e * acceleration;
+        vario += d * acceleration;
+
+        // P = F P F' + Q with F = [1 d e; 0 1 d; 0 0 1]
+        double r0 = p00 + d * p01 + e * p02;
+        double r1 = p01 + d * p11 + e * p12;
+        double r2 = p02 + d * p12 + e * p22;
+        double n00 = r0 + d * r1 + e * r2;
+        double n01 = r1 + d * r2;
+        double n02 = r2;
+        double n11 = p11 + 2 * d * p12 + d * d * p22;
+        double n12 = p12 + d * p22;
+
+        // Q for random jerk
+        double q = processVariance;
+        double dt2 = dt * dt;
+        double dt3 = dt2 * dt;
+        p00 = n00 + q * dt3 * dt2 / 20;
+        p01 = n01 + q * dt2 * dt2 / 8;
+        p02 = n02 + q * dt3 / 6;
+        p11 = n11 + q * dt3 / 3;
+        p12 = n12 + q * dt2 / 2;
+        p22 = p22 + q * dt;
+    }
+
+    private void correct(double measured) {
+        double s = p00 + measurementVariance;
+        double k0 = p00 / s;
+        double k1 = p01 / s;
+        double k2 = p02 / s;
+        double y = measured - altitude;
+        altitude += k0 * y;
+        vario += k1 * y;
+        acceleration += k2 * y;
+
+        // P = (I - K H) P
+        double h0 = p00, h1 = p01, h2 = p02;
+        p00 -= k0 * h0;
+        p01 -= k0 * h1;
+        p02 -= k0 * h2;
+        p11 -= k1 * h1;
+        p12 -= k1 * h2;
+        p22 -= k2 * h2;
+    }
+}
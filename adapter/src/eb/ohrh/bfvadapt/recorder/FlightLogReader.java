@@ -0,0 +1,89 @@
+package eb.ohrh.bfvadapt.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import eb.ohrh.bfvadapt.source.RecordStream;
+
+/** Reads a log file written by the {@link FlightRecorder}. */
+public class FlightLogReader implements RecordStream {
+
+    private final MappedByteBuffer buffer;
+    private final int recordSize;
+    private final long wallClock;
+    private final long startTime;
+    private int position;
+
+    private byte type;
+    private int value;
+    private long time;
+
+    public FlightLogReader(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.limit() < FlightRecorder.HEADER_SIZE
+                || buffer.getInt(0) != FlightRecorder.MAGIC) {
+            throw new IOException("Not a flight log: " + file);
+        }
+        if (buffer.getInt(4) != FlightRecorder.VERSION) {
+            throw new IOException("Unsupported version " + buffer.getInt(4));
+        }
+        position = buffer.getInt(8);
+        recordSize = buffer.getInt(12);
+        wallClock = buffer.getLong(FlightRecorder.OFFSET_WALL_CLOCK);
+        startTime = buffer.getLong(FlightRecorder.OFFSET_START_TIME);
+    }
+
+    /** System.currentTimeMillis() when the session started. */
+    public long getWallClock() {
+        return wallClock;
+    }
+
+    /** Time of the samples when the session started. */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public boolean next() {
+        if (position + recordSize > buffer.limit()) {
+            return false;
+        }
+        type = buffer.get(position);
+        if (type == 0) {
+            // End of the recorded data
+            return false;
+        }
+        value = buffer.getInt(position + FlightRecorder.RECORD_VALUE);
+        time = buffer.getLong(position + FlightRecorder.RECORD_TIME);
+        position += recordSize;
+        return true;
+    }
+
+    @Override
+    public byte getType() {
+        return type;
+    }
+
+    @Override
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,187 @@
+package eb.ohrh.bfvadapt.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.util.Log;
+
+/**
+ * Records every value received from the BFV into a compact binary log file.
+ *
+ * Each session (from the first sample after the recorder was enabled or the
+ * connection was established, until the connection is lost or the recorder is
+ * disabled) is written to its own file. The file is preallocated and memory
+ * mapped, so writing a record is just a memory write without any system call
+ * or allocation. If the file is full, the session continues in the next file.
+ *
+ * Layout (big endian):
+ *
+ * <pre>
+ * Header (HEADER_SIZE bytes):
+ *  0: int  MAGIC ("BFVR")
+ *  4: int  VERSION
+ *  8: int  HEADER_SIZE
+ * 12: int  RECORD_SIZE
+ * 16: long System.currentTimeMillis() at session start
+ * 24: long time of the samples (monotonic ms) at session start
+ * Records (RECORD_SIZE bytes each):
+ *  0: byte type (TYPE_*), 0 marks the end of the log
+ *  4: int  value
+ *  8: long time (monotonic ms)
+ * </pre>
+ *
+ * The type of a record is written after its values, so a log cut off by a
+ * crash ends with a zero type, not with a record missing its values. The
+ * mapped memory belongs to the kernel, so everything written is kept, even if
+ * the process dies. Plain writes to a mapping are not ordered for another
+ * thread or process, so a reader of a log still being written may see a
+ * record with its type but not yet its values. Only logs of ended sessions
+ * should be read.
+ *
+ * When a session ends, the file is synced to the disk by a background thread,
+ * so the receiving thread does not wait for the disk. Opening the next file
+ * is the only blocking call on the receiving thread, once per session or
+ * every 4 MB.
+ *
+ * All methods except setEnabled must be called by the thread receiving the
+ * BFV data.
+ */
+public class FlightRecorder {
+    private static final String TAG = FlightRecorder.class.getSimpleName();
+
+    public static final int MAGIC = 0x42465652; // "BFVR"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 16;
+
+    /** Pressure in Pascal */
+    public static final byte TYPE_PRESSURE = 1;
+    /** Battery in milliVolts */
+    public static final byte TYPE_BATTERY = 2;
+    /** Temperature in 1/10 degrees Celsius */
+    public static final byte TYPE_TEMPERATURE = 3;
+
+    static final int OFFSET_WALL_CLOCK = 16;
+    static final int OFFSET_START_TIME = 24;
+    static final int RECORD_VALUE = 4;
+    static final int RECORD_TIME = 8;
+
+    public static final String FILE_SUFFIX = ".bfvlog";
+
+    /** 4 MB, about 85 minutes at 50 Hz */
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+
+    private final File directory;
+    private volatile boolean enabled;
+
+    private MappedByteBuffer buffer;
+    private String sessionName;
+    private int fileNo;
+
+    public FlightRecorder(File directory) {
+        this.directory = directory;
+    }
+
+    /** May be called by any thread. Takes effect with the next sample. */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void recordPressure(int pressure, long time) {
+        record(TYPE_PRESSURE, pressure, time);
+    }
+
+    public void recordBattery(int milliVolts, long time) {
+        record(TYPE_BATTERY, milliVolts, time);
+    }
+
+    public void recordTemperature(int tenthDegrees, long time) {
+        record(TYPE_TEMPERATURE, tenthDegrees, time);
+    }
+
+    /** Closes the current session. The next record starts a new one. */
+    public void endSession() {
+        if (buffer != null) {
+            sync(buffer);
+            buffer = null;
+        }
+        sessionName = null;
+    }
+
+    /** Writes the mapped file to the disk in the background. */
+    private static void sync(final MappedByteBuffer mapped) {
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                mapped.force();
+            }
+        }.start();
+    }
+
+    private void record(byte type, int value, long time) {
+        if (!enabled) {
+            endSession();
+            return;
+        }
+        if (buffer == null || buffer.remaining() < RECORD_SIZE) {
+            if (buffer != null) {
+                sync(buffer);
+            }
+            if (!openFile(time)) {
+                return;
+            }
+        }
+        int position = buffer.position();
+        buffer.putInt(position + RECORD_VALUE, value);
+        buffer.putLong(position + RECORD_TIME, time);
+        buffer.put(position, type);
+        buffer.position(position + RECORD_SIZE);
+    }
+
+    private boolean openFile(long time) {
+        if (sessionName == null) {
+            sessionName = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                    .format(new Date());
+            fileNo = 0;
+        }
+        fileNo++;
+        File file = new File(directory, "flight-" + sessionName + "-" + fileNo
+                + FILE_SUFFIX);
+        try {
+            directory.mkdirs();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(FILE_SIZE);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        0, FILE_SIZE);
+            } finally {
+                // The mapping stays valid after closing the file
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Log file could not be created", e);
+            buffer = null;
+            enabled = false;
+            return false;
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, HEADER_SIZE);
+        buffer.putInt(12, RECORD_SIZE);
+        buffer.putLong(OFFSET_WALL_CLOCK, System.currentTimeMillis());
+        buffer.putLong(OFFSET_START_TIME, time);
+        buffer.position(HEADER_SIZE);
+        Log.v(TAG, "Recording to " + file);
+        return true;
+    }
+}
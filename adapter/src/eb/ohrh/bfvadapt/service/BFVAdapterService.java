@@ -1,7 +1,13 @@
 package eb.ohrh.bfvadapt.service;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Observable;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -9,23 +15,40 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.widget.Toast;
 import eb.ohrh.bfvadapt.activity.MainActivity;
+import eb.ohrh.bfvadapt.audio.VarioToneGenerator;
+import eb.ohrh.bfvadapt.audio.VarioTonePlayer;
+import eb.ohrh.bfvadapt.bluetooth.BFVCommandWriter;
+import eb.ohrh.bfvadapt.bluetooth.BFVSettings;
 import eb.ohrh.bfvadapt.bluetooth.BluetoothConnectionManager;
 import eb.ohrh.bfvadapt.bluetooth.BluetoothConnectionManager.Actions;
 import eb.ohrh.bfvadapt.bluetooth.BluetoothConnectionManager.Listener;
 import eb.ohrh.bfvadapt.bluetooth.BluetoothConnectionManager.State;
+import eb.ohrh.bfvadapt.bluetooth.DeviceConnection;
 import eb.ohrh.bfvadapt.debug.R;
+import eb.ohrh.bfvadapt.metrics.LatencyHistogram;
+import eb.ohrh.bfvadapt.metrics.LatencyTracker;
+import eb.ohrh.bfvadapt.metrics.Metrics;
 import eb.ohrh.bfvadapt.model.Model;
 import eb.ohrh.bfvadapt.model.ModelListener;
+import eb.ohrh.bfvadapt.model.PressureFusion;
+import eb.ohrh.bfvadapt.model.SampleRingBuffer;
+import eb.ohrh.bfvadapt.recorder.FlightLogReader;
+import eb.ohrh.bfvadapt.recorder.FlightRecorder;
+import eb.ohrh.bfvadapt.source.BFVSimulator;
+import eb.ohrh.bfvadapt.source.RecordStream;
+import eb.ohrh.bfvadapt.source.ReplaySource;
+import eb.ohrh.bfvadapt.source.SyntheticRecordStream;
 
 /**
  * Sends pressure data to the remote client. The service listens to data changes
@@ -37,6 +60,30 @@ import eb.ohrh.bfvadapt.model.ModelListener;
  * updates as soon as a Message REQUEST_PRESSURE_UPDATE is sent. The updates are
  * send as messages with what = SEND_PRESSURE_DATA having arg1 containing the
  * value.
+ * 
+ * A client can ask for batched pressure updates by putting BATCH_SIZE and/or
+ * BATCH_WINDOW (milliseconds) into the data Bundle of the REGISTER_CLIENT
+ * message. It then receives SEND_PRESSURE_BATCH messages instead of
+ * SEND_PRESSURE_UPDATE (see {@link Client}).
+ * 
+ * A client, which puts SHARED_MEMORY into the registration data, receives a
+ * SEND_SHARED_MEMORY message with the memory of the
+ * {@link SharedSampleChannel}, and reads the samples from there.
+ * 
+ * A client, which puts PROTOCOL_VERSION 2 into the registration data, gets all
+ * times as 64 bit monotonic milliseconds (see {@link Client}).
+ * 
+ * With STREAMS, RATE and RATE_MODE in the registration data, a client selects
+ * the messages it gets and how many pressure updates per second. Clients with
+ * the same RATE and RATE_MODE share a {@link SubscriptionGroup}, so the
+ * samples are reduced once for all of them. The DEADBAND and HEARTBEAT options
+ * suppress unchanged values, while still showing the client that the service
+ * is alive (see {@link Client}).
+ * 
+ * Further devices (e.g. a backup vario) are connected with ADD_DEVICE. Only
+ * clients with STREAM_DEVICES get their samples and states; all other messages
+ * are about the primary device. CONFIGURE_FUSION fuses the pressure of all
+ * devices into one more stream (see {@link PressureFusion}).
  */
 public class BFVAdapterService extends Service implements ModelListener,
         Listener {
@@ -54,6 +101,138 @@ public class BFVAdapterService extends Service implements ModelListener,
      * BluetoothConnectionManager.State
      */
     static final int SEND_STATE_UPDATE = 3;
+    /**
+     * Message contains the number of samples in arg1, the time of the last
+     * sample in arg2, and the samples as int array SAMPLES in the data Bundle
+     * (pressure, time, pressure, time, ...)
+     */
+    static final int SEND_PRESSURE_BATCH = 4;
+    /**
+     * Message contains the memory of the shared sample channel as SHARED_MEMORY
+     * in the data Bundle: an android.os.SharedMemory from API 27, which the
+     * client maps with mapReadOnly, else a read only ParcelFileDescriptor.
+     */
+    static final int SEND_SHARED_MEMORY = 5;
+    /**
+     * Wake up for shared memory clients. Contains the sequence number of the
+     * last published sample in arg1 and its time in arg2.
+     */
+    static final int SEND_SHARED_SAMPLES = 6;
+    /**
+     * Protocol version 2 only: Contains the high 32 bits of the times in arg1
+     * and the low 32 bits of the current time in arg2. The data Bundle contains
+     * the PROTOCOL_VERSION and the WALL_CLOCK_OFFSET (System.currentTimeMillis()
+     * minus the monotonic time).
+     */
+    static final int SEND_TIME_BASE = 7;
+    static final String KEY_WALL_CLOCK_OFFSET = "WALL_CLOCK_OFFSET";
+    /** Message contains temperature in 1/10 degrees Celsius and time as int */
+    static final int SEND_TEMPERATURE_UPDATE = 8;
+    /** Message contains the hardware version of the BFV and time as int */
+    static final int SEND_VERSION_UPDATE = 9;
+    /**
+     * Message contains the settings of the BFV as String array KEYS and int
+     * array VALUES in the data Bundle
+     */
+    static final int SEND_SETTINGS_UPDATE = 10;
+    static final String KEY_SETTINGS_KEYS = "KEYS";
+    static final String KEY_SETTINGS_VALUES = "VALUES";
+    /**
+     * Message contains vertical speed in cm/s and altitude in cm, and the
+     * vertical ACCELERATION in cm/s^2 in the data Bundle. Sent to the clients
+     * which registered with VARIO, right after the pressure message (or
+     * batch) of the same sample.
+     */
+    static final int SEND_VARIO_UPDATE = 11;
+    static final String KEY_ACCELERATION = "ACCELERATION";
+    /**
+     * Reply to QUERY_LATENCY. Data contains for each stage of the
+     * LatencyTracker (key is the stage name) a long array with count, mean,
+     * 50%, 90%, 99%, 99.9% and max in microseconds, and the FILE, if exported.
+     */
+    static final int SEND_LATENCY_UPDATE = 12;
+    /**
+     * Message contains the samples per second received (arg1) and delivered
+     * (arg2) since the last update, and the NAMES and VALUES of all Metrics.
+     * Sent every METRICS_INTERVAL.
+     */
+    static final int SEND_METRICS_UPDATE = 13;
+    /**
+     * Sent to clients, which registered with HEARTBEAT, if nothing else was
+     * sent for that long. Contains the State ordinal in arg1 and the time as
+     * int in arg2.
+     */
+    static final int SEND_HEARTBEAT = 14;
+    /**
+     * Pressure of a device added with ADD_DEVICE, or the fused pressure
+     * (DEVICE_ID Model.FUSED_DEVICE), sent to the clients with
+     * STREAM_DEVICES. Contains the pressure in arg1, the time as int in arg2,
+     * and DEVICE_ID, VARIO (cm/s), ALTITUDE (cm) and ACCELERATION (cm/s^2)
+     * in the data Bundle.
+     */
+    static final int SEND_DEVICE_PRESSURE = 15;
+    /**
+     * State of each device (the primary one included), sent to the clients
+     * with STREAM_DEVICES whenever a state changes. Contains the State ordinal
+     * in arg1, the time as int in arg2, and DEVICE_ID and DEVICE (name) in
+     * the data Bundle.
+     */
+    static final int SEND_DEVICE_STATE = 16;
+    static final String KEY_DEVICE_ID = "DEVICE_ID";
+    static final String KEY_DEVICE_NAME = "DEVICE";
+    static final String KEY_DEVICE_VARIO = "VARIO";
+    static final String KEY_DEVICE_ALTITUDE = "ALTITUDE";
+    /**
+     * State of the fusion of the devices' pressure, sent with the metrics to
+     * the clients with STREAM_DEVICES, while the fusion is enabled. Contains
+     * the number of sources used for the last fused sample in arg1, and for
+     * each source the DEVICE_IDS, the HEALTH (PressureFusion.Health ordinal),
+     * and NOISE and BIAS in 1/100 Pascal as int arrays in the data Bundle. The
+     * fused samples are sent as SEND_DEVICE_PRESSURE with the DEVICE_ID
+     * Model.FUSED_DEVICE.
+     */
+    static final int SEND_FUSION_UPDATE = 17;
+    static final String KEY_FUSION_DEVICE_IDS = "DEVICE_IDS";
+    static final String KEY_FUSION_HEALTH = "HEALTH";
+    static final String KEY_FUSION_NOISE = "NOISE";
+    static final String KEY_FUSION_BIAS = "BIAS";
+    /** Keys of the data of the CONFIGURE_FUSION action */
+    static final String KEY_FUSION_ENABLED = "ENABLED";
+    static final String KEY_OUTLIER_THRESHOLD = "OUTLIER_THRESHOLD";
+    /** Key of the data of the ADD_DEVICE action (REMOVE_DEVICE: DEVICE_ID) */
+    static final String KEY_DEVICE_ADDRESS = "ADDRESS";
+    /** Shortest delay between two checks of the heartbeats */
+    private static final long MIN_HEARTBEAT_INTERVAL = 100; // ms
+    static final String KEY_METRICS_NAMES = "NAMES";
+    static final String KEY_METRICS_VALUES = "VALUES";
+    private static final long METRICS_INTERVAL = 1000; // ms
+    /** Keys of the data of the CONFIGURE_VARIO action */
+    static final String KEY_QNH = "QNH";
+    static final String KEY_MEASUREMENT_VARIANCE = "MEASUREMENT_VARIANCE";
+    static final String KEY_PROCESS_VARIANCE = "PROCESS_VARIANCE";
+    /** Keys of the data of the SEND_COMMAND action */
+    static final String KEY_COMMAND_KEY = "KEY";
+    static final String KEY_COMMAND_VALUE = "VALUE";
+    static final String KEY_COMMAND = "COMMAND";
+    /** Keys of the data of the START_REPLAY action */
+    static final String KEY_REPLAY_FILE = "FILE";
+    static final String KEY_REPLAY_SPEED = "SPEED";
+    /** Keys of the data of the CONNECT_TCP and START_SIMULATOR actions */
+    static final String KEY_TCP_HOST = "HOST";
+    static final String KEY_TCP_PORT = "PORT";
+    static final String KEY_SIMULATOR_RATE = "RATE";
+    static final String KEY_SIMULATOR_DISCONNECT_AFTER = "DISCONNECT_AFTER";
+    /** Keys of the data of the QUERY_LATENCY action */
+    static final String KEY_LATENCY_EXPORT = "EXPORT";
+    static final String KEY_LATENCY_RESET = "RESET";
+    static final String KEY_LATENCY_FILE = "FILE";
+    /** Keys of the data of the START_AUDIO action (cm/s and 0 to 100) */
+    static final String KEY_CLIMB_THRESHOLD = "CLIMB_THRESHOLD";
+    static final String KEY_SINK_THRESHOLD = "SINK_THRESHOLD";
+    static final String KEY_VOLUME = "VOLUME";
+    /** Key of the data of the CONFIGURE_DISPATCH action */
+    static final String KEY_OVERFLOW_POLICY = "OVERFLOW_POLICY";
+    private static final double[] LATENCY_PERCENTILES = { 50, 90, 99, 99.9 };
     /** Commands allowed by clients */
     static final int REQUEST_PRESSURE_UPDATE = 1;
     static final int CONNECT = 4;
@@ -73,9 +252,74 @@ public class BFVAdapterService extends Service implements ModelListener,
 
     /** Values from previous update, used to decide whether an update is needed. */
     private double previousBattery;
+    private double previousTemperature = Double.NaN;
+    private int previousVersion;
+    private BFVSettings previousSettings;
+
+    /** Read position in the samples of the model. */
+    private SampleRingBuffer.Cursor sampleCursor;
+    private final SampleRingBuffer.Sample sample = new SampleRingBuffer.Sample();
+    /* Values of the cursor already added to the metrics */
+    private long reportedDropped;
+    private long reportedCoalesced;
+
+    private static final String SHARED_CHANNEL_NAME = "samples";
+    /** About 10 seconds at 50 Hz */
+    private static final int SHARED_CHANNEL_CAPACITY = 512;
+    /**
+     * Created, when the first client asks for shared memory, and closed when
+     * the last one is gone.
+     */
+    private volatile SharedSampleChannel sharedChannel;
+
+    private static final String FLIGHTS_DIRECTORY = "flights";
+    private static final String LATENCY_DIRECTORY = "latency";
+    private FlightRecorder recorder;
+
+    /** Started by START_SIMULATOR */
+    private BFVSimulator simulator;
+
+    /** Started by START_AUDIO, fed with the vario of every sample */
+    private volatile VarioTonePlayer tonePlayer;
+
+    /** High 32 bits of the times, last sent with SEND_TIME_BASE */
+    private volatile int timeBaseHigh;
+
+    private final Runnable metricsPublisher = new Runnable() {
+        @Override
+        public void run() {
+            publishMetrics();
+            dummyHandler.postDelayed(this, METRICS_INTERVAL);
+        }
+    };
+    private final Runnable heartbeat = new Runnable() {
+        @Override
+        public void run() {
+            sendHeartbeats();
+        }
+    };
+    private final Runnable batchFlusher = new Runnable() {
+        @Override
+        public void run() {
+            flushBatches(false);
+        }
+    };
+    private final long[] previousMetrics = new long[Metrics.NAMES.length];
+    private long previousMetricsTime;
 
     /** Keeps track of all current registered clients. */
-    ArrayList<Messenger> mClients = new ArrayList<Messenger>();
+    final List<Client> mClients = new CopyOnWriteArrayList<Client>();
+
+    /** The distinct RATE and RATE_MODE of the registered clients. */
+    private final List<SubscriptionGroup> groups = new CopyOnWriteArrayList<SubscriptionGroup>();
+
+    /** Posted by the ClientSender, which found its client dead. */
+    private final Runnable evictDeadClients = new Runnable() {
+        @Override
+        public void run() {
+            evictDeadClients();
+        }
+    };
 
     private int mId = 1;
 
@@ -106,20 +350,413 @@ public class BFVAdapterService extends Service implements ModelListener,
                 return;
             }
             if (action == Actions.REGISTER_CLIENT) {
-                mClients.add(msg.replyTo);
+                Client client = new Client(msg.replyTo, msg.peekData());
+                client.group = joinGroup(client);
+                client.start(dummyHandler, evictDeadClients);
+                mClients.add(client);
+                scheduleHeartbeat();
+                Metrics.getInstance().set(Metrics.GAUGE_CLIENTS,
+                        mClients.size());
+                if (client.usesSharedMemory()) {
+                    sendSharedChannel(client);
+                }
+                if (client.protocolVersion >= Client.PROTOCOL_V2) {
+                    send(client, createTimeBaseMessage(monotonicTime()));
+                }
                 // Send the current state immediately to all clients
                 // including especially the newly registered one.
                 update(connectionManager);
             } else if (action == Actions.UNREGISTER_CLIENT) {
-                boolean removed = mClients.remove(msg.replyTo);
+                boolean removed = removeClient(msg.replyTo);
                 if (!removed) {
                     Log.e(TAG, "Client could not be removed !");
                 }
+            } else if (action == Actions.SEND_COMMAND) {
+                sendCommand(msg.peekData());
+            } else if (action == Actions.CONFIGURE_VARIO) {
+                configureVario(msg.peekData());
+            } else if (action == Actions.START_RECORDING) {
+                recorder.setEnabled(true);
+            } else if (action == Actions.STOP_RECORDING) {
+                recorder.setEnabled(false);
+            } else if (action == Actions.START_REPLAY) {
+                startReplay(msg.peekData());
+            } else if (action == Actions.CONNECT_TCP) {
+                Bundle data = msg.peekData();
+                if (data == null || data.getString(KEY_TCP_HOST) == null) {
+                    Log.e(TAG, "CONNECT_TCP without HOST");
+                    return;
+                }
+                connectionManager.connectTcp(data.getString(KEY_TCP_HOST),
+                        data.getInt(KEY_TCP_PORT, BFVSimulator.DEFAULT_PORT));
+            } else if (action == Actions.START_SIMULATOR) {
+                startSimulator(msg.peekData());
+            } else if (action == Actions.STOP_SIMULATOR) {
+                stopSimulator();
+            } else if (action == Actions.QUERY_LATENCY) {
+                sendLatency(msg.replyTo, msg.peekData());
+            } else if (action == Actions.CONFIGURE_DISPATCH) {
+                configureDispatch(msg.peekData());
+            } else if (action == Actions.START_AUDIO) {
+                startAudio(msg.peekData());
+            } else if (action == Actions.STOP_AUDIO) {
+                stopAudio();
+            } else if (action == Actions.ADD_DEVICE) {
+                Bundle data = msg.peekData();
+                String address = data == null ? null : data
+                        .getString(KEY_DEVICE_ADDRESS);
+                if (address == null
+                        || connectionManager.addDevice(address) < 0) {
+                    Log.e(TAG, "Illegal device address " + address);
+                }
+            } else if (action == Actions.CONFIGURE_FUSION) {
+                configureFusion(msg.peekData());
+            } else if (action == Actions.REMOVE_DEVICE) {
+                Bundle data = msg.peekData();
+                if (data == null
+                        || !connectionManager.removeDevice(data.getInt(
+                                KEY_DEVICE_ID, -1))) {
+                    Log.e(TAG, "Device could not be removed");
+                }
             } else {
                 connectionManager.performAction(action);
             }
         }
 
+        /** Only the given values are changed. */
+        private void configureVario(Bundle data) {
+            if (data == null) {
+                return;
+            }
+            Model model = Model.getInstance();
+            if (data.containsKey(KEY_QNH)) {
+                model.setQnh(data.getDouble(KEY_QNH));
+            }
+            if (data.containsKey(KEY_MEASUREMENT_VARIANCE)) {
+                model.setMeasurementVariance(data
+                        .getDouble(KEY_MEASUREMENT_VARIANCE));
+            }
+            if (data.containsKey(KEY_PROCESS_VARIANCE)) {
+                model.setProcessVariance(data.getDouble(KEY_PROCESS_VARIANCE));
+            }
+        }
+
+        /**
+         * The command is either given as KEY and VALUE of a setting, or as a
+         * complete COMMAND (e.g. "$BRM 2*").
+         */
+        private void sendCommand(Bundle data) {
+            if (data == null) {
+                return;
+            }
+            byte[] command;
+            String key = data.getString(KEY_COMMAND_KEY);
+            String raw = data.getString(KEY_COMMAND);
+            try {
+                if (key != null) {
+                    command = BFVCommandWriter.settingCommand(key,
+                            data.getInt(KEY_COMMAND_VALUE));
+                } else if (BFVCommandWriter.isValidCommand(raw)) {
+                    command = raw.getBytes();
+                } else {
+                    Log.e(TAG, "Illegal command " + raw);
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Illegal command", e);
+                return;
+            }
+            if (!connectionManager.sendCommand(command)) {
+                Log.e(TAG, "Command could not be sent");
+            }
+        }
+
+        /**
+         * OVERFLOW_POLICY is the name of a SampleRingBuffer.OverflowPolicy:
+         * DROP_OLDEST (default) sends every sample, as long as the clients
+         * don't fall behind by more than the samples kept in the model.
+         * COALESCE only sends the newest sample, if the clients are behind.
+         */
+        private void configureDispatch(Bundle data) {
+            if (data == null || data.getString(KEY_OVERFLOW_POLICY) == null) {
+                return;
+            }
+            try {
+                sampleCursor.setOverflowPolicy(SampleRingBuffer.OverflowPolicy
+                        .valueOf(data.getString(KEY_OVERFLOW_POLICY)));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Illegal overflow policy", e);
+            }
+        }
+
+        /** Only the given values are changed. */
+        private void configureFusion(Bundle data) {
+            if (data == null) {
+                return;
+            }
+            Model model = Model.getInstance();
+            if (data.containsKey(KEY_OUTLIER_THRESHOLD)) {
+                model.getFusion().setOutlierThreshold(
+                        data.getInt(KEY_OUTLIER_THRESHOLD));
+            }
+            if (data.containsKey(KEY_FUSION_ENABLED)) {
+                model.setFusionEnabled(data.getBoolean(KEY_FUSION_ENABLED));
+            }
+        }
+
+        /**
+         * Sends the latency statistics to the client, after exporting them to
+         * a file by a background thread if EXPORT is set. With RESET, the statistics start again.
+         */
+        private void sendLatency(final Messenger client, final Bundle data) {
+            if (data == null || !data.getBoolean(KEY_LATENCY_EXPORT)) {
+                replyLatency(client, data, new Bundle());
+                return;
+            }
+            // The file is written in the background, so the main thread keeps
+            // handling the requests, heartbeats and batches of the clients.
+            final File file = new File(new File(dataDirectory(),
+                    LATENCY_DIRECTORY), "latency-"
+                    + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                            .format(new Date()) + ".txt");
+            new Thread("LatencyExport") {
+                @Override
+                public void run() {
+                    final Bundle b = new Bundle();
+                    try {
+                        Model.getInstance().getLatencyTracker().export(file);
+                        b.putString(KEY_LATENCY_FILE, file.getPath());
+                    } catch (IOException e) {
+                        Log.e(TAG, "Latencies could not be exported", e);
+                    }
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            replyLatency(client, data, b);
+                        }
+                    });
+                }
+            }.start();
+        }
+
+        /** Adds the statistics to b and sends it. Resets them, if asked for. */
+        private void replyLatency(Messenger client, Bundle data, Bundle b) {
+            LatencyTracker tracker = Model.getInstance().getLatencyTracker();
+            for (int i = 0; i < tracker.getStageCount(); i++) {
+                LatencyHistogram histogram = tracker.getHistogram(i);
+                long[] values = new long[LATENCY_PERCENTILES.length + 3];
+                values[0] = histogram.getCount();
+                values[1] = Math.round(histogram.getMean());
+                for (int j = 0; j < LATENCY_PERCENTILES.length; j++) {
+                    values[j + 2] = histogram
+                            .getValueAtPercentile(LATENCY_PERCENTILES[j]);
+                }
+                values[values.length - 1] = histogram.getMax();
+                b.putLongArray(LatencyTracker.STAGE_NAMES[i], values);
+            }
+            if (data != null && data.getBoolean(KEY_LATENCY_RESET)) {
+                tracker.reset();
+            }
+            if (client != null) {
+                Message msg = Message.obtain(dummyHandler,
+                        SEND_LATENCY_UPDATE);
+                msg.setData(b);
+                try {
+                    client.send(msg);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Latencies could not be sent", e);
+                }
+            }
+        }
+
+        /**
+         * Starts the vario tone, or changes its thresholds and volume, if it
+         * is already playing.
+         */
+        private void startAudio(Bundle data) {
+            VarioTonePlayer player = tonePlayer;
+            boolean start = player == null;
+            if (start) {
+                player = new VarioTonePlayer();
+            }
+            VarioToneGenerator generator = player.getGenerator();
+            if (data != null) {
+                generator.setThresholds(data.getInt(KEY_CLIMB_THRESHOLD,
+                        VarioToneGenerator.DEFAULT_CLIMB_THRESHOLD), data
+                        .getInt(KEY_SINK_THRESHOLD,
+                                VarioToneGenerator.DEFAULT_SINK_THRESHOLD));
+                generator.setVolume(data.getInt(KEY_VOLUME,
+                        VarioToneGenerator.DEFAULT_VOLUME));
+            }
+            if (start) {
+                player.start();
+                tonePlayer = player;
+            }
+        }
+
+        /**
+         * Starts a BFVSimulator on the loopback interface, and connects to it
+         * instead of the BFV.
+         */
+        private void startSimulator(Bundle data) {
+            int port = BFVSimulator.DEFAULT_PORT;
+            int rate = BFVSimulator.DEFAULT_RATE;
+            long disconnectAfter = 0;
+            if (data != null) {
+                port = data.getInt(KEY_TCP_PORT, port);
+                rate = data.getInt(KEY_SIMULATOR_RATE, rate);
+                disconnectAfter = data.getLong(KEY_SIMULATOR_DISCONNECT_AFTER,
+                        0);
+            }
+            stopSimulator();
+            try {
+                simulator = new BFVSimulator(port, rate, disconnectAfter);
+            } catch (IOException e) {
+                Log.e(TAG, "Simulator could not be started", e);
+                return;
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Simulator could not be started", e);
+                return;
+            }
+            simulator.start();
+            connectionManager.connectTcp("127.0.0.1", simulator.getPort());
+        }
+
+        /**
+         * Replays the log FILE written by the FlightRecorder, or a generated
+         * stream, if no file is given. SPEED 1 is real time, 0 as fast as
+         * possible.
+         */
+        private void startReplay(Bundle data) {
+            String path = null;
+            double speed = 1;
+            if (data != null) {
+                path = data.getString(KEY_REPLAY_FILE);
+                speed = data.getDouble(KEY_REPLAY_SPEED, 1);
+            }
+            RecordStream records;
+            String name;
+            if (path != null) {
+                File file = new File(path);
+                try {
+                    records = new FlightLogReader(file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Replay file could not be read", e);
+                    return;
+                }
+                name = file.getName();
+            } else {
+                records = new SyntheticRecordStream(-1);
+                name = "Simulation";
+            }
+            connectionManager.startReplay(new ReplaySource(name, records,
+                    speed));
+        }
+
+    }
+
+    private void stopAudio() {
+        VarioTonePlayer player = tonePlayer;
+        if (player != null) {
+            tonePlayer = null;
+            player.shutdown();
+        }
+    }
+
+    private void stopSimulator() {
+        if (simulator != null) {
+            simulator.shutdown();
+            simulator = null;
+        }
+    }
+
+    /** Directory for flight logs and exports. */
+    private File dataDirectory() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            // External storage not available
+            directory = getFilesDir();
+        }
+        return directory;
+    }
+
+    /** Time base of the samples and of protocol version 2. */
+    private static long monotonicTime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private Message createTimeBaseMessage(long time) {
+        Message msg = Message.obtain(dummyHandler, SEND_TIME_BASE,
+                (int) (time >>> 32), (int) time);
+        Bundle b = new Bundle();
+        b.putInt(Client.KEY_PROTOCOL_VERSION, Client.PROTOCOL_V2);
+        b.putLong(KEY_WALL_CLOCK_OFFSET, System.currentTimeMillis()
+                - monotonicTime());
+        msg.setData(b);
+        return msg;
+    }
+
+    /**
+     * Informs the version 2 clients, before the high 32 bits of the times
+     * change.
+     */
+    private void checkTimeBase(long time) {
+        int high = (int) (time >>> 32);
+        if (high != timeBaseHigh) {
+            timeBaseHigh = high;
+            sendToClients(createTimeBaseMessage(time), 0, Client.PROTOCOL_V2);
+        }
+    }
+
+    private void sendSharedChannel(Client client) {
+        try {
+            if (sharedChannel == null) {
+                sharedChannel = new SharedSampleChannel(SHARED_CHANNEL_NAME,
+                        SHARED_CHANNEL_CAPACITY);
+            }
+            // The descriptor is duplicated when the message is sent, and the
+            // ClientSender closes a ParcelFileDescriptor afterwards.
+            Parcelable memory = sharedChannel.openForClient();
+            Message msg = Message.obtain(dummyHandler, SEND_SHARED_MEMORY);
+            Bundle b = new Bundle();
+            b.putParcelable(Client.KEY_SHARED_MEMORY, memory);
+            msg.setData(b);
+            send(client, msg);
+        } catch (IOException e) {
+            Log.e(TAG, "Shared memory could not be created", e);
+        }
+    }
+
+    /**
+     * Closes the shared memory, if no client uses it any more. The clients
+     * keep their own descriptors.
+     */
+    private void releaseSharedChannel() {
+        SharedSampleChannel channel = sharedChannel;
+        if (channel == null) {
+            return;
+        }
+        for (Client client : mClients) {
+            if (client.usesSharedMemory()) {
+                return;
+            }
+        }
+        sharedChannel = null;
+        channel.close();
+    }
+
+    private boolean removeClient(Messenger messenger) {
+        for (int i = 0; i < mClients.size(); i++) {
+            if (mClients.get(i).messenger.equals(messenger)) {
+                mClients.remove(i).stop();
+                pruneGroups();
+                releaseSharedChannel();
+                Metrics.getInstance().set(Metrics.GAUGE_CLIENTS,
+                        mClients.size());
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -128,8 +765,14 @@ public class BFVAdapterService extends Service implements ModelListener,
         mMessenger = new Messenger(new IncomingHandler(mConnectionManager));
         mConnectionManager.addListener(this);
         Model model = Model.getInstance();
-        model.addObserver(this);
+        sampleCursor = model.newCursor();
+        model.addListener(this);
+        recorder = new FlightRecorder(new File(dataDirectory(),
+                FLIGHTS_DIRECTORY));
+        model.setRecorder(recorder);
         dummyHandler = new Handler();
+        previousMetricsTime = SystemClock.elapsedRealtime();
+        dummyHandler.postDelayed(metricsPublisher, METRICS_INTERVAL);
 
         super.onCreate();
     }
@@ -166,7 +809,24 @@ public class BFVAdapterService extends Service implements ModelListener,
     public void onDestroy() {
         mConnectionManager.onFinish();
         Model model = Model.getInstance();
-        model.deleteObservers();
+        model.removeListener(this);
+        recorder.setEnabled(false);
+        model.setRecorder(null);
+        stopSimulator();
+        stopAudio();
+        dummyHandler.removeCallbacks(metricsPublisher);
+        dummyHandler.removeCallbacks(heartbeat);
+        dummyHandler.removeCallbacks(batchFlusher);
+        dummyHandler.removeCallbacks(evictDeadClients);
+        for (Client client : mClients) {
+            client.stop();
+        }
+        mClients.clear();
+        groups.clear();
+        if (sharedChannel != null) {
+            sharedChannel.close();
+            sharedChannel = null;
+        }
 
         NotificationManager mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         mNotificationManager.cancel(mId);
@@ -211,22 +871,118 @@ public class BFVAdapterService extends Service implements ModelListener,
 
     /** Listener for Model changes */
     @Override
-    public void update(Observable observable, Object data) {
-        if (observable instanceof Model) {
-            final Model model = (Model) observable;
-            double battery = model.getBattery();
-            long[] pressureAndTime = model.getPressureAndTime();
-            int pressure = (int) pressureAndTime[0];
-            long time = pressureAndTime[1];
-            if (battery != previousBattery) {
-                previousBattery = battery;
-                Message msg = Message.obtain(dummyHandler, SEND_BATTERY_UPDATE,
-                        (int) (battery * 1000), (int) time);
-                sendToClients(msg);
+    public void update(Model model) {
+        Metrics metrics = Metrics.getInstance();
+        while (sampleCursor.poll(sample)) {
+            if (sample.device == Model.PRIMARY_DEVICE) {
+                deliverSample(model, sample);
+            } else {
+                sendDevicePressure(sample);
             }
-            Message msg = Message.obtain(dummyHandler, SEND_PRESSURE_UPDATE,
-                    pressure, (int) time);
-            sendToClients(msg);
+            metrics.increment(Metrics.SAMPLES_DELIVERED);
+            long delivered = System.nanoTime();
+            LatencyTracker latency = model.getLatencyTracker();
+            latency.record(LatencyTracker.STAGE_DELIVERY,
+                    sample.publishedNanos, delivered);
+            latency.record(LatencyTracker.STAGE_TOTAL, sample.arrivalNanos,
+                    delivered);
+        }
+        long dropped = sampleCursor.getMissed();
+        if (dropped != reportedDropped) {
+            metrics.add(Metrics.DISPATCH_DROPPED, dropped - reportedDropped);
+            reportedDropped = dropped;
+        }
+        long coalesced = sampleCursor.getCoalesced();
+        if (coalesced != reportedCoalesced) {
+            metrics.add(Metrics.DISPATCH_COALESCED, coalesced
+                    - reportedCoalesced);
+            reportedCoalesced = coalesced;
+        }
+    }
+
+    /** Delivers a sample of the primary device. */
+    private void deliverSample(Model model, SampleRingBuffer.Sample sample) {
+        VarioTonePlayer player = tonePlayer;
+        if (player != null) {
+            // First, as the tone is the most sensitive to latency
+            player.setClimb(sample.vario);
+        }
+        long time = sample.time;
+        checkTimeBase(time);
+        double battery = model.getBattery();
+        if (battery != previousBattery) {
+            previousBattery = battery;
+            int milliVolts = (int) (battery * 1000);
+            Message msg = Message.obtain(dummyHandler, SEND_BATTERY_UPDATE,
+                    milliVolts, (int) time);
+            sendChangeToClients(msg, Client.STREAM_BATTERY, milliVolts, time);
+        }
+        sendChangedSensorValues(model, time);
+        SharedSampleChannel channel = sharedChannel;
+        if (channel != null) {
+            channel.publish(sample.pressure, time);
+        }
+        for (SubscriptionGroup group : groups) {
+            group.offer(sample);
+        }
+        sendPressureToClients(sample);
+    }
+
+    /** Sends a sample of an additional device to the STREAM_DEVICES clients. */
+    private void sendDevicePressure(SampleRingBuffer.Sample sample) {
+        Message msg = null;
+        for (Client client : mClients) {
+            if (!client.wants(Client.STREAM_DEVICES)) {
+                continue;
+            }
+            if (msg == null) {
+                msg = Message.obtain(dummyHandler, SEND_DEVICE_PRESSURE,
+                        sample.pressure, (int) sample.time);
+                Bundle b = new Bundle();
+                b.putInt(KEY_DEVICE_ID, sample.device);
+                b.putInt(KEY_DEVICE_VARIO, sample.vario);
+                b.putInt(KEY_DEVICE_ALTITUDE, sample.altitude);
+                b.putInt(KEY_ACCELERATION, sample.acceleration);
+                msg.setData(b);
+            }
+            client.send(msg);
+        }
+    }
+
+    /** Temperature, version and settings are only sent when changed. */
+    private void sendChangedSensorValues(Model model, long time) {
+        double temperature = model.getTemperature();
+        if (!Double.isNaN(temperature) && temperature != previousTemperature) {
+            previousTemperature = temperature;
+            int tenths = (int) Math.round(temperature * 10);
+            Message msg = Message.obtain(dummyHandler,
+                    SEND_TEMPERATURE_UPDATE, tenths, (int) time);
+            sendChangeToClients(msg, Client.STREAM_TEMPERATURE, tenths, time);
+        }
+        int version = model.getVersion();
+        if (version != previousVersion) {
+            previousVersion = version;
+            Message msg = Message.obtain(dummyHandler, SEND_VERSION_UPDATE,
+                    version, (int) time);
+            sendToClients(msg, Client.STREAM_DEVICE);
+        }
+        BFVSettings settings = model.getSettings();
+        if (settings != null && !settings.equals(previousSettings)) {
+            previousSettings = settings;
+            int size = settings.size();
+            String[] keys = new String[size];
+            int[] values = new int[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = settings.getKey(i);
+                values[i] = settings.getValue(i);
+            }
+            Message msg = Message.obtain(dummyHandler, SEND_SETTINGS_UPDATE,
+                    size, (int) time);
+            Bundle b = new Bundle();
+            b.putStringArray(KEY_SETTINGS_KEYS, keys);
+            b.putIntArray(KEY_SETTINGS_VALUES, values);
+            msg.setData(b);
+            sendToClients(msg, Client.STREAM_DEVICE);
         }
     }
 
@@ -236,48 +992,331 @@ public class BFVAdapterService extends Service implements ModelListener,
         // Inform the bounded clients, if any.
         State state = mgr.getState();
         int ordinal = state.ordinal();
+        VarioTonePlayer player = tonePlayer;
+        if (player != null && state != State.CONNECTED) {
+            // No more samples, don't keep beeping with the last climb rate
+            player.setClimb(0);
+        }
+        if (state != State.CONNECTED) {
+            flushBatches(true);
+        }
         long time = System.currentTimeMillis();
         String deviceName = mgr.getDeviceName();
         Log.v(TAG, "Informing clients about status change to status " + state
                 + " (" + ordinal + ")");
         Message msg = Message.obtain(dummyHandler, SEND_STATE_UPDATE, ordinal,
                 (int) time);
+        // Version 2 uses the monotonic time of the samples
+        Message msgV2 = Message.obtain(dummyHandler, SEND_STATE_UPDATE,
+                ordinal, (int) monotonicTime());
         if (deviceName != null) {
             Bundle b = new Bundle();
             b.putCharSequence("DEVICE", deviceName);
             msg.obj = b;
+            msgV2.obj = b;
+        }
+        sendToClients(msg, Client.STREAM_STATE, Client.PROTOCOL_V1,
+                Client.PROTOCOL_V1);
+        sendToClients(msgV2, Client.STREAM_STATE, Client.PROTOCOL_V2);
+        sendDeviceStates(mgr, (int) time);
+    }
+
+    private void sendDeviceStates(BluetoothConnectionManager mgr, int time) {
+        for (DeviceConnection device : mgr.getDevices()) {
+            State state = device.getState();
+            Message msg = Message.obtain(dummyHandler, SEND_DEVICE_STATE,
+                    state == null ? State.INIT.ordinal() : state.ordinal(),
+                    time);
+            Bundle b = new Bundle();
+            b.putInt(KEY_DEVICE_ID, device.getId());
+            b.putString(KEY_DEVICE_NAME, device.getDeviceName());
+            msg.setData(b);
+            sendToClients(msg, Client.STREAM_DEVICES, Client.PROTOCOL_V1,
+                    Client.PROTOCOL_V1);
+            Message msgV2 = Message.obtain(msg);
+            msgV2.arg2 = (int) monotonicTime();
+            sendToClients(msgV2, Client.STREAM_DEVICES, Client.PROTOCOL_V2);
         }
-        sendToClients(msg);
 
     }
 
-    private int sendCount = 0;
+    /**
+     * Sends to the clients, which subscribed the stream (one of the
+     * Client.STREAM_* bits, or 0 for all clients).
+     */
+    private void sendToClients(Message msg, int stream) {
+        sendToClients(msg, stream, Client.PROTOCOL_V1, Client.PROTOCOL_LATEST);
+    }
+
+    /** Sends to the clients with the given protocol version or later. */
+    private void sendToClients(Message msg, int stream, int minVersion) {
+        sendToClients(msg, stream, minVersion, Client.PROTOCOL_LATEST);
+    }
 
-    private void sendToClients(Message msg) {
-        Messenger deadClient = null;
-        sendCount++;
-        if (sendCount % 500 == 0) {
-            Log.v(TAG, "Sending to " + mClients.size() + " clients");
+    private void sendToClients(Message msg, int stream, int minVersion,
+            int maxVersion) {
+        for (Client client : mClients) {
+            if (client.protocolVersion < minVersion
+                    || client.protocolVersion > maxVersion
+                    || !client.wants(stream)) {
+                continue;
+            }
+            client.send(msg);
         }
-        for (Messenger channelToClient : mClients) {
-            try {
-                channelToClient.send(msg);
-            } catch (DeadObjectException e) {
-                Log.e(TAG, "Error sending to client", e);
-                deadClient = channelToClient;
-            } catch (RemoteException e) {
-                Log.e(TAG, "Error sending to client", e);
+    }
+
+    /** Sends to the clients, whose deadband of the stream passes the value. */
+    private void sendChangeToClients(Message msg, int stream, int value,
+            long time) {
+        for (Client client : mClients) {
+            if (client.wants(stream) && client.isChanged(stream, value, time)) {
+                client.send(msg);
+            }
+        }
+    }
+
+    /**
+     * Sends the pressure of the client's SubscriptionGroup to the clients,
+     * which did not ask for batching, and collects it for the batching clients.
+     * The pressure and shared memory messages are coalesced by the
+     * ClientSender, if the client is behind. Shared memory clients are woken
+     * up independent of their RATE, as they read all samples anyway.
+     */
+    private void sendPressureToClients(SampleRingBuffer.Sample sample) {
+        for (Client client : mClients) {
+            if (client.usesSharedMemory()) {
+                SharedSampleChannel channel = sharedChannel;
+                if (channel != null && client.addSharedSample()) {
+                    client.sendSample(Message.obtain(dummyHandler,
+                            SEND_SHARED_SAMPLES, (int) channel.getPublished(),
+                            (int) sample.time), null);
+                }
+                continue;
+            }
+            SubscriptionGroup group = client.group;
+            if (group == null || !(group.emitted || group.varioEmitted)) {
+                // Not yet offered the sample, or suppressed by RATE or DEADBAND
+                continue;
+            }
+            boolean pressure = client.wants(Client.STREAM_PRESSURE);
+            if (client.isBatching()) {
+                if (pressure && group.emitted) {
+                    Message batch = client.addSample(group.pressure,
+                            group.time, dummyHandler, SEND_PRESSURE_BATCH);
+                    if (batch != null) {
+                        client.send(batch);
+                    } else if (client.getBatchWindow() > 0
+                            && client.getBatchCount() == 1) {
+                        // In case no further sample completes the batch
+                        dummyHandler.postDelayed(batchFlusher,
+                                client.getBatchWindow());
+                    }
+                }
+                continue;
+            }
+            Message varioMsg = null;
+            if (client.wantsVario() && group.varioEmitted) {
+                if (group.varioMessage == null) {
+                    group.varioMessage = Message.obtain(dummyHandler,
+                            SEND_VARIO_UPDATE, group.vario, group.altitude);
+                    group.varioMessage.getData().putInt(KEY_ACCELERATION,
+                            group.acceleration);
+                }
+                varioMsg = group.varioMessage;
+            }
+            if (!pressure || !group.emitted) {
+                if (varioMsg != null) {
+                    client.sendSample(varioMsg, null);
+                }
+                continue;
+            }
+            if (group.pressureMessage == null) {
+                group.pressureMessage = Message.obtain(dummyHandler,
+                        SEND_PRESSURE_UPDATE, group.pressure, (int) group.time);
+            }
+            // The vario follows the pressure message, to which it belongs
+            client.sendSample(group.pressureMessage, varioMsg);
+        }
+    }
+
+    /**
+     * @return the group with the client's RATE, RATE_MODE, DEADBAND and
+     *         INTERVAL options, created if needed. Runs on the main thread.
+     */
+    private SubscriptionGroup joinGroup(Client client) {
+        SubscriptionGroup wanted = client.newGroup();
+        for (SubscriptionGroup group : groups) {
+            if (group.matches(wanted)) {
+                group.memberJoined();
+                return group;
+            }
+        }
+        groups.add(wanted);
+        return wanted;
+    }
+
+    /**
+     * Sends SEND_HEARTBEAT to the clients, which got nothing for their
+     * HEARTBEAT interval. Runs on the main thread.
+     */
+    private void sendHeartbeats() {
+        long now = SystemClock.uptimeMillis();
+        Message msg = null;
+        Message msgV2 = null;
+        for (Client client : mClients) {
+            if (client.heartbeat <= 0 || client.nextHeartbeat() > now) {
+                continue;
+            }
+            int state = mConnectionManager.getState().ordinal();
+            if (client.protocolVersion >= Client.PROTOCOL_V2) {
+                if (msgV2 == null) {
+                    msgV2 = Message.obtain(dummyHandler, SEND_HEARTBEAT,
+                            state, (int) monotonicTime());
+                }
+                client.send(msgV2);
+            } else {
+                if (msg == null) {
+                    msg = Message.obtain(dummyHandler, SEND_HEARTBEAT, state,
+                            (int) System.currentTimeMillis());
+                }
+                client.send(msg);
+            }
+        }
+        scheduleHeartbeat();
+    }
+
+    /**
+     * Sends the batches, whose BATCH_WINDOW expired, or all collected ones.
+     * Runs on the main thread.
+     */
+    private void flushBatches(boolean all) {
+        long now = SystemClock.uptimeMillis();
+        for (Client client : mClients) {
+            if (!client.isBatching()) {
+                continue;
+            }
+            Message msg = all ? client.takePendingBatch(dummyHandler,
+                    SEND_PRESSURE_BATCH) : client.takeExpiredBatch(
+                    dummyHandler, SEND_PRESSURE_BATCH, now);
+            if (msg != null) {
+                client.send(msg);
             }
         }
-        if (deadClient != null) {
-            mClients.remove(deadClient);
-            // If this was the last one, stop the service.
-            if (mClients.size() == 0) {
-                Log.v(TAG, "Service stopped. No clients listening");
-                stopSelf();
+    }
+
+    /** Schedules sendHeartbeats for the next heartbeat due, if any. */
+    private void scheduleHeartbeat() {
+        long next = Long.MAX_VALUE;
+        for (Client client : mClients) {
+            if (client.heartbeat > 0) {
+                next = Math.min(next, client.nextHeartbeat());
             }
         }
+        dummyHandler.removeCallbacks(heartbeat);
+        if (next != Long.MAX_VALUE) {
+            long delay = Math.max(MIN_HEARTBEAT_INTERVAL, next
+                    - SystemClock.uptimeMillis());
+            dummyHandler.postDelayed(heartbeat, delay);
+        }
+    }
+
+    /** Removes the groups without clients. Runs on the main thread. */
+    private void pruneGroups() {
+        List<SubscriptionGroup> unused = new ArrayList<SubscriptionGroup>(
+                groups);
+        for (Client client : mClients) {
+            unused.remove(client.group);
+        }
+        groups.removeAll(unused);
+    }
 
+    /** Per second since the last publishMetrics. */
+    private int rate(long[] values, int counter, long elapsed) {
+        long delta = values[counter] - previousMetrics[counter];
+        return (int) (delta * 1000 / elapsed);
+    }
+
+    /** Sends the Metrics to the clients, with the rates since the last call. */
+    private void publishMetrics() {
+        Metrics metrics = Metrics.getInstance();
+        long now = SystemClock.elapsedRealtime();
+        long[] values = new long[metrics.size()];
+        metrics.snapshot(values, now);
+        long elapsed = Math.max(1, now - previousMetricsTime);
+        int received = rate(values, Metrics.SAMPLES_RECEIVED, elapsed);
+        int delivered = rate(values, Metrics.SAMPLES_DELIVERED, elapsed);
+        System.arraycopy(values, 0, previousMetrics, 0, values.length);
+        previousMetricsTime = now;
+        if (mClients.isEmpty()) {
+            return;
+        }
+        Message msg = Message.obtain(dummyHandler, SEND_METRICS_UPDATE,
+                received, delivered);
+        Bundle b = new Bundle();
+        b.putStringArray(KEY_METRICS_NAMES, Metrics.NAMES);
+        b.putLongArray(KEY_METRICS_VALUES, values);
+        msg.setData(b);
+        sendToClients(msg, Client.STREAM_METRICS);
+        if (Model.getInstance().isFusionEnabled()) {
+            publishFusion();
+        }
+    }
+
+    /** Sends the health of the sources of the fusion. */
+    private void publishFusion() {
+        PressureFusion fusion = Model.getInstance().getFusion();
+        Message msg;
+        Bundle b = new Bundle();
+        synchronized (fusion) {
+            int count = fusion.getSourceCount();
+            int[] devices = new int[count];
+            int[] health = new int[count];
+            int[] noise = new int[count];
+            int[] bias = new int[count];
+            for (int i = 0; i < count; i++) {
+                devices[i] = fusion.getDevice(i);
+                health[i] = fusion.getHealth(i).ordinal();
+                noise[i] = (int) Math.round(fusion.getNoise(i) * 100);
+                bias[i] = (int) Math.round(fusion.getBias(i) * 100);
+            }
+            msg = Message.obtain(dummyHandler, SEND_FUSION_UPDATE,
+                    fusion.getUsed(), 0);
+            b.putIntArray(KEY_FUSION_DEVICE_IDS, devices);
+            b.putIntArray(KEY_FUSION_HEALTH, health);
+            b.putIntArray(KEY_FUSION_NOISE, noise);
+            b.putIntArray(KEY_FUSION_BIAS, bias);
+        }
+        msg.setData(b);
+        sendToClients(msg, Client.STREAM_DEVICES);
+    }
+
+    /** @return false, if the client is dead. */
+    private boolean send(Client client, Message msg) {
+        return client.send(msg);
+    }
+
+    /** Removes all dead clients in one pass. Runs on the main thread. */
+    private void evictDeadClients() {
+        List<Client> dead = new ArrayList<Client>();
+        for (Client client : mClients) {
+            if (client.isDead()) {
+                dead.add(client);
+            }
+        }
+        if (dead.isEmpty()) {
+            return;
+        }
+        mClients.removeAll(dead);
+        pruneGroups();
+        releaseSharedChannel();
+        Metrics metrics = Metrics.getInstance();
+        metrics.add(Metrics.CLIENTS_EVICTED, dead.size());
+        metrics.set(Metrics.GAUGE_CLIENTS, mClients.size());
+        // If this was the last one, stop the service.
+        if (mClients.size() == 0) {
+            Log.v(TAG, "Service stopped. No clients listening");
+            stopSelf();
+        }
     }
 
 }
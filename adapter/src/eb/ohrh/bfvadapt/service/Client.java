@@ -0,0 +1,359 @@
+package eb.ohrh.bfvadapt.service;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.SystemClock;
+
+/**
+ * A client registered with REGISTER_CLIENT, together with the options it sent
+ * in the data Bundle of the registration message.
+ *
+ * If the client asks for batching, the pressure samples are collected and sent
+ * as one SEND_PRESSURE_BATCH message, as soon as BATCH_SIZE samples are
+ * collected, or the first collected sample is older than BATCH_WINDOW
+ * milliseconds. The service also flushes a batch, whose window expired
+ * without further samples, and all batches when the connection is lost. The
+ * batch is collected by the dispatcher thread and flushed by the main thread,
+ * so its methods are synchronized.
+ * 
+ * If the client asks for SHARED_MEMORY, it reads the samples from the
+ * {@link SharedSampleChannel} and gets no pressure messages at all, except a
+ * wake up message every SHARED_MEMORY_NOTIFY samples, if requested.
+ * 
+ * PROTOCOL_VERSION selects the message format. Version 1 (default) is the
+ * original format. With version 2, the times are monotonic milliseconds with
+ * 64 bits: The messages still carry the low 32 bits in arg2 (or the samples
+ * array), and the high 32 bits are sent with SEND_TIME_BASE at registration
+ * and whenever they change.
+ * 
+ * With VARIO, the client additionally receives the vertical speed and altitude
+ * computed by the VarioFilter.
+ * 
+ * STREAMS (a combination of the STREAM_* bits) selects the messages the client
+ * receives. Without STREAMS, it receives all except STREAM_VARIO (unless VARIO
+ * is set) and STREAM_DEVICES. RATE reduces the pressure (and vario) updates to the given number
+ * per second, either by passing every n-th sample (RATE_MODE MODE_DECIMATE,
+ * the default) or by averaging (MODE_AVERAGE), see {@link SubscriptionGroup}.
+ * Batches are collected from the reduced samples. Clients using shared
+ * memory get all samples.
+ * 
+ * The DEADBAND options suppress values, which changed less than the given
+ * amount since the last value sent: PRESSURE_DEADBAND in Pascal,
+ * VARIO_DEADBAND in cm/s, BATTERY_DEADBAND in milliVolts and
+ * TEMPERATURE_DEADBAND in 1/10 degrees. The pressure is sent anyway after
+ * PRESSURE_INTERVAL milliseconds, the vario after VARIO_INTERVAL (by default
+ * the PRESSURE_INTERVAL). A client joining a group gets the current values
+ * with the next sample. With HEARTBEAT, the client gets a
+ * SEND_HEARTBEAT message, if nothing was sent for HEARTBEAT milliseconds, so
+ * it can tell a quiet service from a dead one.
+ * 
+ * The messages are sent by the client's own {@link ClientSender}.
+ */
+class Client {
+    /** Keys of the registration options */
+    static final String KEY_BATCH_SIZE = "BATCH_SIZE";
+    static final String KEY_BATCH_WINDOW = "BATCH_WINDOW";
+    static final String KEY_SHARED_MEMORY = "SHARED_MEMORY";
+    static final String KEY_SHARED_MEMORY_NOTIFY = "SHARED_MEMORY_NOTIFY";
+    static final String KEY_PROTOCOL_VERSION = "PROTOCOL_VERSION";
+    static final String KEY_VARIO = "VARIO";
+    static final String KEY_STREAMS = "STREAMS";
+    static final String KEY_RATE = "RATE";
+    static final String KEY_RATE_MODE = "RATE_MODE";
+    static final String KEY_PRESSURE_DEADBAND = "PRESSURE_DEADBAND";
+    static final String KEY_PRESSURE_INTERVAL = "PRESSURE_INTERVAL";
+    static final String KEY_VARIO_DEADBAND = "VARIO_DEADBAND";
+    static final String KEY_VARIO_INTERVAL = "VARIO_INTERVAL";
+    static final String KEY_BATTERY_DEADBAND = "BATTERY_DEADBAND";
+    static final String KEY_TEMPERATURE_DEADBAND = "TEMPERATURE_DEADBAND";
+    static final String KEY_HEARTBEAT = "HEARTBEAT";
+    /** Key of the packed samples (pressure, time, pressure, time, ...) */
+    static final String KEY_SAMPLES = "SAMPLES";
+
+    static final int PROTOCOL_V1 = 1;
+    static final int PROTOCOL_V2 = 2;
+    static final int PROTOCOL_LATEST = PROTOCOL_V2;
+
+    /** Bits of STREAMS */
+    static final int STREAM_PRESSURE = 1;
+    static final int STREAM_BATTERY = 2;
+    static final int STREAM_TEMPERATURE = 4;
+    static final int STREAM_VARIO = 8;
+    static final int STREAM_STATE = 16;
+    /** Version and settings of the BFV */
+    static final int STREAM_DEVICE = 32;
+    static final int STREAM_METRICS = 64;
+    /** Pressure and state of each device added with ADD_DEVICE */
+    static final int STREAM_DEVICES = 128;
+    private static final int STREAMS_DEFAULT = STREAM_PRESSURE
+            | STREAM_BATTERY | STREAM_TEMPERATURE | STREAM_STATE
+            | STREAM_DEVICE | STREAM_METRICS;
+
+    /** 5 seconds at 50 Hz */
+    private static final int MAX_BATCH_SIZE = 250;
+
+    final Messenger messenger;
+    final int protocolVersion;
+    private final int streams;
+    final int rate;
+    final int rateMode;
+    final int pressureDeadband;
+    final long pressureInterval;
+    final int varioDeadband;
+    final long varioInterval;
+    /** Group sharing the decimation of the samples, set at registration */
+    volatile SubscriptionGroup group;
+    /* Only used by the thread dispatching the samples */
+    private final Deadband batteryDeadband;
+    private final Deadband temperatureDeadband;
+    /** ms, 0 for no heartbeat */
+    final long heartbeat;
+    /** SystemClock.uptimeMillis() of the last message queued */
+    private volatile long lastSent;
+    private final int batchSize;
+    private final long batchWindow;
+    private final int[] batch;
+    private int batchCount;
+    private long batchStart;
+    /** SystemClock.uptimeMillis() of the first collected sample */
+    private long batchStartUptime;
+    private final boolean sharedMemory;
+    private final int sharedMemoryNotify;
+    private int sharedSamples;
+    private ClientSender sender;
+
+    Client(Messenger messenger, Bundle options) {
+        this.messenger = messenger;
+        int size = 0;
+        long window = 0;
+        boolean shared = false;
+        int notify = 0;
+        int version = PROTOCOL_V1;
+        boolean withVario = false;
+        int selected = STREAMS_DEFAULT;
+        int r = 0;
+        int m = SubscriptionGroup.MODE_DECIMATE;
+        int pressureBand = 0;
+        long interval = 0;
+        int varioBand = 0;
+        long varioPeriod = 0;
+        int batteryBand = 0;
+        int temperatureBand = 0;
+        long beat = 0;
+        if (options != null) {
+            pressureBand = options.getInt(KEY_PRESSURE_DEADBAND, 0);
+            interval = options.getInt(KEY_PRESSURE_INTERVAL, 0);
+            varioBand = options.getInt(KEY_VARIO_DEADBAND, 0);
+            varioPeriod = options.getInt(KEY_VARIO_INTERVAL, (int) interval);
+            batteryBand = options.getInt(KEY_BATTERY_DEADBAND, 0);
+            temperatureBand = options.getInt(KEY_TEMPERATURE_DEADBAND, 0);
+            beat = options.getInt(KEY_HEARTBEAT, 0);
+            withVario = options.getBoolean(KEY_VARIO, false);
+            selected = options.getInt(KEY_STREAMS, STREAMS_DEFAULT);
+            r = options.getInt(KEY_RATE, 0);
+            m = options.getInt(KEY_RATE_MODE, m);
+            version = options.getInt(KEY_PROTOCOL_VERSION, PROTOCOL_V1);
+            size = Math.min(options.getInt(KEY_BATCH_SIZE, 0), MAX_BATCH_SIZE);
+            window = options.getInt(KEY_BATCH_WINDOW, 0);
+            shared = options.getBoolean(KEY_SHARED_MEMORY, false);
+            notify = options.getInt(KEY_SHARED_MEMORY_NOTIFY, 0);
+        }
+        protocolVersion = Math.max(PROTOCOL_V1,
+                Math.min(version, PROTOCOL_LATEST));
+        streams = withVario ? selected | STREAM_VARIO : selected;
+        rate = Math.max(0, r);
+        // Full rate has nothing to average
+        rateMode = rate > 0 && m == SubscriptionGroup.MODE_AVERAGE ? m
+                : SubscriptionGroup.MODE_DECIMATE;
+        pressureDeadband = Math.max(0, pressureBand);
+        pressureInterval = Math.max(0, interval);
+        varioDeadband = Math.max(0, varioBand);
+        varioInterval = Math.max(0, varioPeriod);
+        batteryDeadband = new Deadband(batteryBand, 0);
+        temperatureDeadband = new Deadband(temperatureBand, 0);
+        heartbeat = Math.max(0, beat);
+        lastSent = SystemClock.uptimeMillis();
+        sharedMemory = shared;
+        sharedMemoryNotify = notify;
+        if (size <= 1 && window <= 0) {
+            // No batching
+            batchSize = 0;
+            batchWindow = 0;
+            batch = null;
+        } else {
+            batchSize = size > 1 ? size : MAX_BATCH_SIZE;
+            batchWindow = window;
+            batch = new int[2 * batchSize];
+        }
+    }
+
+    /**
+     * Starts the sender. If the client is found dead, evict is posted to the
+     * handler.
+     */
+    void start(Handler handler, Runnable evict) {
+        sender = new ClientSender(messenger, handler, evict);
+        sender.start();
+    }
+
+    void stop() {
+        sender.shutdown();
+    }
+
+    boolean isDead() {
+        return sender.isDead();
+    }
+
+    /**
+     * Queues a copy of the message (so the same message can be sent to
+     * several clients).
+     * 
+     * @return false, if the client is dead.
+     */
+    boolean send(Message msg) {
+        lastSent = SystemClock.uptimeMillis();
+        return sender.enqueue(Message.obtain(msg));
+    }
+
+    /**
+     * Queues a copy of a sample message, which replaces the previous one, if
+     * that was not yet sent.
+     * 
+     * @param follower
+     *            Message sent right after the sample, or null.
+     * @return false, if the client is dead.
+     */
+    boolean sendSample(Message msg, Message follower) {
+        lastSent = SystemClock.uptimeMillis();
+        return sender.enqueueSample(Message.obtain(msg),
+                follower == null ? null : Message.obtain(follower));
+    }
+
+    boolean wantsVario() {
+        return wants(STREAM_VARIO);
+    }
+
+    /**
+     * @param stream
+     *            one of the STREAM_* bits, or 0 for messages sent to every
+     *            client.
+     */
+    boolean wants(int stream) {
+        return stream == 0 || (streams & stream) != 0;
+    }
+
+    /**
+     * Applies the deadband of the stream.
+     * 
+     * @return true, if the value must be sent.
+     */
+    boolean isChanged(int stream, int value, long time) {
+        if (stream == STREAM_BATTERY) {
+            return batteryDeadband.check(value, time);
+        } else if (stream == STREAM_TEMPERATURE) {
+            return temperatureDeadband.check(value, time);
+        }
+        return true;
+    }
+
+    /** SystemClock.uptimeMillis(), when the next heartbeat is due. */
+    long nextHeartbeat() {
+        return lastSent + heartbeat;
+    }
+
+    /** Creates a SubscriptionGroup with the options of the client. */
+    SubscriptionGroup newGroup() {
+        return new SubscriptionGroup(rate, rateMode, pressureDeadband,
+                pressureInterval, varioDeadband, varioInterval);
+    }
+
+    boolean usesSharedMemory() {
+        return sharedMemory;
+    }
+
+    /**
+     * Counts a sample written to the shared memory.
+     *
+     * @return true, if the client must be woken up.
+     */
+    boolean addSharedSample() {
+        if (sharedMemoryNotify <= 0) {
+            return false;
+        }
+        sharedSamples++;
+        if (sharedSamples >= sharedMemoryNotify) {
+            sharedSamples = 0;
+            return true;
+        }
+        return false;
+    }
+
+    boolean isBatching() {
+        return batch != null;
+    }
+
+    /**
+     * Collects a sample of a batching client. Checking and taking the batch
+     * is one step, so a flush on the main thread can't empty it in between.
+     *
+     * @return the batch message, if the batch is complete, else null.
+     */
+    synchronized Message addSample(int pressure, long time, Handler handler,
+            int what) {
+        if (batchCount == 0) {
+            batchStart = time;
+            batchStartUptime = SystemClock.uptimeMillis();
+        }
+        batch[2 * batchCount] = pressure;
+        batch[2 * batchCount + 1] = (int) time;
+        batchCount++;
+        if (batchCount >= batchSize
+                || (batchWindow > 0 && time - batchStart >= batchWindow)) {
+            return takeBatch(handler, what);
+        }
+        return null;
+    }
+
+    long getBatchWindow() {
+        return batchWindow;
+    }
+
+    synchronized int getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Takes the batch, if its BATCH_WINDOW expired.
+     * 
+     * @return null, if not expired or empty.
+     */
+    synchronized Message takeExpiredBatch(Handler handler, int what, long now) {
+        if (batchWindow <= 0 || now - batchStartUptime < batchWindow) {
+            return null;
+        }
+        return takePendingBatch(handler, what);
+    }
+
+    /** @return null, if no samples were collected. */
+    synchronized Message takePendingBatch(Handler handler, int what) {
+        if (batchCount == 0) {
+            return null;
+        }
+        return takeBatch(handler, what);
+    }
+
+    /** Creates the batch message from the collected samples and resets the batch. */
+    private Message takeBatch(Handler handler, int what) {
+        int[] samples = new int[2 * batchCount];
+        System.arraycopy(batch, 0, samples, 0, samples.length);
+        Message msg = Message.obtain(handler, what, batchCount,
+                samples[samples.length - 1]);
+        Bundle b = new Bundle();
+        b.putIntArray(KEY_SAMPLES, samples);
+        msg.setData(b);
+        batchCount = 0;
+        return msg;
+    }
+}
@@ -0,0 +1,323 @@
+package eb.ohrh.bfvadapt.service;
+
+import java.io.IOException;
+
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.util.Log;
+import eb.ohrh.bfvadapt.metrics.Metrics;
+
+/**
+ * Outbox and sender thread of one client. The service only puts the messages
+ * into the outbox, so a client, which is slow to receive, does not delay the
+ * other clients nor the service.
+ *
+ * All messages are sent in the order they were queued. Only the newest sample
+ * (pressure or shared memory notification, followed by its vario message, if
+ * any) is coalesced: If the previous sample was not yet sent, it is removed
+ * from the outbox, and the number of removed samples is sent with the next one
+ * as SKIPPED. If the outbox is full, the oldest pressure batch (or the
+ * pending sample) is dropped. Other messages (state, settings, time base, ...)
+ * are never dropped, the outbox grows for them instead. They are rare, and a
+ * client, which does not receive at all, is found dead.
+ *
+ * If the client is found dead, the sender stops and the evict task is posted
+ * to the service's handler. A stopped sender discards the messages still
+ * queued and the ones enqueued later, closing their shared memory descriptors.
+ */
+class ClientSender extends Thread {
+    private static final String TAG = ClientSender.class.getSimpleName();
+
+    /** Key of the number of samples replaced by a newer one */
+    static final String KEY_SKIPPED = "SKIPPED";
+
+    private static final int CAPACITY = 32;
+
+    private final Messenger messenger;
+    private final Handler handler;
+    private final Runnable evict;
+    private final Metrics metrics = Metrics.getInstance();
+
+    /*
+     * Guarded by this. The outbox is a ring, with null for the messages
+     * removed. count includes these holes.
+     */
+    private Message[] queue = new Message[CAPACITY];
+    private int head;
+    private int count;
+    /* Index of the sample not yet sent and its follower, or -1 */
+    private int sampleIndex = -1;
+    private int followerIndex = -1;
+    private int skipped;
+    private boolean stopped;
+
+    private volatile boolean dead;
+
+    ClientSender(Messenger messenger, Handler handler, Runnable evict) {
+        super(TAG);
+        this.messenger = messenger;
+        this.handler = handler;
+        this.evict = evict;
+        setDaemon(true);
+    }
+
+    boolean isDead() {
+        return dead;
+    }
+
+    /**
+     * Queues the message, which must not be sent to other clients.
+     * 
+     * @return false, if the client is dead.
+     */
+    synchronized boolean enqueue(Message msg) {
+        if (stopped) {
+            closeDescriptor(msg);
+            return !dead;
+        }
+        makeRoom(1);
+        append(msg);
+        notify();
+        return !dead;
+    }
+
+    /**
+     * Replaces the sample not yet sent, if any.
+     * 
+     * @param follower
+     *            Sent right after the sample (may be null).
+     * @return false, if the client is dead.
+     */
+    synchronized boolean enqueueSample(Message msg, Message follower) {
+        if (stopped) {
+            return !dead;
+        }
+        if (sampleIndex >= 0) {
+            removeSample();
+            skipped++;
+            metrics.increment(Metrics.CLIENT_COALESCED);
+        }
+        makeRoom(follower == null ? 1 : 2);
+        sampleIndex = append(msg);
+        if (follower != null) {
+            followerIndex = append(follower);
+        }
+        notify();
+        return !dead;
+    }
+
+    synchronized void shutdown() {
+        stopped = true;
+        notify();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Message msg = null;
+            synchronized (this) {
+                while (!stopped && (msg = take()) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        stopped = true;
+                    }
+                }
+                if (stopped) {
+                    discardAll();
+                    return;
+                }
+            }
+            boolean alive = send(msg);
+            closeDescriptor(msg);
+            if (!alive) {
+                synchronized (this) {
+                    dead = true;
+                    stopped = true;
+                    discardAll();
+                }
+                handler.post(evict);
+                return;
+            }
+        }
+    }
+
+    /** @return the next message to send, or null if there is none. */
+    private Message take() {
+        while (count > 0) {
+            int index = head;
+            Message msg = queue[index];
+            queue[index] = null;
+            head = (head + 1) % queue.length;
+            count--;
+            if (msg == null) {
+                continue;
+            }
+            if (index == sampleIndex) {
+                if (skipped > 0) {
+                    msg.getData().putInt(KEY_SKIPPED, skipped);
+                    skipped = 0;
+                }
+                // The follower is sent next like any other message
+                sampleIndex = -1;
+                followerIndex = -1;
+            }
+            return msg;
+        }
+        return null;
+    }
+
+    /** Empties the outbox, closing the descriptors of the messages. */
+    private void discardAll() {
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % queue.length;
+            if (queue[index] != null) {
+                closeDescriptor(queue[index]);
+                queue[index] = null;
+            }
+        }
+        count = 0;
+        sampleIndex = -1;
+        followerIndex = -1;
+    }
+
+    /** @return the index of the message. */
+    private int append(Message msg) {
+        int index = (head + count) % queue.length;
+        queue[index] = msg;
+        count++;
+        return index;
+    }
+
+    private void removeSample() {
+        queue[sampleIndex] = null;
+        if (followerIndex >= 0) {
+            queue[followerIndex] = null;
+        }
+        sampleIndex = -1;
+        followerIndex = -1;
+    }
+
+    /** Makes room for the given number of messages. */
+    private void makeRoom(int needed) {
+        if (queue.length - count >= needed) {
+            return;
+        }
+        compact();
+        while (queue.length - count < needed && dropOldest()) {
+            compact();
+        }
+        if (queue.length - count < needed) {
+            grow();
+        }
+    }
+
+    /**
+     * Drops the pending sample or the oldest batch, whichever comes first.
+     * 
+     * @return false, if there is nothing which may be dropped.
+     */
+    private boolean dropOldest() {
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % queue.length;
+            if (index == sampleIndex) {
+                removeSample();
+                skipped++;
+            } else if (isBatch(queue[index])) {
+                queue[index] = null;
+            } else {
+                continue;
+            }
+            metrics.increment(Metrics.CLIENT_DROPPED);
+            return true;
+        }
+        return false;
+    }
+
+    /** A pressure batch is the only message carrying SAMPLES. */
+    private static boolean isBatch(Message msg) {
+        Bundle data = msg.peekData();
+        return data != null && data.containsKey(Client.KEY_SAMPLES);
+    }
+
+    /** Removes the holes, keeping the order. */
+    private void compact() {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int from = (head + i) % queue.length;
+            Message msg = queue[from];
+            if (msg == null) {
+                continue;
+            }
+            int to = (head + kept) % queue.length;
+            if (to != from) {
+                queue[to] = msg;
+                queue[from] = null;
+                if (from == sampleIndex) {
+                    sampleIndex = to;
+                } else if (from == followerIndex) {
+                    followerIndex = to;
+                }
+            }
+            kept++;
+        }
+        count = kept;
+    }
+
+    /** Doubles the size of the outbox. Only called without holes. */
+    private void grow() {
+        Message[] grown = new Message[queue.length * 2];
+        for (int i = 0; i < count; i++) {
+            int from = (head + i) % queue.length;
+            grown[i] = queue[from];
+            if (from == sampleIndex) {
+                sampleIndex = i;
+            } else if (from == followerIndex) {
+                followerIndex = i;
+            }
+        }
+        queue = grown;
+        head = 0;
+    }
+
+    /**
+     * Closes the descriptor of the shared memory (only sent with
+     * SEND_SHARED_MEMORY), which was duplicated for the client, when the
+     * message was sent or discarded.
+     */
+    private static void closeDescriptor(Message msg) {
+        Bundle data = msg.peekData();
+        if (data == null) {
+            return;
+        }
+        // A SharedMemory belongs to the channel
+        Parcelable memory = data.getParcelable(Client.KEY_SHARED_MEMORY);
+        if (memory instanceof ParcelFileDescriptor) {
+            try {
+                ((ParcelFileDescriptor) memory).close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /** @return false, if the client is dead. */
+    private boolean send(Message msg) {
+        try {
+            messenger.send(msg);
+        } catch (DeadObjectException e) {
+            Log.e(TAG, "Error sending to client", e);
+            metrics.increment(Metrics.SEND_FAILURES);
+            return false;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error sending to client", e);
+            metrics.increment(Metrics.SEND_FAILURES);
+        }
+        return true;
+    }
+}
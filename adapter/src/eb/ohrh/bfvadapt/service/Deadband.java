@@ -0,0 +1,38 @@
+package eb.ohrh.bfvadapt.service;
+
+/**
+ * Suppresses values, which did not change by at least the threshold since the
+ * last value passed. A value is passed anyway, if the last one passed is older
+ * than the interval. Threshold 0 passes all values, interval 0 never passes
+ * an unchanged value.
+ */
+class Deadband {
+
+    private final int threshold;
+    private final long interval;
+    private boolean passed;
+    private int lastValue;
+    private long lastTime;
+
+    Deadband(int threshold, long interval) {
+        this.threshold = Math.max(0, threshold);
+        this.interval = Math.max(0, interval);
+    }
+
+    /** Passes the next value in any case. */
+    void reset() {
+        passed = false;
+    }
+
+    /** @return true, if the value must be sent. */
+    boolean check(int value, long time) {
+        if (passed && Math.abs((long) value - lastValue) < threshold
+                && (interval == 0 || time - lastTime < interval)) {
+            return false;
+        }
+        passed = true;
+        lastValue = value;
+        lastTime = time;
+        return true;
+    }
+}
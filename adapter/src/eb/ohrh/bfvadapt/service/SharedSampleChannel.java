@@ -0,0 +1,428 @@
+package eb.ohrh.bfvadapt.service;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.Build;
+import android.os.MemoryFile;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+
+/**
+ * Ring buffer of pressure samples in shared memory (ashmem), which is shared
+ * with the clients. The service writes every sample into the memory, and the
+ * clients read it from there, so the samples are never marshalled by the
+ * binder. Nothing is written to a file, and the memory is freed, when the
+ * service and all clients closed it.
+ *
+ * From Android 8.1 (API 27) the memory is a SharedMemory, which is mapped by
+ * the service and the clients, so writing and reading a sample are plain
+ * memory accesses. The app is compiled against API 17, so SharedMemory is
+ * called by reflection; it is a public API and not affected by the
+ * restrictions of hidden APIs. From API 13 to 26 the memory is a
+ * {@link MemoryFile}, whose descriptor is only available by the hidden
+ * getFileDescriptor. Each write is then a system call, and so is each read of
+ * the clients, which can't map the descriptor. Before API 13 there is no
+ * shared memory.
+ *
+ * The clients get the memory with the message SEND_SHARED_MEMORY (see
+ * BFVAdapterService): the SharedMemory itself, or a read only
+ * ParcelFileDescriptor of the MemoryFile.
+ *
+ * Layout (big endian):
+ *
+ * <pre>
+ *  0: int  MAGIC ("BFVS")
+ *  4: int  VERSION
+ *  8: int  capacity (number of slots)
+ * 12: int  slot size in bytes
+ * 16: long sequence number of the last published sample (-1 if none)
+ * 64: slots, each: long sequence, long time, int pressure, int unused
+ * </pre>
+ *
+ * A slot's sequence is set to -1 while it is written. A reader must read the
+ * sequence before and after the values, and discard the values if it changed
+ * (see {@link Reader}). The writer puts a fence between the writes of the
+ * sequence and the values, the reader between its reads. The Java memory model
+ * says nothing about memory shared with another process, and Android 17 has
+ * no explicit fences. The fence is a volatile write followed by a volatile
+ * read, which ART (and HotSpot) compile to a full barrier of the processor
+ * (dmb on ARM). No memory access, nor native call, is moved across it. The
+ * seqlock relies on this, not on a guarantee of the language.
+ */
+public class SharedSampleChannel {
+    public static final int MAGIC = 0x42465653; // "BFVS"
+    public static final int VERSION = 1;
+
+    /** Android 8.1 */
+    private static final int SHARED_MEMORY_API = 27;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_SLOT_SIZE = 12;
+    private static final int OFFSET_PUBLISHED = 16;
+
+    private static final int SLOT_SIZE = 24;
+    private static final int SLOT_SEQUENCE = 0;
+    private static final int SLOT_TIME = 8;
+    private static final int SLOT_PRESSURE = 16;
+
+    private static final long BUSY = -1;
+
+    private final int mask;
+    /* Either the mapped memory, or the MemoryFile and its descriptor */
+    private ByteBuffer mapped;
+    /** The android.os.SharedMemory of the mapping, if any */
+    private Object sharedMemory;
+    private MemoryFile memory;
+    private FileDescriptor fd;
+    /* Values of the slot and a sequence number, as written to the MemoryFile */
+    private final ByteBuffer values = ByteBuffer.allocate(SLOT_SIZE);
+    private final ByteBuffer sequenceBytes = ByteBuffer.allocate(8);
+    private long published = -1;
+    private boolean closed;
+
+    /** See fullFence() */
+    private volatile long fence;
+
+    /**
+     * Creates the shared memory.
+     *
+     * @param capacity
+     *            Number of samples in the ring. Must be a power of 2.
+     */
+    public SharedSampleChannel(String name, int capacity) throws IOException {
+        this.mask = checkCapacity(capacity);
+        int size = size(capacity);
+        if (Build.VERSION.SDK_INT >= SHARED_MEMORY_API) {
+            mapSharedMemory(name, size);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2) {
+            openMemoryFile(name, size);
+        } else {
+            throw new IOException("Shared memory needs API 13");
+        }
+        writeHeader(capacity);
+    }
+
+    /**
+     * Writes into memory mapped by the caller, e.g. a mapped file in tests.
+     *
+     * @param mapped
+     *            At least size(capacity) bytes.
+     */
+    SharedSampleChannel(ByteBuffer mapped, int capacity) throws IOException {
+        this.mask = checkCapacity(capacity);
+        this.mapped = mapped;
+        writeHeader(capacity);
+    }
+
+    /** Bytes needed for the given capacity */
+    static int size(int capacity) {
+        return HEADER_SIZE + capacity * SLOT_SIZE;
+    }
+
+    private static int checkCapacity(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException(
+                    "Capacity must be a power of 2: " + capacity);
+        }
+        return capacity - 1;
+    }
+
+    private void mapSharedMemory(String name, int size) throws IOException {
+        try {
+            Class<?> type = Class.forName("android.os.SharedMemory");
+            sharedMemory = type.getMethod("create", String.class, int.class)
+                    .invoke(null, name, size);
+            mapped = (ByteBuffer) type.getMethod("mapReadWrite").invoke(
+                    sharedMemory);
+        } catch (Exception e) {
+            closeSharedMemory();
+            throw new IOException("Shared memory could not be mapped: " + e);
+        }
+    }
+
+    private void openMemoryFile(String name, int size) throws IOException {
+        memory = new MemoryFile(name, size);
+        try {
+            // Hidden, but the only way to share a MemoryFile before API 27
+            Method getFd = MemoryFile.class.getMethod("getFileDescriptor");
+            fd = (FileDescriptor) getFd.invoke(memory);
+        } catch (Exception e) {
+            memory.close();
+            throw new IOException("No descriptor of the shared memory: " + e);
+        }
+    }
+
+    private void writeHeader(int capacity) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(OFFSET_MAGIC, MAGIC);
+        header.putInt(OFFSET_VERSION, VERSION);
+        header.putInt(OFFSET_CAPACITY, capacity);
+        header.putInt(OFFSET_SLOT_SIZE, SLOT_SIZE);
+        header.putLong(OFFSET_PUBLISHED, published);
+        if (mapped != null) {
+            for (int i = 0; i < HEADER_SIZE; i++) {
+                mapped.put(i, header.get(i));
+            }
+        } else {
+            memory.writeBytes(header.array(), 0, 0, HEADER_SIZE);
+        }
+        for (int i = 0; i < capacity; i++) {
+            writeLong(HEADER_SIZE + i * SLOT_SIZE + SLOT_SEQUENCE, BUSY);
+        }
+    }
+
+    /**
+     * Must only be called by one thread. Ignored after close.
+     */
+    public synchronized void publish(int pressure, long time) {
+        if (closed) {
+            return;
+        }
+        long sequence = published + 1;
+        int slot = HEADER_SIZE + (int) (sequence & mask) * SLOT_SIZE;
+        try {
+            writeLong(slot + SLOT_SEQUENCE, BUSY);
+            fullFence();
+            if (mapped != null) {
+                mapped.putLong(slot + SLOT_TIME, time);
+                mapped.putInt(slot + SLOT_PRESSURE, pressure);
+            } else {
+                values.putLong(SLOT_TIME, time);
+                values.putInt(SLOT_PRESSURE, pressure);
+                memory.writeBytes(values.array(), SLOT_TIME, slot + SLOT_TIME,
+                        SLOT_SIZE - SLOT_TIME);
+            }
+            fullFence();
+            writeLong(slot + SLOT_SEQUENCE, sequence);
+            fullFence();
+            writeLong(OFFSET_PUBLISHED, sequence);
+        } catch (IOException e) {
+            // Only if closed
+            return;
+        }
+        published = sequence;
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * The memory to be sent to a client: the SharedMemory, which is
+     * duplicated when it is sent, or a duplicated descriptor of the
+     * MemoryFile, which the caller must close, once it was sent.
+     */
+    public Parcelable openForClient() throws IOException {
+        if (sharedMemory != null) {
+            return (Parcelable) sharedMemory;
+        }
+        if (fd == null) {
+            throw new IOException("Memory not shared");
+        }
+        return ParcelFileDescriptor.dup(fd);
+    }
+
+    /** Frees the memory, as soon as the clients closed their descriptors. */
+    public synchronized void close() {
+        closed = true;
+        if (memory != null) {
+            memory.close();
+        }
+        closeSharedMemory();
+    }
+
+    private void closeSharedMemory() {
+        if (sharedMemory == null) {
+            return;
+        }
+        try {
+            Class<?> type = sharedMemory.getClass();
+            if (mapped != null) {
+                type.getMethod("unmap", ByteBuffer.class).invoke(null, mapped);
+            }
+            type.getMethod("close").invoke(sharedMemory);
+        } catch (Exception e) {
+            // Freed by the garbage collector then
+        }
+        mapped = null;
+        sharedMemory = null;
+    }
+
+    private void writeLong(int offset, long value) throws IOException {
+        if (mapped != null) {
+            mapped.putLong(offset, value);
+            return;
+        }
+        sequenceBytes.putLong(0, value);
+        memory.writeBytes(sequenceBytes.array(), 0, offset, 8);
+    }
+
+    /**
+     * A volatile write followed by a volatile read, which is compiled to a
+     * full barrier (see the class comment).
+     */
+    private long fullFence() {
+        fence = published;
+        return fence;
+    }
+
+    /**
+     * Reads the samples from the shared memory. This is what a client does
+     * with the memory received with SEND_SHARED_MEMORY. A mapped memory (e.g.
+     * of SharedMemory.mapReadOnly) is read without any system call. A
+     * descriptor of a MemoryFile can't be mapped by FileChannel (its size is
+     * unknown to the file system), so its values are read by positional
+     * reads, which are system calls.
+     */
+    public static class Reader {
+        private final ByteBuffer mapped;
+        private final FileChannel channel;
+        private final ByteBuffer slot;
+        private final ByteBuffer sequence = ByteBuffer.allocate(8);
+        private final int capacity;
+        private final int slotSize;
+        private long next;
+        private long missed;
+
+        /** See fullFence() */
+        private volatile long fence;
+
+        /** Values of the last sample read by poll. */
+        public int pressure;
+        public long time;
+
+        /** Reads the mapped memory. */
+        public Reader(ByteBuffer mapped) throws IOException {
+            this(mapped, null);
+        }
+
+        /** Reads the memory by positional reads of the descriptor. */
+        public Reader(FileDescriptor fd) throws IOException {
+            this(null, new FileInputStream(fd).getChannel());
+        }
+
+        private Reader(ByteBuffer mapped, FileChannel channel)
+                throws IOException {
+            this.mapped = mapped;
+            this.channel = channel;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            read(header, 0);
+            if (header.getInt(OFFSET_MAGIC) != MAGIC
+                    || header.getInt(OFFSET_VERSION) != VERSION) {
+                throw new IOException("Not a sample channel of version "
+                        + VERSION);
+            }
+            capacity = header.getInt(OFFSET_CAPACITY);
+            slotSize = header.getInt(OFFSET_SLOT_SIZE);
+            slot = ByteBuffer.allocate(slotSize);
+            next = header.getLong(OFFSET_PUBLISHED) + 1;
+        }
+
+        /**
+         * Reads the next sample into pressure and time.
+         *
+         * @return false, if there is no new sample.
+         */
+        public boolean poll() throws IOException {
+            long last = readLong(OFFSET_PUBLISHED);
+            fullFence();
+            while (next <= last) {
+                long oldest = last - capacity + 1;
+                if (next < oldest) {
+                    missed += oldest - next;
+                    next = oldest;
+                }
+                if (readSlot(HEADER_SIZE + (int) (next % capacity) * slotSize)) {
+                    next++;
+                    return true;
+                }
+                // Overwritten while reading
+                missed++;
+                next++;
+                last = readLong(OFFSET_PUBLISHED);
+                fullFence();
+            }
+            return false;
+        }
+
+        /** Samples overwritten before they were read */
+        public long getMissed() {
+            return missed;
+        }
+
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        /**
+         * Reads the values of the sample next at the offset.
+         *
+         * @return false, if the slot holds another sample.
+         */
+        private boolean readSlot(int offset) throws IOException {
+            int p;
+            long t;
+            if (mapped != null) {
+                if (mapped.getLong(offset + SLOT_SEQUENCE) != next) {
+                    return false;
+                }
+                fullFence();
+                p = mapped.getInt(offset + SLOT_PRESSURE);
+                t = mapped.getLong(offset + SLOT_TIME);
+            } else {
+                read(slot, offset);
+                if (slot.getLong(SLOT_SEQUENCE) != next) {
+                    return false;
+                }
+                p = slot.getInt(SLOT_PRESSURE);
+                t = slot.getLong(SLOT_TIME);
+            }
+            fullFence();
+            if (readLong(offset + SLOT_SEQUENCE) != next) {
+                return false;
+            }
+            pressure = p;
+            time = t;
+            return true;
+        }
+
+        private long readLong(int offset) throws IOException {
+            if (mapped != null) {
+                return mapped.getLong(offset);
+            }
+            read(sequence, offset);
+            return sequence.getLong(0);
+        }
+
+        private void read(ByteBuffer buffer, int offset) throws IOException {
+            buffer.clear();
+            if (mapped != null) {
+                for (int i = 0; i < buffer.capacity(); i++) {
+                    buffer.put(i, mapped.get(offset + i));
+                }
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("End of the shared memory");
+                }
+            }
+        }
+
+        /** Keeps the reads before and after it in order, see the writer. */
+        private long fullFence() {
+            fence = next;
+            return fence;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package eb.ohrh.bfvadapt.service;
+
+import android.os.Message;
+import eb.ohrh.bfvadapt.model.SampleRingBuffer;
+
+/**
+ * Reduces the pressure samples to the RATE asked for by the clients, and
+ * suppresses the samples within the PRESSURE_DEADBAND and VARIO_DEADBAND. All
+ * clients with the same options share one group, so this is done once per
+ * distinct subscription and not once per client. Rate 0 passes every sample.
+ *
+ * With MODE_DECIMATE, the sample at the time of the output is passed on. With
+ * MODE_AVERAGE, the average of pressure, vario, altitude and acceleration since
+ * the last output is passed on.
+ *
+ * The deadbands are shared by the clients of the group. When a client joins
+ * an existing group, they are reset, so the next sample passes them and the
+ * new client does not wait for a change beyond the threshold. The other
+ * clients get that sample as well.
+ *
+ * offer() is only called by the thread dispatching the samples.
+ */
+class SubscriptionGroup {
+
+    static final int MODE_DECIMATE = 0;
+    static final int MODE_AVERAGE = 1;
+
+    final int rate;
+    final int mode;
+    private final int pressureThreshold;
+    private final long pressureInterval;
+    private final int varioThreshold;
+    private final long varioInterval;
+    /** ms between outputs, 0 for every sample */
+    private final long period;
+    private boolean started;
+    private long nextTime;
+    private final Deadband pressureDeadband;
+    private final Deadband varioDeadband;
+    /** Set by the main thread, when a client joined */
+    private volatile boolean joined;
+
+    private long pressureSum;
+    private long varioSum;
+    private long altitudeSum;
+    private long accelerationSum;
+    private int count;
+
+    /* The output of the last offer */
+    /** The pressure is due */
+    boolean emitted;
+    /** The vario is due */
+    boolean varioEmitted;
+    int pressure;
+    long time;
+    int vario;
+    int altitude;
+    int acceleration;
+    /** Messages of the output, shared by the clients of the group */
+    Message pressureMessage;
+    Message varioMessage;
+
+    SubscriptionGroup(int rate, int mode, int pressureThreshold,
+            long pressureInterval, int varioThreshold, long varioInterval) {
+        this.rate = rate;
+        this.mode = mode;
+        this.pressureThreshold = pressureThreshold;
+        this.pressureInterval = pressureInterval;
+        this.varioThreshold = varioThreshold;
+        this.varioInterval = varioInterval;
+        this.period = rate > 0 ? 1000 / rate : 0;
+        pressureDeadband = new Deadband(pressureThreshold, pressureInterval);
+        varioDeadband = new Deadband(varioThreshold, varioInterval);
+    }
+
+    /** @return true, if the other group has the same options. */
+    boolean matches(SubscriptionGroup other) {
+        return rate == other.rate && mode == other.mode
+                && pressureThreshold == other.pressureThreshold
+                && pressureInterval == other.pressureInterval
+                && varioThreshold == other.varioThreshold
+                && varioInterval == other.varioInterval;
+    }
+
+    /** A client joined the group. May be called by any thread. */
+    void memberJoined() {
+        joined = true;
+    }
+
+    /** Sets emitted and varioEmitted, if an output is due with this sample. */
+    void offer(SampleRingBuffer.Sample sample) {
+        pressureMessage = null;
+        varioMessage = null;
+        emitted = false;
+        varioEmitted = false;
+        if (mode == MODE_AVERAGE) {
+            pressureSum += sample.pressure;
+            varioSum += sample.vario;
+            altitudeSum += sample.altitude;
+            accelerationSum += sample.acceleration;
+            count++;
+        }
+        if (period > 0 && started && sample.time < nextTime) {
+            return;
+        }
+        if (!started || sample.time >= nextTime + period) {
+            // First sample, or a gap in the samples
+            started = true;
+            nextTime = sample.time + period;
+        } else {
+            nextTime += period;
+        }
+        time = sample.time;
+        if (mode == MODE_AVERAGE && count > 0) {
+            pressure = (int) Math.round((double) pressureSum / count);
+            vario = (int) Math.round((double) varioSum / count);
+            altitude = (int) Math.round((double) altitudeSum / count);
+            acceleration = (int) Math.round((double) accelerationSum / count);
+            pressureSum = varioSum = altitudeSum = accelerationSum = 0;
+            count = 0;
+        } else {
+            pressure = sample.pressure;
+            vario = sample.vario;
+            altitude = sample.altitude;
+            acceleration = sample.acceleration;
+        }
+        if (joined) {
+            joined = false;
+            pressureDeadband.reset();
+            varioDeadband.reset();
+        }
+        emitted = pressureDeadband.check(pressure, time);
+        varioEmitted = varioDeadband.check(vario, time);
+    }
+}
@@ -0,0 +1,142 @@
+package eb.ohrh.bfvadapt.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import android.util.Log;
+
+/**
+ * TCP server on the loopback interface, which sends the lines of a
+ * SyntheticRecordStream like a BFV. Used together with TcpInputSource to test
+ * the parsing under load and the handling of lost connections without
+ * hardware.
+ *
+ * The lines are sent at the configured rate (50 Hz like the BFV up to several
+ * kHz). If disconnectAfter is set, the connection is closed after that many
+ * lines, and the server waits for the next connection. Only one connection is
+ * served at a time.
+ */
+public class BFVSimulator extends Thread {
+    private static final String TAG = BFVSimulator.class.getSimpleName();
+
+    public static final int DEFAULT_PORT = 17017;
+    public static final int DEFAULT_RATE = 50;
+
+    /** Lines are written in bursts, if they are less than 1 ms apart */
+    private static final long MIN_SLEEP = 1000000; // ns
+
+    private final ServerSocket server;
+    private final int rate;
+    private final long disconnectAfter;
+
+    private volatile Socket connection;
+    private volatile long linesSent;
+    private volatile int connections;
+
+    /**
+     * @param port
+     *            0 to use any free port (see getPort).
+     * @param rate
+     *            lines per second.
+     * @param disconnectAfter
+     *            lines per connection, 0 for no disconnects.
+     */
+    public BFVSimulator(int port, int rate, long disconnectAfter)
+            throws IOException {
+        super(TAG);
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Illegal rate " + rate);
+        }
+        this.server = new ServerSocket(port, 1, InetAddress.getByName(null));
+        this.rate = rate;
+        this.disconnectAfter = disconnectAfter;
+        setDaemon(true);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public long getLinesSent() {
+        return linesSent;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /** Stops the server and closes the current connection. */
+    public void shutdown() {
+        interrupt();
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+        Socket socket = connection;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.v(TAG, "Listening on port " + getPort() + " at " + rate + " Hz");
+        while (!isInterrupted()) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                break;
+            }
+            connection = socket;
+            connections++;
+            try {
+                serve(socket.getOutputStream());
+            } catch (IOException e) {
+                Log.v(TAG, "Connection closed by client");
+            } catch (InterruptedException e) {
+                interrupt();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+                connection = null;
+            }
+        }
+        Log.v(TAG, "Stopped after " + linesSent + " lines");
+    }
+
+    private void serve(OutputStream out) throws IOException,
+            InterruptedException {
+        InputStream lines = new ReplayInputStream(new SyntheticRecordStream(
+                disconnectAfter > 0 ? disconnectAfter : -1), 0);
+        byte[] buffer = new byte[32];
+        double period = 1e9 / rate;
+        long start = System.nanoTime();
+        long count = 0;
+        int length;
+        while ((length = lines.read(buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, length);
+            if (buffer[length - 1] != '\n') {
+                continue;
+            }
+            count++;
+            linesSent++;
+            long wait = start + (long) (count * period) - System.nanoTime();
+            if (wait >= MIN_SLEEP) {
+                out.flush();
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        }
+        out.flush();
+        Log.v(TAG, "Disconnecting after " + count + " lines");
+    }
+}
@@ -0,0 +1,37 @@
+package eb.ohrh.bfvadapt.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.bluetooth.BluetoothSocket;
+
+/** The BFV connected via bluetooth (SPP/RFCOMM). */
+public class BluetoothSocketSource implements InputSource {
+
+    private final BluetoothSocket socket;
+
+    public BluetoothSocketSource(BluetoothSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public String getName() {
+        return socket.getRemoteDevice().getName();
+    }
+}
@@ -0,0 +1,22 @@
+package eb.ohrh.bfvadapt.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Source of the BFV data read by ConnectedThread. Usually the bluetooth
+ * socket, but may also be a replay of a recorded or generated stream.
+ */
+public interface InputSource {
+
+    InputStream getInputStream() throws IOException;
+
+    /** Stream for commands to the BFV. */
+    OutputStream getOutputStream() throws IOException;
+
+    void close() throws IOException;
+
+    /** Name shown to the user, e.g. the device name. */
+    String getName();
+}
@@ -0,0 +1,26 @@
+package eb.ohrh.bfvadapt.source;
+
+import java.io.IOException;
+
+/**
+ * Sequence of BFV values to be replayed, e.g. from a flight log. The type of
+ * the records are the TYPE_* constants of FlightRecorder.
+ */
+public interface RecordStream {
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false at the end of the stream.
+     */
+    boolean next() throws IOException;
+
+    byte getType();
+
+    int getValue();
+
+    /** Time of the record in milliseconds. */
+    long getTime();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,188 @@
+package eb.ohrh.bfvadapt.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import eb.ohrh.bfvadapt.recorder.FlightRecorder;
+
+/**
+ * Plays a {@link RecordStream} as the text lines sent by the BFV (e.g.
+ * "PRS 17CBA"). The lines are delivered at the pace given by the times of the
+ * records, multiplied by the speed factor. Speed 0 plays as fast as the lines
+ * are read.
+ *
+ * Each read returns at most one line. The lines are formatted into a reusable
+ * buffer, so the replay itself does not allocate per line.
+ *
+ * close() may be called by another thread. It wakes up a read waiting for the
+ * next line, which then returns the end of the stream, like a closed socket.
+ */
+public class ReplayInputStream extends InputStream {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final RecordStream records;
+    private final double speed;
+
+    /** Wakes up the reader on close */
+    private final Object lock = new Object();
+    private volatile boolean closed;
+
+    private final byte[] line = new byte[32];
+    private int linePosition;
+    private int lineLength;
+
+    private boolean started;
+    private long startNanos;
+    private long startTime;
+    private long lines;
+
+    /**
+     * @param speed
+     *            1 for real time, N for N times faster, 0 for unthrottled.
+     */
+    public ReplayInputStream(RecordStream records, double speed) {
+        this.records = records;
+        this.speed = speed;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (closed) {
+            return -1;
+        }
+        if (linePosition == lineLength && !nextLine()) {
+            return -1;
+        }
+        return line[linePosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (linePosition == lineLength && !nextLine()) {
+            return -1;
+        }
+        int count = Math.min(length, lineLength - linePosition);
+        System.arraycopy(line, linePosition, buffer, offset, count);
+        linePosition += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        records.close();
+    }
+
+    /** Number of lines played so far. */
+    public long getLines() {
+        return lines;
+    }
+
+    /** Waits until the next record is due, and formats it. */
+    private boolean nextLine() throws IOException {
+        do {
+            if (!records.next()) {
+                return false;
+            }
+        } while (!format(records.getType(), records.getValue()));
+        long time = records.getTime();
+        if (!started) {
+            started = true;
+            startNanos = System.nanoTime();
+            startTime = time;
+        } else if (speed > 0) {
+            long due = startNanos
+                    + (long) ((time - startTime) * NANOS_PER_MILLI / speed);
+            synchronized (lock) {
+                long wait;
+                while (!closed && (wait = due - System.nanoTime()) > 0) {
+                    try {
+                        lock.wait(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            if (closed) {
+                return false;
+            }
+        }
+        lines++;
+        return true;
+    }
+
+    /** @return false, if the type is unknown. */
+    private boolean format(byte type, int value) {
+        switch (type) {
+        case FlightRecorder.TYPE_PRESSURE:
+            lineLength = prefix('P', 'R', 'S');
+            lineLength = appendHex(value, lineLength);
+            break;
+        case FlightRecorder.TYPE_BATTERY:
+            lineLength = prefix('B', 'A', 'T');
+            lineLength = appendHex(value, lineLength);
+            break;
+        case FlightRecorder.TYPE_TEMPERATURE:
+            lineLength = prefix('T', 'M', 'P');
+            lineLength = appendDecimal(value, lineLength);
+            break;
+        default:
+            return false;
+        }
+        line[lineLength++] = '\n';
+        linePosition = 0;
+        return true;
+    }
+
+    private int prefix(char c0, char c1, char c2) {
+        line[0] = (byte) c0;
+        line[1] = (byte) c1;
+        line[2] = (byte) c2;
+        line[3] = ' ';
+        return 4;
+    }
+
+    private int appendHex(int value, int position) {
+        int digits = 1;
+        while (digits < 8 && (value >>> (4 * digits)) != 0) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            int digit = (value >>> (4 * i)) & 0xf;
+            line[position++] = (byte) (digit < 10 ? '0' + digit : 'A' + digit
+                    - 10);
+        }
+        return position;
+    }
+
+    private int appendDecimal(int value, int position) {
+        long v = value;
+        if (v < 0) {
+            line[position++] = '-';
+            v = -v;
+        }
+        int start = position;
+        do {
+            line[position++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v > 0);
+        // reverse the digits
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte b = line[i];
+            line[i] = line[j];
+            line[j] = b;
+        }
+        return position;
+    }
+}
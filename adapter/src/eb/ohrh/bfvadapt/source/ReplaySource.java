@@ -0,0 +1,49 @@
+package eb.ohrh.bfvadapt.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Replays a recorded or generated stream instead of a connected BFV. Commands
+ * written to the source are ignored.
+ */
+public class ReplaySource implements InputSource {
+
+    private final String name;
+    private final ReplayInputStream in;
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    };
+
+    /**
+     * @param speed
+     *            1 for real time, N for N times faster, 0 for unthrottled.
+     */
+    public ReplaySource(String name, RecordStream records, double speed) {
+        this.name = name;
+        this.in = new ReplayInputStream(records, speed);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,85 @@
+package eb.ohrh.bfvadapt.source;
+
+import java.util.Random;
+
+import eb.ohrh.bfvadapt.recorder.FlightRecorder;
+
+/**
+ * Generates a BFV stream: A pressure sample every 20 ms, oscillating like a
+ * glider circling in a thermal plus sensor noise. Every second, the battery
+ * takes the place of one pressure sample, and every 10 seconds a temperature
+ * is added.
+ */
+public class SyntheticRecordStream implements RecordStream {
+
+    private static final int PERIOD = 20; // ms
+    private static final double BASE_PRESSURE = 90000; // Pa, about 1000 m
+    private static final double AMPLITUDE = 30; // Pa, about 2.5 m
+    private static final double CYCLE = 20000; // ms per circle
+    private static final double NOISE = 2; // Pa
+
+    private final long count;
+    private final Random random = new Random(0);
+    private long slot = -1;
+    private long records;
+    private boolean temperatureDue;
+
+    private byte type;
+    private int value;
+    private long time;
+
+    /**
+     * @param count
+     *            Number of records, or -1 for an endless stream.
+     */
+    public SyntheticRecordStream(long count) {
+        this.count = count;
+    }
+
+    @Override
+    public boolean next() {
+        if (count >= 0 && records >= count) {
+            return false;
+        }
+        records++;
+        if (temperatureDue) {
+            temperatureDue = false;
+            type = FlightRecorder.TYPE_TEMPERATURE;
+            value = 150 + (int) (slot / 5000) % 50;
+            return true;
+        }
+        slot++;
+        time = slot * PERIOD;
+        if (slot % 50 == 49) {
+            type = FlightRecorder.TYPE_BATTERY;
+            value = 4100 - (int) (slot / 50000);
+            temperatureDue = slot % 500 == 499;
+        } else {
+            type = FlightRecorder.TYPE_PRESSURE;
+            double pressure = BASE_PRESSURE + AMPLITUDE
+                    * Math.sin(2 * Math.PI * time / CYCLE)
+                    + random.nextGaussian() * NOISE;
+            value = (int) Math.round(pressure);
+        }
+        return true;
+    }
+
+    @Override
+    public byte getType() {
+        return type;
+    }
+
+    @Override
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,51 @@
+package eb.ohrh.bfvadapt.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A BFV (or the BFVSimulator) connected via TCP, e.g. on the loopback
+ * interface. Stands in for the bluetooth link in tests without hardware.
+ */
+public class TcpInputSource implements InputSource {
+
+    private static final int CONNECT_TIMEOUT = 5000; // ms
+
+    private final String host;
+    private final int port;
+    private final Socket socket = new Socket();
+
+    public TcpInputSource(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /** Blocks until connected. Must not be called by the main thread. */
+    public void connect() throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/** Stub for the plain JVM: A device without shared memory. */
+public final class Build {
+    private Build() {
+    }
+
+    public static final class VERSION {
+        public static final int SDK_INT = 0;
+    }
+
+    public static final class VERSION_CODES {
+        public static final int HONEYCOMB_MR2 = 13;
+    }
+}
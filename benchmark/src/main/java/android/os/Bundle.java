@@ -0,0 +1,62 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Stub for the plain JVM with the values used by the service. */
+public final class Bundle implements Parcelable {
+    private final Map<String, Object> values;
+
+    public Bundle() {
+        values = new HashMap<String, Object>();
+    }
+
+    public Bundle(Bundle b) {
+        values = new HashMap<String, Object>(b.values);
+    }
+
+    public boolean containsKey(String key) {
+        return values.containsKey(key);
+    }
+
+    public void putInt(String key, int value) {
+        values.put(key, value);
+    }
+
+    public int getInt(String key) {
+        return getInt(key, 0);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Object value = values.get(key);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    public void putBoolean(String key, boolean value) {
+        values.put(key, value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = values.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    public void putIntArray(String key, int[] value) {
+        values.put(key, value);
+    }
+
+    public int[] getIntArray(String key) {
+        Object value = values.get(key);
+        return value instanceof int[] ? (int[]) value : null;
+    }
+
+    public void putParcelable(String key, Parcelable value) {
+        values.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelable(String key) {
+        Object value = values.get(key);
+        return value instanceof Parcelable ? (T) value : null;
+    }
+}
@@ -0,0 +1,9 @@
+package android.os;
+
+/** Stub for the plain JVM. */
+public class DeadObjectException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadObjectException() {
+    }
+}
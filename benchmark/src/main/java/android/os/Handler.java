@@ -0,0 +1,57 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stub for the plain JVM, which has no looper: A message sent to the handler
+ * is handled at once by the sending thread, so a Messenger of the handler
+ * stands for a client. Posted runnables are only recorded, and run by
+ * {@link #runPending()}.
+ */
+public class Handler {
+
+    private final List<Runnable> pending = new ArrayList<Runnable>();
+
+    /** Does nothing, override to receive the messages. */
+    public void handleMessage(Message msg) {
+    }
+
+    public final boolean sendMessage(Message msg) {
+        msg.target = this;
+        handleMessage(msg);
+        return true;
+    }
+
+    public final boolean post(Runnable r) {
+        synchronized (pending) {
+            pending.add(r);
+        }
+        return true;
+    }
+
+    /** The delay is ignored, the runnable waits for runPending(). */
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return post(r);
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        synchronized (pending) {
+            while (pending.remove(r)) {
+            }
+        }
+    }
+
+    /** Runs the runnables posted so far, in order. */
+    public int runPending() {
+        Runnable[] runnables;
+        synchronized (pending) {
+            runnables = pending.toArray(new Runnable[pending.size()]);
+            pending.clear();
+        }
+        for (Runnable r : runnables) {
+            r.run();
+        }
+        return runnables.length;
+    }
+}
@@ -0,0 +1,18 @@
+package android.os;
+
+import java.io.IOException;
+
+/** Stub for the plain JVM: There is no ashmem. */
+public class MemoryFile {
+    public MemoryFile(String name, int length) throws IOException {
+        throw new IOException("No ashmem");
+    }
+
+    public void writeBytes(byte[] buffer, int srcOffset, int destOffset,
+            int count) throws IOException {
+        throw new IOException("No ashmem");
+    }
+
+    public void close() {
+    }
+}
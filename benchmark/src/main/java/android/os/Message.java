@@ -0,0 +1,63 @@
+package android.os;
+
+/**
+ * Stub of the Android message for the plain JVM. obtain allocates a new
+ * message, there is no pool of recycled messages.
+ */
+public final class Message {
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+    Handler target;
+    private Bundle data;
+
+    public static Message obtain() {
+        return new Message();
+    }
+
+    public static Message obtain(Message orig) {
+        Message msg = new Message();
+        msg.what = orig.what;
+        msg.arg1 = orig.arg1;
+        msg.arg2 = orig.arg2;
+        msg.obj = orig.obj;
+        msg.target = orig.target;
+        if (orig.data != null) {
+            msg.data = new Bundle(orig.data);
+        }
+        return msg;
+    }
+
+    public static Message obtain(Handler h, int what) {
+        return obtain(h, what, 0, 0);
+    }
+
+    public static Message obtain(Handler h, int what, int arg1, int arg2) {
+        Message msg = new Message();
+        msg.target = h;
+        msg.what = what;
+        msg.arg1 = arg1;
+        msg.arg2 = arg2;
+        return msg;
+    }
+
+    public Handler getTarget() {
+        return target;
+    }
+
+    public Bundle getData() {
+        if (data == null) {
+            data = new Bundle();
+        }
+        return data;
+    }
+
+    public Bundle peekData() {
+        return data;
+    }
+
+    public void setData(Bundle data) {
+        this.data = data;
+    }
+}
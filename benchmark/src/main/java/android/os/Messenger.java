@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Stub for the plain JVM: Sends the messages to a local handler, which
+ * handles them on the sending thread.
+ */
+public final class Messenger {
+    private final Handler target;
+
+    public Messenger(Handler target) {
+        this.target = target;
+    }
+
+    public void send(Message message) throws RemoteException {
+        target.sendMessage(message);
+    }
+}
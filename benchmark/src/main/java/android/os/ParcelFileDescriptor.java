@@ -0,0 +1,20 @@
+package android.os;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/** Stub for the plain JVM: Descriptors can't be duplicated. */
+public class ParcelFileDescriptor implements Parcelable, Closeable {
+    private ParcelFileDescriptor() {
+    }
+
+    public static ParcelFileDescriptor dup(FileDescriptor orig)
+            throws IOException {
+        throw new IOException("Not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
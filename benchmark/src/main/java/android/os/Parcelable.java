@@ -0,0 +1,5 @@
+package android.os;
+
+/** Stub for the plain JVM. */
+public interface Parcelable {
+}
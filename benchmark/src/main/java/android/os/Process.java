@@ -0,0 +1,14 @@
+package android.os;
+
+/** Stub for the plain JVM: The thread priorities are ignored. */
+public final class Process {
+    public static final int THREAD_PRIORITY_DISPLAY = -4;
+    public static final int THREAD_PRIORITY_AUDIO = -16;
+    public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+    private Process() {
+    }
+
+    public static void setThreadPriority(int priority) {
+    }
+}
@@ -0,0 +1,9 @@
+package android.os;
+
+/** Stub for the plain JVM. */
+public class RemoteException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public RemoteException() {
+    }
+}
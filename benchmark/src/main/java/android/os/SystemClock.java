@@ -0,0 +1,15 @@
+package android.os;
+
+/** Stub for the plain JVM, both clocks by System.nanoTime(). */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,26 @@
+package eb.ohrh.bfvadapt.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Main class of benchmarks.jar: Runs JMH with the GC profiler, which reports
+ * the bytes allocated per operation (gc.alloc.rate.norm), unless other
+ * profilers are given with -prof. All arguments are passed to JMH.
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+        if (!jmhArgs.contains("-prof") && !jmhArgs.contains("-l")
+                && !jmhArgs.contains("-h")) {
+            jmhArgs.add(0, "-prof");
+            jmhArgs.add(1, "gc");
+        }
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+    }
+}
@@ -0,0 +1,48 @@
+package eb.ohrh.bfvadapt.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eb.ohrh.bfvadapt.metrics.LatencyHistogram;
+
+/** Recording a latency, as done for each sample and stage. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LatencyHistogramBenchmark {
+
+    private static final int VALUES = 1024;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final long[] values = new long[VALUES];
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        for (int i = 0; i < VALUES; i++) {
+            // Mostly some 100 us, a few ms
+            values[i] = (long) Math.exp(5 + random.nextGaussian());
+            histogram.record(values[i]);
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        histogram.record(values[index]);
+        index = (index + 1) & (VALUES - 1);
+    }
+
+    @Benchmark
+    public long percentile() {
+        return histogram.getValueAtPercentile(99.9);
+    }
+}
@@ -0,0 +1,123 @@
+package eb.ohrh.bfvadapt.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eb.ohrh.bfvadapt.bluetooth.BFVLineParser;
+import eb.ohrh.bfvadapt.bluetooth.BFVSettings;
+
+/**
+ * Parses one second of BFV output, as received in chunks by the
+ * ConnectedThread. The stream is one of:
+ *
+ * <pre>
+ * PRS   50 PRS lines and a BAT line (the usual output)
+ * TMP   51 TMP lines
+ * BFV   51 BFV lines
+ * MIXED 50 PRS lines, a TMP line after every 10th, a BAT, a BFV and an
+ *       unknown line
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LineParserBenchmark {
+
+    private static final int CHUNK = 64;
+
+    @Param({ "PRS", "TMP", "BFV", "MIXED" })
+    public String stream;
+
+    private byte[] bytes;
+    private BFVLineParser parser;
+
+    /** Passes the values to the black hole of the current invocation. */
+    static class Handler implements BFVLineParser.LineHandler {
+        Blackhole blackhole;
+
+        @Override
+        public void onPressure(int pressure) {
+            blackhole.consume(pressure);
+        }
+
+        @Override
+        public void onBattery(int milliVolts) {
+            blackhole.consume(milliVolts);
+        }
+
+        @Override
+        public void onTemperature(int tenthDegrees) {
+            blackhole.consume(tenthDegrees);
+        }
+
+        @Override
+        public void onVersion(int version) {
+            blackhole.consume(version);
+        }
+
+        @Override
+        public void onSettings(BFVSettings settings) {
+            blackhole.consume(settings);
+        }
+
+        @Override
+        public void onOtherLine(byte[] line, int length) {
+            blackhole.consume(length);
+        }
+    }
+
+    private final Handler handler = new Handler();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        StringBuilder lines = new StringBuilder();
+        if (stream.equals("TMP")) {
+            for (int i = 0; i < 51; i++) {
+                lines.append("TMP ").append(200 + random.nextInt(100))
+                        .append('\n');
+            }
+        } else if (stream.equals("BFV")) {
+            for (int i = 0; i < 51; i++) {
+                lines.append("BFV ").append(9).append('\n');
+            }
+        } else {
+            boolean mixed = stream.equals("MIXED");
+            for (int i = 0; i < 50; i++) {
+                int pressure = 95000 + random.nextInt(200);
+                lines.append("PRS ").append(Integer.toHexString(pressure))
+                        .append('\n');
+                if (mixed && i % 10 == 9) {
+                    lines.append("TMP ").append(200 + random.nextInt(100))
+                            .append('\n');
+                }
+            }
+            lines.append("BAT ").append(Integer.toHexString(4012))
+                    .append('\n');
+            if (mixed) {
+                lines.append("BFV 9\n");
+                lines.append("XYZ 1\n");
+            }
+        }
+        bytes = lines.toString().getBytes();
+        parser = new BFVLineParser(handler);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        handler.blackhole = blackhole;
+        for (int offset = 0; offset < bytes.length; offset += CHUNK) {
+            parser.parse(bytes, offset, Math.min(CHUNK, bytes.length - offset));
+        }
+    }
+}
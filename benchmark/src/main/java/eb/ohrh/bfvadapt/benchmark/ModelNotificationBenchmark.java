@@ -0,0 +1,90 @@
+package eb.ohrh.bfvadapt.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import eb.ohrh.bfvadapt.model.Model;
+import eb.ohrh.bfvadapt.model.ModelListener;
+import eb.ohrh.bfvadapt.model.SampleRingBuffer;
+
+/**
+ * A pressure sample received by the Model, until all listeners read it with
+ * their cursors: filter, publishing, waking up the SampleDispatcher and its
+ * calls of the listeners.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModelNotificationBenchmark {
+
+    @Param({ "1", "4", "16" })
+    public int listeners;
+
+    private final Model model = Model.getInstance();
+    private Listener[] registered;
+    private long time;
+
+    /** Reads the new samples, as the service does. */
+    static class Listener implements ModelListener {
+        private final SampleRingBuffer.Cursor cursor;
+        private final SampleRingBuffer.Sample sample = new SampleRingBuffer.Sample();
+        volatile long seen;
+
+        Listener(Model model) {
+            cursor = model.newCursor();
+        }
+
+        @Override
+        public void update(Model model) {
+            while (cursor.poll(sample)) {
+                seen = sample.time;
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        registered = new Listener[listeners];
+        for (int i = 0; i < listeners; i++) {
+            registered[i] = new Listener(model);
+            model.addListener(registered[i]);
+        }
+        // A sample published before the dispatcher started is only seen
+        // with the next one
+        while (registered[listeners - 1].seen == 0) {
+            publish();
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Listener listener : registered) {
+            model.removeListener(listener);
+        }
+    }
+
+    private void publish() {
+        time += 20;
+        model.updatePressure(95000 + (int) (time & 63), time, System.nanoTime());
+    }
+
+    @Benchmark
+    public long notifyListeners() {
+        publish();
+        // The listeners are called in order, the last one is the last to see it
+        Listener last = registered[listeners - 1];
+        while (last.seen != time) {
+        }
+        return time;
+    }
+}
@@ -0,0 +1,59 @@
+package eb.ohrh.bfvadapt.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eb.ohrh.bfvadapt.model.PressureFusion;
+
+/**
+ * One tick of the fusion: A sample of each source offered, then the tick
+ * computed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PressureFusionBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    @Param({ "2", "3", "5" })
+    public int sources;
+
+    private final PressureFusion fusion = new PressureFusion();
+    private final int[] noise = new int[SAMPLES];
+    private int index;
+    private long time;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            noise[i] = (int) Math.round(random.nextGaussian() * 3);
+        }
+    }
+
+    @Benchmark
+    public double tick() {
+        time += PressureFusion.PERIOD;
+        for (int source = 0; source < sources; source++) {
+            index = (index + 1) & (SAMPLES - 1);
+            // Each source with its own offset and a little late
+            fusion.offer(source, 95000 + 20 * source + noise[index], time
+                    + source);
+        }
+        double sum = 0;
+        while (fusion.next()) {
+            sum += fusion.getPressure();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,68 @@
+package eb.ohrh.bfvadapt.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eb.ohrh.bfvadapt.model.SampleRingBuffer;
+
+/**
+ * Publishes samples and reads them with a cursor, as done by the Model and the
+ * SampleDispatcher.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SampleRingBufferBenchmark {
+
+    private static final int DEVICES = 3;
+
+    private SampleRingBuffer buffer;
+    private SampleRingBuffer.Cursor cursor;
+    private SampleRingBuffer.Cursor coalescing;
+    private final SampleRingBuffer.Sample sample = new SampleRingBuffer.Sample();
+    private int pressure = 95000;
+    private long time;
+
+    @Setup
+    public void setUp() {
+        buffer = new SampleRingBuffer(256);
+        cursor = buffer.newCursor();
+        coalescing = buffer.newCursor();
+        coalescing.setOverflowPolicy(SampleRingBuffer.OverflowPolicy.COALESCE);
+    }
+
+    /** One sample published and read. */
+    @Benchmark
+    public long publishAndPoll() {
+        time += 20;
+        buffer.publish(0, pressure, time, 0, 0, 0, 0);
+        cursor.poll(sample);
+        return sample.sequence;
+    }
+
+    /**
+     * Ten samples of each device published, then the newest sample of each
+     * device read by a COALESCE cursor.
+     */
+    @Benchmark
+    public long publishAndCoalesce() {
+        for (int i = 0; i < 10; i++) {
+            time += 20;
+            for (int device = 0; device < DEVICES; device++) {
+                buffer.publish(device, pressure, time, 0, 0, 0, 0);
+            }
+        }
+        long sum = 0;
+        while (coalescing.poll(sample)) {
+            sum += sample.sequence;
+        }
+        return sum;
+    }
+}
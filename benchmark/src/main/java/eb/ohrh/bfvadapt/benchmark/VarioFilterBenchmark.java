@@ -0,0 +1,45 @@
+package eb.ohrh.bfvadapt.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eb.ohrh.bfvadapt.model.VarioFilter;
+
+/** One update of the Kalman filter with a noisy pressure sample. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VarioFilterBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    private final VarioFilter filter = new VarioFilter();
+    private final int[] pressures = new int[SAMPLES];
+    private int index;
+    private long time;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            pressures[i] = 95000 - i / 10 + (int) Math.round(random
+                    .nextGaussian() * 3);
+        }
+    }
+
+    @Benchmark
+    public double update() {
+        time += 20;
+        filter.update(pressures[index], time);
+        index = (index + 1) & (SAMPLES - 1);
+        return filter.getVario();
+    }
+}
@@ -0,0 +1,103 @@
+package eb.ohrh.bfvadapt.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Messenger;
+import eb.ohrh.bfvadapt.model.SampleRingBuffer;
+
+/**
+ * A pressure sample sent to all clients, as done by the service for each
+ * sample: offered to the subscription group, then a copy of the pressure
+ * message (with the vario message, if the client wants VARIO) queued to the
+ * ClientSender of each client. The senders send to a counting Handler, on
+ * their own threads, like the binder calls to the clients.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClientFanOutBenchmark {
+
+    /* The message codes of BFVAdapterService */
+    private static final int SEND_PRESSURE_UPDATE = 1;
+    private static final int SEND_VARIO_UPDATE = 11;
+
+    @Param({ "1", "2", "4", "8", "16" })
+    public int clients;
+
+    @Param({ "false", "true" })
+    public boolean vario;
+
+    private final Receiver receiver = new Receiver();
+    private final Runnable evict = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    private Client[] registered;
+    private SubscriptionGroup group;
+    private final SampleRingBuffer.Sample sample = new SampleRingBuffer.Sample();
+
+    /** Counts the messages received by all clients. */
+    static class Receiver extends Handler {
+        final AtomicLong received = new AtomicLong();
+
+        @Override
+        public void handleMessage(Message msg) {
+            received.incrementAndGet();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Bundle options = new Bundle();
+        options.putBoolean(Client.KEY_VARIO, vario);
+        registered = new Client[clients];
+        for (int i = 0; i < clients; i++) {
+            registered[i] = new Client(new Messenger(receiver), options);
+            registered[i].start(receiver, evict);
+        }
+        group = registered[0].newGroup();
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Client client : registered) {
+            client.stop();
+        }
+    }
+
+    @Benchmark
+    public boolean sendSample() {
+        sample.time += 20;
+        sample.pressure = 95000 + (int) (sample.time & 63);
+        sample.vario = (int) (sample.time & 127);
+        group.offer(sample);
+        Message pressure = Message.obtain(receiver, SEND_PRESSURE_UPDATE,
+                group.pressure, (int) group.time);
+        Message varioMsg = null;
+        if (vario) {
+            varioMsg = Message.obtain(receiver, SEND_VARIO_UPDATE,
+                    group.vario, group.altitude);
+        }
+        boolean alive = true;
+        for (Client client : registered) {
+            alive &= client.sendSample(pressure,
+                    client.wantsVario() ? varioMsg : null);
+        }
+        return alive;
+    }
+}
@@ -0,0 +1,159 @@
+package eb.ohrh.bfvadapt.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Renders the vario tone into a plain buffer and measures it.
+ */
+public class VarioToneGeneratorTest {
+
+    private static final int RATE = 44100;
+    /** 5 ms, as written by the VarioTonePlayer */
+    private static final int BLOCK = RATE / 200;
+
+    private final VarioToneGenerator generator = new VarioToneGenerator(RATE);
+
+    /** Renders the given time in blocks. */
+    private short[] render(int ms) {
+        short[] buffer = new short[RATE * ms / 1000];
+        for (int offset = 0; offset < buffer.length; offset += BLOCK) {
+            generator.render(buffer, offset,
+                    Math.min(BLOCK, buffer.length - offset));
+        }
+        return buffer;
+    }
+
+    private static int peak(short[] buffer, int from, int to) {
+        int peak = 0;
+        for (int i = from; i < to; i++) {
+            peak = Math.max(peak, Math.abs(buffer[i]));
+        }
+        return peak;
+    }
+
+    /** Frequency in Hz from the rising zero crossings. */
+    private static double frequency(short[] buffer, int from, int to) {
+        int first = -1;
+        int last = -1;
+        int crossings = 0;
+        for (int i = from + 1; i < to; i++) {
+            if (buffer[i - 1] < 0 && buffer[i] >= 0) {
+                if (first < 0) {
+                    first = i;
+                } else {
+                    crossings++;
+                }
+                last = i;
+            }
+        }
+        return crossings * (double) RATE / (last - first);
+    }
+
+    /** Index of the first sample, which is not 0, or -1. */
+    private static int firstSound(short[] buffer, int from) {
+        for (int i = from; i < buffer.length; i++) {
+            if (buffer[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void silentBetweenTheThresholds() {
+        generator.setClimb(0);
+        assertEquals(-1, firstSound(render(1000), 0));
+        generator.setClimb(VarioToneGenerator.DEFAULT_CLIMB_THRESHOLD - 1);
+        assertEquals(-1, firstSound(render(1000), 0));
+        generator.setClimb(VarioToneGenerator.DEFAULT_SINK_THRESHOLD + 1);
+        assertEquals(-1, firstSound(render(1000), 0));
+    }
+
+    @Test
+    public void beepStartsInTheNextBlock() {
+        short[] silence = render(100);
+        assertEquals(-1, firstSound(silence, 0));
+        generator.setClimb(VarioToneGenerator.DEFAULT_CLIMB_THRESHOLD);
+        short[] buffer = render(100);
+        // The sine starts at 0
+        assertEquals(1, firstSound(buffer, 0));
+        // Faded in within 2 ms
+        assertTrue(peak(buffer, RATE * 2 / 1000, RATE * 10 / 1000) > 30000);
+    }
+
+    @Test
+    public void beepsGetHigherAndFaster() {
+        // 1 m/s: 800 Hz, beep 260 ms of a cycle of 520 ms
+        generator.setClimb(100);
+        short[] buffer = render(1040);
+        int ms = RATE / 1000;
+        assertEquals(800, frequency(buffer, 0, 250 * ms), 2);
+        assertTrue(peak(buffer, 0, 255 * ms) > 30000);
+        assertEquals(0, peak(buffer, 265 * ms, 515 * ms));
+        assertTrue(peak(buffer, 525 * ms, 775 * ms) > 30000);
+        assertEquals(0, peak(buffer, 785 * ms, 1035 * ms));
+
+        // 5 m/s: 1200 Hz, beep 100 ms of a cycle of 200 ms
+        generator.setClimb(500);
+        buffer = render(400);
+        assertEquals(1200, frequency(buffer, 0, 95 * ms), 2);
+        assertEquals(0, peak(buffer, 105 * ms, 195 * ms));
+        assertTrue(peak(buffer, 205 * ms, 295 * ms) > 30000);
+    }
+
+    @Test
+    public void sinkToneIsContinuous() {
+        generator.setClimb(-250);
+        short[] buffer = render(1000);
+        int ms = RATE / 1000;
+        // 400 Hz at the threshold of -2 m/s, 25 Hz lower at -2.5 m/s
+        assertEquals(375, frequency(buffer, 0, buffer.length), 1);
+        assertTrue(peak(buffer, 2 * ms, 100 * ms) > 30000);
+        assertTrue(peak(buffer, 900 * ms, 1000 * ms) > 30000);
+
+        generator.setClimb(-1000);
+        assertEquals(200, frequency(render(1000), 0, RATE), 1);
+    }
+
+    @Test
+    public void thresholdsAreConfigurable() {
+        generator.setThresholds(50, -100);
+        generator.setClimb(40);
+        assertEquals(-1, firstSound(render(500), 0));
+        generator.setClimb(-100);
+        assertEquals(400, frequency(render(500), 0, RATE / 2), 1);
+    }
+
+    @Test
+    public void volumeScalesTheTone() {
+        generator.setClimb(-300);
+        generator.setVolume(50);
+        int half = peak(render(100), RATE / 100, RATE / 10);
+        assertEquals(Short.MAX_VALUE / 2, half, 50);
+        generator.setVolume(0);
+        short[] buffer = render(100);
+        assertEquals(0, peak(buffer, RATE / 100, RATE / 10));
+    }
+
+    @Test
+    public void noClicks() {
+        // Switch between beeps, silence and sink tone at odd times
+        int[] climbs = { 300, 0, -400, 120, -200, 0 };
+        int max = 0;
+        short previous = 0;
+        for (int c : climbs) {
+            generator.setClimb(c);
+            short[] buffer = render(333);
+            for (short s : buffer) {
+                max = Math.max(max, Math.abs(s - previous));
+                previous = s;
+            }
+        }
+        // A full step would be 32767. The fastest tone (2 kHz) changes by
+        // at most 2 pi 2000 / 44100 of the amplitude per sample.
+        assertTrue("Step " + max, max < 10000);
+    }
+}
@@ -0,0 +1,261 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Compares the BFVLineParser with the former String based parser, and checks
+ * that it does not allocate per line.
+ */
+public class BFVLineParserTest {
+
+    /** Records the values as "PRS 1234" etc. */
+    static class Recorder implements BFVLineParser.LineHandler {
+        final List<String> values = new ArrayList<String>();
+
+        @Override
+        public void onPressure(int pressure) {
+            values.add("PRS " + pressure);
+        }
+
+        @Override
+        public void onBattery(int milliVolts) {
+            values.add("BAT " + milliVolts);
+        }
+
+        @Override
+        public void onTemperature(int tenthDegrees) {
+            values.add("TMP " + tenthDegrees);
+        }
+
+        @Override
+        public void onVersion(int version) {
+            values.add("BFV " + version);
+        }
+
+        @Override
+        public void onSettings(BFVSettings settings) {
+            StringBuilder b = new StringBuilder("SET");
+            for (int i = 0; i < settings.size(); i++) {
+                b.append(' ').append(settings.getKey(i)).append('=')
+                        .append(settings.getValue(i));
+            }
+            values.add(b.toString());
+        }
+
+        @Override
+        public void onOtherLine(byte[] line, int length) {
+        }
+    }
+
+    /** The PRS and BAT handling of the former ConnectedThread.handleLine */
+    private static List<String> parseWithStrings(byte[] bytes)
+            throws IOException {
+        List<String> values = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes), "US-ASCII"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] split = line.split(" ");
+            if (split.length < 2) {
+                // The former parser threw an exception here
+                continue;
+            }
+            try {
+                if (split[0].equals("PRS")) {
+                    values.add("PRS " + Integer.parseInt(split[1], 16));
+                } else if (split[0].equals("BAT")) {
+                    values.add("BAT " + Integer.parseInt(split[1], 16));
+                }
+            } catch (NumberFormatException e) {
+                // Ignored
+            }
+        }
+        return values;
+    }
+
+    /** Feeds the bytes in chunks of random size. */
+    private static List<String> parse(byte[] bytes, Random random) {
+        Recorder recorder = new Recorder();
+        BFVLineParser parser = new BFVLineParser(recorder);
+        int offset = 0;
+        while (offset < bytes.length) {
+            int count = Math.min(bytes.length - offset, 1 + random.nextInt(40));
+            parser.parse(bytes, offset, count);
+            offset += count;
+        }
+        return recorder.values;
+    }
+
+    private static String randomLine(Random random) {
+        switch (random.nextInt(12)) {
+        case 0:
+            return "BAT " + Integer.toHexString(3500 + random.nextInt(700));
+        case 1:
+            return "TMP " + (random.nextInt(400) - 100);
+        case 2:
+            return "PRS ";
+        case 3:
+            return "PRS 1G" + random.nextInt(10);
+        case 4:
+            return "PRS  " + Integer.toHexString(random.nextInt(100000));
+        case 5:
+            return "PRS 123456789";
+        case 6:
+            return "XYZ 17";
+        default:
+            String hex = Integer.toHexString(90000 + random.nextInt(20000));
+            return "PRS " + (random.nextBoolean() ? hex : hex.toUpperCase());
+        }
+    }
+
+    @Test
+    public void sameValuesAsStringParser() throws IOException {
+        Random random = new Random(1);
+        for (int run = 0; run < 50; run++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                text.append(randomLine(random));
+                text.append(random.nextInt(4) == 0 ? "\r\n" : "\n");
+            }
+            byte[] bytes = text.toString().getBytes("US-ASCII");
+            List<String> expected = parseWithStrings(bytes);
+            List<String> actual = new ArrayList<String>();
+            for (String value : parse(bytes, random)) {
+                if (value.startsWith("PRS") || value.startsWith("BAT")) {
+                    actual.add(value);
+                }
+            }
+            assertEquals(expected, actual);
+        }
+    }
+
+    /** The fixture with the given name next to this class */
+    private static byte[] fixture(String name) throws IOException {
+        InputStream in = BFVLineParserTest.class.getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void sessionStream() throws IOException {
+        // 10 seconds of a BFV: header, PRS at 50 Hz, BAT every second, TMP
+        // every 5 seconds, CR LF line ends. The connection starts in the
+        // middle of a line.
+        byte[] bytes = fixture("bfv-session.txt");
+        List<String> values = parse(bytes, new Random(3));
+        List<String> pressures = new ArrayList<String>();
+        int batteries = 0;
+        for (String value : values) {
+            if (value.startsWith("PRS") || value.startsWith("BAT")) {
+                pressures.add(value);
+            }
+            if (value.startsWith("BAT")) {
+                batteries++;
+            }
+        }
+        assertEquals(parseWithStrings(bytes), pressures);
+        assertEquals(500, pressures.size());
+        assertEquals(10, batteries);
+        assertEquals("BFV 9", values.get(0));
+        assertTrue(values.get(1), values.get(1).startsWith(
+                "SET BFK=0 BFL=20 BFP=20 "));
+        assertTrue(values.get(1), values.get(1).endsWith(" BTT=0"));
+        assertEquals("TMP 231", values.get(2));
+        assertEquals(504, values.size());
+    }
+
+    @Test
+    public void otherSentences() throws IOException {
+        Recorder recorder = new Recorder();
+        BFVLineParser parser = new BFVLineParser(recorder);
+        byte[] bytes = ("BFV 9\nTMP -15\nBST BFK BFL BRM\nSET 0 20 2 \n"
+                + "SET 1 x\n").getBytes("US-ASCII");
+        parser.parse(bytes, 0, bytes.length);
+        List<String> values = recorder.values;
+        assertEquals(3, values.size());
+        assertEquals("BFV 9", values.get(0));
+        assertEquals("TMP -15", values.get(1));
+        assertEquals("SET BFK=0 BFL=20 BRM=2", values.get(2));
+        // "SET 1 x" is malformed and not passed on
+        assertEquals(1, parser.getMalformedLines());
+    }
+
+    @Test
+    public void countsMalformedLines() throws IOException {
+        // The payload is missing or not a number, or the line is too long
+        Recorder recorder = new Recorder();
+        BFVLineParser parser = new BFVLineParser(recorder);
+        StringBuilder longLine = new StringBuilder("PRS ");
+        for (int i = 0; i < 600; i++) {
+            longLine.append('1');
+        }
+        byte[] bytes = ("PRS 1G\nPRS \n" + longLine + "\nPRS 17ae9\n")
+                .getBytes("US-ASCII");
+        parser.parse(bytes, 0, bytes.length);
+        assertEquals(3, parser.getMalformedLines());
+        assertEquals(1, recorder.values.size());
+        assertEquals("PRS " + 0x17ae9, recorder.values.get(0));
+    }
+
+    @Test
+    public void noAllocationPerLine() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory
+                .getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final int[] sum = new int[1];
+        BFVLineParser parser = new BFVLineParser(new Recorder() {
+            @Override
+            public void onPressure(int pressure) {
+                sum[0] += pressure;
+            }
+
+            @Override
+            public void onBattery(int milliVolts) {
+                sum[0] += milliVolts;
+            }
+        });
+        byte[] bytes = "PRS 17ae9\nPRS 17AEA\nBAT fa0\nPRS 17ae8\n"
+                .getBytes("US-ASCII");
+        // Warm up, so the measurement is not disturbed by the compiler
+        for (int i = 0; i < 100000; i++) {
+            parser.parse(bytes, 0, bytes.length);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            parser.parse(bytes, 0, bytes.length);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // 400000 lines, a few bytes are allocated by the measurement itself
+        assertTrue("Allocated " + allocated + " bytes", allocated < 4096);
+        assertTrue(sum[0] != 0);
+    }
+}
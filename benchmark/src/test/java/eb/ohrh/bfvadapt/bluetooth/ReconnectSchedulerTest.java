@@ -0,0 +1,211 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Drives the ReconnectScheduler with a virtual clock.
+ */
+public class ReconnectSchedulerTest {
+
+    /** Timer, which runs the tasks when the virtual time is advanced. */
+    private static class VirtualTimer implements ReconnectScheduler.Timer {
+        long now;
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        final List<Long> times = new ArrayList<Long>();
+
+        @Override
+        public void schedule(Runnable task, long delay) {
+            tasks.add(task);
+            times.add(now + delay);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            int i;
+            while ((i = tasks.indexOf(task)) >= 0) {
+                tasks.remove(i);
+                times.remove(i);
+            }
+        }
+
+        /** Runs the tasks due up to the given time. */
+        void advanceTo(long time) {
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < times.size(); i++) {
+                    if (times.get(i) <= time
+                            && (next < 0 || times.get(i) < times.get(next))) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                now = times.remove(next);
+                tasks.remove(next).run();
+            }
+            now = time;
+        }
+    }
+
+    private final VirtualTimer timer = new VirtualTimer();
+    /** Times of the attempts to reconnect */
+    private final List<Long> attempts = new ArrayList<Long>();
+    private boolean reachable;
+    private ReconnectScheduler scheduler;
+
+    /** An attempt which fails until the device is reachable. */
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            attempts.add(timer.now);
+            if (reachable) {
+                scheduler.reset();
+            } else {
+                scheduler.scheduleRetry();
+            }
+        }
+    };
+
+    private ReconnectScheduler newScheduler(Random random) {
+        scheduler = new ReconnectScheduler(timer, retry, random);
+        return scheduler;
+    }
+
+    /** Random, which always returns the same value. */
+    private static Random fixed(final double value) {
+        return new Random() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public double nextDouble() {
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void doublesTheDelayUpToTheMaximum() {
+        // Always the longest delay, which is 1 ms short of the full one
+        newScheduler(fixed(0.999999));
+        long expected = ReconnectScheduler.FIRST_DELAY;
+        for (int i = 0; i < 20; i++) {
+            assertEquals(expected - 1, scheduler.scheduleRetry());
+            assertEquals(i + 1, scheduler.getFailures());
+            scheduler.cancel();
+            expected = Math.min(2 * expected, ReconnectScheduler.MAX_DELAY);
+        }
+        assertEquals(ReconnectScheduler.MAX_DELAY, expected);
+    }
+
+    @Test
+    public void jitterIsBetweenHalfAndAllOfTheDelay() {
+        newScheduler(new Random(1));
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            scheduler.reset();
+            long delay = scheduler.scheduleRetry();
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        long first = ReconnectScheduler.FIRST_DELAY;
+        assertTrue("Min " + min, min >= first / 2 && min < first / 2 + 5);
+        assertTrue("Max " + max, max <= first && max > first - 5);
+    }
+
+    @Test
+    public void onlyOneRetryIsPending() {
+        newScheduler(new Random(1));
+        assertFalse(scheduler.isPending());
+        long delay = scheduler.scheduleRetry();
+        assertTrue(scheduler.isPending());
+        assertEquals(-1, scheduler.scheduleRetry());
+        assertEquals(1, scheduler.getFailures());
+        assertEquals(1, timer.tasks.size());
+
+        reachable = true;
+        timer.advanceTo(delay - 1);
+        assertTrue(attempts.isEmpty());
+        timer.advanceTo(delay);
+        assertEquals(1, attempts.size());
+        assertFalse(scheduler.isPending());
+    }
+
+    @Test
+    public void retriesUntilTheDeviceIsReachable() {
+        newScheduler(new Random(1));
+        scheduler.scheduleRetry();
+        // The vario is switched on after 10 minutes
+        timer.advanceTo(600000);
+        reachable = true;
+        timer.advanceTo(600000 + ReconnectScheduler.MAX_DELAY);
+
+        assertEquals(0, scheduler.getFailures());
+        assertFalse(scheduler.isPending());
+        assertTrue(timer.tasks.isEmpty());
+        // 250 ms .. 64 s to reach the maximum, then at most every 2 minutes
+        assertTrue("Attempts " + attempts.size(),
+                attempts.size() >= 14 && attempts.size() <= 30);
+        long last = attempts.get(attempts.size() - 1);
+        assertTrue(last > 600000);
+        for (int i = 1; i < attempts.size(); i++) {
+            long gap = attempts.get(i) - attempts.get(i - 1);
+            assertTrue(gap <= ReconnectScheduler.MAX_DELAY);
+        }
+    }
+
+    @Test
+    public void retryNowReplacesThePendingRetry() {
+        newScheduler(new Random(1));
+        timer.advanceTo(1000);
+        scheduler.scheduleRetry();
+        scheduler.scheduleRetry(); // ignored
+        reachable = true;
+        scheduler.retryNow();
+        assertEquals(1, timer.tasks.size());
+        timer.advanceTo(1000);
+        assertEquals(1, attempts.size());
+        assertEquals(1000, (long) attempts.get(0));
+        // The cancelled retry does not run anymore
+        timer.advanceTo(1000 + ReconnectScheduler.MAX_DELAY);
+        assertEquals(1, attempts.size());
+    }
+
+    @Test
+    public void cancelStopsTheRetries() {
+        newScheduler(new Random(1));
+        scheduler.scheduleRetry();
+        timer.advanceTo(5000);
+        int count = attempts.size();
+        assertTrue(count > 0);
+        scheduler.cancel();
+        assertFalse(scheduler.isPending());
+        timer.advanceTo(1000000);
+        assertEquals(count, attempts.size());
+    }
+
+    @Test
+    public void resetStartsWithTheFirstDelay() {
+        newScheduler(fixed(0.999999));
+        for (int i = 0; i < 5; i++) {
+            scheduler.cancel();
+            scheduler.scheduleRetry();
+        }
+        assertEquals(5, scheduler.getFailures());
+        scheduler.reset();
+        assertEquals(0, scheduler.getFailures());
+        assertFalse(scheduler.isPending());
+        assertTrue(timer.tasks.isEmpty());
+        assertEquals(ReconnectScheduler.FIRST_DELAY - 1,
+                scheduler.scheduleRetry());
+    }
+}
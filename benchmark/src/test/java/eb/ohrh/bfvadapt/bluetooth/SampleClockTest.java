@@ -0,0 +1,162 @@
+package eb.ohrh.bfvadapt.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Feeds the SampleClock with simulated arrival times: The samples are taken
+ * by the BFV with its own (drifting) clock, and delivered by the bluetooth
+ * stack in bursts with random delays.
+ */
+public class SampleClockTest {
+
+    private static final double NANOS = 1000000.0;
+    private static final long START = 5000000000L;
+
+    /** Sample times and arrival times (ns) of the simulated BFV. */
+    private static class Stream {
+        final double period;
+        final int burst;
+        /** Delay of each burst in ms */
+        final double[] delays = new double[50000];
+
+        Stream(double period, int burst, double maxDelay) {
+            this.period = period;
+            this.burst = burst;
+            Random random = new Random(1);
+            for (int i = 0; i < delays.length; i++) {
+                delays[i] = random.nextDouble() * maxDelay;
+            }
+        }
+
+        /** When the sample was taken */
+        long sampleNanos(long sample) {
+            return START + Math.round(sample * period * NANOS);
+        }
+
+        /** When the sample arrives: with the last one of its burst, delayed */
+        long arrivalNanos(long sample) {
+            long last = (sample / burst + 1) * burst - 1;
+            return sampleNanos(last)
+                    + Math.round(delays[(int) (sample / burst)] * NANOS);
+        }
+    }
+
+    /** Statistics of the timestamp errors (timestamp - sample time, ms) */
+    private static class Errors {
+        double sum;
+        double sumSquares;
+        int count;
+
+        void add(double error) {
+            sum += error;
+            sumSquares += error * error;
+            count++;
+        }
+
+        double mean() {
+            return sum / count;
+        }
+
+        double deviation() {
+            double mean = mean();
+            return Math.sqrt(sumSquares / count - mean * mean);
+        }
+    }
+
+    /**
+     * Runs the clock and collects the errors after the first 1000 samples,
+     * while the clock settles.
+     */
+    private static Errors run(SampleClock clock, Stream stream, long samples,
+            Errors arrivals) {
+        Errors errors = new Errors();
+        long last = Long.MIN_VALUE;
+        for (long i = 0; i < samples; i++) {
+            long arrival = stream.arrivalNanos(i);
+            long timestamp = clock.timestamp(arrival, 1);
+            assertTrue("Timestamps must increase", timestamp > last);
+            last = timestamp;
+            if (i >= 1000) {
+                assertTrue("Timestamp later than the arrival",
+                        timestamp <= Math.round(arrival / NANOS));
+                double sampleTime = stream.sampleNanos(i) / NANOS;
+                errors.add(timestamp - sampleTime);
+                if (arrivals != null) {
+                    arrivals.add(arrival / NANOS - sampleTime);
+                }
+            }
+        }
+        return errors;
+    }
+
+    @Test
+    public void removesTheJitterOfTheBursts() {
+        SampleClock clock = new SampleClock(20);
+        Errors arrivals = new Errors();
+        Errors errors = run(clock, new Stream(20, 5, 40), 5000, arrivals);
+        assertEquals(20, clock.getPeriod(), 0.01);
+        // The bursts alone give a deviation of about 30 ms
+        assertTrue("Arrival deviation " + arrivals.deviation(),
+                arrivals.deviation() > 20);
+        assertTrue("Timestamp deviation " + errors.deviation(),
+                errors.deviation() < 3);
+        assertEquals(0, clock.getLostSamples());
+    }
+
+    @Test
+    public void followsTheDriftOfTheBfvClock() {
+        // The BFV clock is 2% slow
+        SampleClock clock = new SampleClock(20);
+        Errors errors = run(clock, new Stream(20.4, 5, 40), 5000, null);
+        assertEquals(20.4, clock.getPeriod(), 0.02);
+        assertTrue("Timestamp deviation " + errors.deviation(),
+                errors.deviation() < 3);
+        // Adding the nominal 20 ms would be 2 s off after 100 s
+        assertTrue("Mean error " + errors.mean(),
+                Math.abs(errors.mean()) < 20);
+    }
+
+    @Test
+    public void limitsThePeriod() {
+        // 10% off is not a BFV, but a broken stream
+        SampleClock clock = new SampleClock(20);
+        run(clock, new Stream(22, 1, 0), 2000, null);
+        assertEquals(21, clock.getPeriod(), 1e-9);
+    }
+
+    @Test
+    public void skipsLostSamples() {
+        SampleClock clock = new SampleClock(20);
+        Stream stream = new Stream(20, 1, 5);
+        long i = 0;
+        for (; i < 3000; i++) {
+            clock.timestamp(stream.arrivalNanos(i), 1);
+        }
+        // 10 samples lost
+        i += 10;
+        long timestamp = 0;
+        for (long end = i + 200; i < end; i++) {
+            timestamp = clock.timestamp(stream.arrivalNanos(i), 1);
+        }
+        // The samples until the loss is detected already pull the line a
+        // little, so it may take over one of the lost samples.
+        assertEquals(10, clock.getLostSamples(), 1);
+        double sampleTime = stream.sampleNanos(i - 1) / NANOS;
+        assertEquals(sampleTime, timestamp, 20);
+    }
+
+    @Test
+    public void staysAccurateAfterRebasing() {
+        // More than two REBASE_INTERVALs
+        SampleClock clock = new SampleClock(20);
+        Errors errors = run(clock, new Stream(20.2, 5, 40), 25000, null);
+        assertEquals(20.2, clock.getPeriod(), 0.01);
+        assertTrue("Timestamp deviation " + errors.deviation(),
+                errors.deviation() < 3);
+    }
+}
@@ -0,0 +1,260 @@
+package eb.ohrh.bfvadapt.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import eb.ohrh.bfvadapt.model.PressureFusion.Health;
+
+/**
+ * Replays simulated recordings of several barometers on the same flight
+ * through the PressureFusion, and compares the fused pressure with the true
+ * one.
+ */
+public class PressureFusionTest {
+
+    private static final int SECONDS = 120;
+    /** Errors are measured after the biases were learned */
+    private static final long SETTLED = 60000;
+
+    /** True pressure of the flight: thermals and glides, up to 30 Pa/s */
+    private static double truth(long time) {
+        double t = time / 1000.0;
+        return 95000 + 300 * Math.sin(2 * Math.PI * t / 60) + 40
+                * Math.sin(2 * Math.PI * t / 9);
+    }
+
+    /** A barometer with its own offset, noise and phase, sampling at 50 Hz */
+    private static class Barometer {
+        final int bias;
+        final double noise;
+        final long phase;
+        final Random random;
+        /** Time from which the pressure is frozen, or -1 */
+        long stuckAfter = -1;
+        /** Time from which no samples are sent, or -1 */
+        long silentFrom = -1;
+        long silentUntil = -1;
+        /** Every spikeEvery-th sample is off by spike Pa, if set */
+        int spikeEvery;
+        int spike;
+        /** Pa per second of a slowly failing sensor, from driftAfter */
+        double drift;
+        long driftAfter;
+
+        int frozen;
+        int count;
+
+        Barometer(int bias, double noise, long phase, int seed) {
+            this.bias = bias;
+            this.noise = noise;
+            this.phase = phase;
+            this.random = new Random(seed);
+        }
+
+        boolean sends(long time) {
+            return silentFrom < 0 || time < silentFrom || time >= silentUntil;
+        }
+
+        int sample(long time) {
+            count++;
+            if (stuckAfter >= 0 && time >= stuckAfter) {
+                return frozen;
+            }
+            double p = truth(time) + bias + random.nextGaussian() * noise;
+            if (spikeEvery > 0 && count % spikeEvery == 0) {
+                p += spike;
+            }
+            if (drift != 0 && time > driftAfter) {
+                p += drift * (time - driftAfter) / 1000.0;
+            }
+            frozen = (int) Math.round(p);
+            return frozen;
+        }
+    }
+
+    /** Statistics of the errors of the fused pressure */
+    private static class Result {
+        double squares;
+        double max;
+        int count;
+        /** Ticks with the gap since the previous tick above MAX_WAIT */
+        int longGaps;
+
+        double rms() {
+            return Math.sqrt(squares / count);
+        }
+    }
+
+    /** Observes the fusion during the replay. */
+    private interface Observer {
+        void tick(PressureFusion fusion, long time);
+    }
+
+    private final PressureFusion fusion = new PressureFusion();
+
+    /**
+     * Replays the samples of the barometers in the order of their times, and
+     * collects the errors of the fused pressure relative to the first
+     * barometer (the reference of the biases).
+     */
+    private Result replay(Barometer[] barometers, Observer observer) {
+        Result result = new Result();
+        long lastTick = -1;
+        for (long ms = 0; ms < SECONDS * 1000; ms++) {
+            for (int d = 0; d < barometers.length; d++) {
+                Barometer b = barometers[d];
+                if ((ms - b.phase) % PressureFusion.PERIOD != 0 || ms < b.phase
+                        || !b.sends(ms)) {
+                    continue;
+                }
+                fusion.offer(d, b.sample(ms), ms);
+                while (fusion.next()) {
+                    long tick = fusion.getTime();
+                    if (lastTick >= 0 && tick - lastTick > 100) {
+                        result.longGaps++;
+                    }
+                    lastTick = tick;
+                    if (observer != null) {
+                        observer.tick(fusion, tick);
+                    }
+                    if (tick < SETTLED) {
+                        continue;
+                    }
+                    double error = fusion.getPressure() - truth(tick)
+                            - barometers[0].bias;
+                    result.squares += error * error;
+                    result.max = Math.max(result.max, Math.abs(error));
+                    result.count++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Result replay(Barometer... barometers) {
+        return replay(barometers, null);
+    }
+
+    @Test
+    public void singleSourceIsPassedThrough() {
+        Result result = replay(new Barometer(0, 3, 0, 1));
+        assertEquals(3, result.rms(), 0.3);
+        assertEquals(1, fusion.getUsed());
+        assertEquals(3, fusion.getNoise(0), 0.5);
+    }
+
+    @Test
+    public void fusedIsMoreAccurateThanOneSource() {
+        double single = replay(new Barometer(0, 3, 0, 1)).rms();
+        fusion.reset();
+        Result fused = replay(new Barometer(0, 3, 0, 1), new Barometer(40, 3,
+                7, 2), new Barometer(-25, 3, 13, 3));
+        // Three equal sources: 1 / sqrt(3) of the noise
+        assertTrue("Fused " + fused.rms() + ", single " + single,
+                fused.rms() < 0.7 * single);
+        assertEquals(3, fusion.getUsed());
+        assertEquals(0, fused.longGaps);
+    }
+
+    @Test
+    public void learnsTheBiases() {
+        replay(new Barometer(0, 3, 0, 1), new Barometer(40, 3, 7, 2),
+                new Barometer(-25, 3, 13, 3));
+        assertEquals(0, fusion.getBias(0), 0);
+        assertEquals(40, fusion.getBias(1), 1);
+        assertEquals(-25, fusion.getBias(2), 1);
+    }
+
+    @Test
+    public void weightsTheQuieterSource() {
+        Result result = replay(new Barometer(0, 8, 0, 1), new Barometer(10, 2,
+                10, 2));
+        // Estimated from the last hundred or so samples
+        assertEquals(8, fusion.getNoise(0), 1.6);
+        assertEquals(2, fusion.getNoise(1), 0.4);
+        // An equal weight would give half of sqrt(8^2 + 2^2) = 4.1
+        assertTrue("Fused " + result.rms(), result.rms() < 2.5);
+    }
+
+    @Test
+    public void rejectsSpikes() {
+        Barometer spiky = new Barometer(40, 3, 7, 2);
+        spiky.spikeEvery = 37;
+        spiky.spike = 500;
+        Result result = replay(new Barometer(0, 3, 0, 1), spiky,
+                new Barometer(-25, 3, 13, 3));
+        // Interpolated over 20 ms, a spike of 500 Pa would show up as 80 Pa
+        assertTrue("Max " + result.max, result.max < 15);
+        assertTrue("RMS " + result.rms(), result.rms() < 2.5);
+        assertEquals(Health.OK, fusion.getHealth(1));
+    }
+
+    @Test
+    public void rejectsSpikesOfOneOfTwoSources() {
+        Barometer spiky = new Barometer(40, 3, 7, 2);
+        spiky.spikeEvery = 37;
+        spiky.spike = -500;
+        Result result = replay(new Barometer(0, 3, 0, 1), spiky);
+        assertTrue("Max " + result.max, result.max < 15);
+    }
+
+    @Test
+    public void stuckSensorFails() {
+        final Barometer stuck = new Barometer(-25, 3, 13, 3);
+        stuck.stuckAfter = 30000;
+        final long[] failedAt = { -1 };
+        Result result = replay(new Barometer[] { new Barometer(0, 3, 0, 1),
+                new Barometer(40, 3, 7, 2), stuck }, new Observer() {
+            @Override
+            public void tick(PressureFusion fusion, long time) {
+                if (failedAt[0] < 0 && fusion.getHealth(2) == Health.FAILED) {
+                    failedAt[0] = time;
+                }
+            }
+        });
+        // 50 equal samples, although the pressure is still within range
+        assertEquals(31000, failedAt[0], 40);
+        assertEquals(Health.FAILED, fusion.getHealth(2));
+        assertEquals(2, fusion.getUsed());
+        assertTrue("RMS " + result.rms(), result.rms() < 3);
+    }
+
+    @Test
+    public void driftingSensorFailsAndTheOthersContinue() {
+        Barometer drifting = new Barometer(40, 3, 7, 2);
+        drifting.drift = 20;
+        drifting.driftAfter = 20000;
+        Result result = replay(new Barometer(0, 3, 0, 1), drifting,
+                new Barometer(-25, 3, 13, 3));
+        assertEquals(Health.FAILED, fusion.getHealth(1));
+        assertEquals(2, fusion.getUsed());
+        assertTrue("Max " + result.max, result.max < 15);
+    }
+
+    @Test
+    public void silentSourceGetsStaleAndRecovers() {
+        Barometer silent = new Barometer(40, 3, 7, 2);
+        silent.silentFrom = 70000;
+        silent.silentUntil = 80000;
+        final Health[] during = new Health[1];
+        Result result = replay(new Barometer[] { new Barometer(0, 3, 0, 1),
+                silent, new Barometer(-25, 3, 13, 3) }, new Observer() {
+            @Override
+            public void tick(PressureFusion fusion, long time) {
+                if (time == 75000) {
+                    during[0] = fusion.getHealth(1);
+                }
+            }
+        });
+        assertEquals(Health.STALE, during[0]);
+        assertEquals(Health.OK, fusion.getHealth(1));
+        assertEquals(3, fusion.getUsed());
+        // Only the ticks waiting for the silent source are late
+        assertTrue("Long gaps " + result.longGaps, result.longGaps <= 1);
+        assertTrue("Max " + result.max, result.max < 15);
+    }
+}
@@ -0,0 +1,125 @@
+package eb.ohrh.bfvadapt.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Feeds the VarioFilter with the pressure of simulated flights at 50 Hz and
+ * compares the filtered altitude and vertical speed with the true ones.
+ */
+public class VarioFilterTest {
+
+    private static final long PERIOD = 20; // ms
+    /** Noise of the altitude measurement in m, as configured by default */
+    private static final double NOISE = Math.sqrt(
+            VarioFilter.DEFAULT_MEASUREMENT_VARIANCE);
+
+    private final VarioFilter filter = new VarioFilter();
+    private final Random random = new Random(1);
+
+    /** Pressure of the altitude in the standard atmosphere */
+    private static double pressure(double altitude) {
+        return VarioFilter.STANDARD_QNH
+                * Math.pow(1.0 - altitude / 44330.0, 5.255);
+    }
+
+    private void update(double altitude, long time) {
+        double measured = altitude + random.nextGaussian() * NOISE;
+        filter.update(pressure(measured), time);
+    }
+
+    @Test
+    public void altitudeIsTheInverseOfThePressure() {
+        assertEquals(0, filter.altitude(VarioFilter.STANDARD_QNH), 1e-9);
+        assertEquals(1000, filter.altitude(pressure(1000)), 1e-6);
+        filter.setQnh(VarioFilter.STANDARD_QNH + 1200);
+        // About 8.3 m per hPa near the ground
+        assertEquals(100, filter.altitude(VarioFilter.STANDARD_QNH), 1);
+    }
+
+    @Test
+    public void followsAConstantClimb() {
+        double climb = 2.5;
+        double sum = 0;
+        double squares = 0;
+        int count = 0;
+        for (int i = 0; i < 3000; i++) {
+            long time = i * PERIOD;
+            double altitude = 500 + climb * time / 1000.0;
+            update(altitude, time);
+            // Let the filter settle for 10 seconds
+            if (i >= 500) {
+                double error = filter.getVario() - climb;
+                sum += error;
+                squares += error * error;
+                count++;
+                assertEquals(altitude, filter.getAltitude(), NOISE);
+            }
+        }
+        // The difference of two raw samples would be off by 20 m/s
+        double rms = Math.sqrt(squares / count);
+        assertTrue("Vario error " + rms, rms < 0.3);
+        assertEquals(0, sum / count, 0.02);
+    }
+
+    @Test
+    public void reactsQuicklyToAThermal() {
+        long start = 5000;
+        long response = -1;
+        double altitude = 800;
+        for (long time = 0; time < 10000; time += PERIOD) {
+            if (time > start) {
+                altitude += 3.0 * PERIOD / 1000.0;
+            }
+            update(altitude, time);
+            if (response < 0 && time > start && filter.getVario() > 1.5) {
+                response = time - start;
+            }
+        }
+        // Half of the climb is shown within a second
+        assertTrue("Response " + response, response > 0 && response < 1000);
+        assertEquals(3.0, filter.getVario(), 0.5);
+    }
+
+    @Test
+    public void estimatesTheAcceleration() {
+        // Pulled up with 0.5 m/s^2 for 8 seconds
+        double altitude = 300;
+        double climb = 0;
+        for (long time = 0; time < 8000; time += PERIOD) {
+            climb += 0.5 * PERIOD / 1000.0;
+            altitude += climb * PERIOD / 1000.0;
+            update(altitude, time);
+        }
+        assertEquals(0.5, filter.getAcceleration(), 0.25);
+        assertEquals(4.0, filter.getVario(), 0.5);
+    }
+
+    @Test
+    public void restartsAfterAGap() {
+        for (int i = 0; i < 500; i++) {
+            update(100 + i * PERIOD / 1000.0, i * PERIOD);
+        }
+        assertEquals(1.0, filter.getVario(), 0.5);
+        // The BFV was disconnected for 5 seconds and comes back lower
+        filter.update(pressure(50), 500 * PERIOD + 5000);
+        assertEquals(50, filter.getAltitude(), 1e-6);
+        assertEquals(0, filter.getVario(), 0);
+        assertEquals(0, filter.getAcceleration(), 0);
+    }
+
+    @Test
+    public void restartsAfterReset() {
+        for (int i = 0; i < 100; i++) {
+            update(100 - i * PERIOD / 1000.0, i * PERIOD);
+        }
+        filter.reset();
+        filter.update(pressure(300), 100 * PERIOD);
+        assertEquals(300, filter.getAltitude(), 1e-6);
+        assertEquals(0, filter.getVario(), 0);
+    }
+}
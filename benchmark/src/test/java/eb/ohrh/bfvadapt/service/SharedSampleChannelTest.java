@@ -0,0 +1,164 @@
+package eb.ohrh.bfvadapt.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes samples into a mapped file, the stand-in for the shared memory, and
+ * reads them by a second mapping of the file, or by its descriptor.
+ */
+public class SharedSampleChannelTest {
+
+    private static final int CAPACITY = 16;
+
+    private File file;
+    private RandomAccessFile writerFile;
+    private SharedSampleChannel channel;
+
+    @Before
+    public void createChannel() throws IOException {
+        file = File.createTempFile("samples", ".shm");
+        writerFile = new RandomAccessFile(file, "rw");
+        MappedByteBuffer mapped = writerFile.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0,
+                SharedSampleChannel.size(CAPACITY));
+        channel = new SharedSampleChannel(mapped, CAPACITY);
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        channel.close();
+        writerFile.close();
+        file.delete();
+    }
+
+    private SharedSampleChannel.Reader mappedReader() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return new SharedSampleChannel.Reader(in.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertSamples(SharedSampleChannel.Reader reader,
+            int first, int last) throws IOException {
+        for (int p = first; p <= last; p++) {
+            assertTrue(reader.poll());
+            assertEquals(p, reader.pressure);
+            assertEquals(p * 20L, reader.time);
+        }
+        assertFalse(reader.poll());
+    }
+
+    @Test
+    public void readsTheSamplesInOrder() throws IOException {
+        SharedSampleChannel.Reader reader = mappedReader();
+        assertFalse(reader.poll());
+        for (int p = 0; p < 5; p++) {
+            channel.publish(p, p * 20L);
+        }
+        assertSamples(reader, 0, 4);
+        for (int p = 5; p < 40; p++) {
+            channel.publish(p, p * 20L);
+            assertSamples(reader, p, p);
+        }
+        assertEquals(0, reader.getMissed());
+    }
+
+    @Test
+    public void overrunSkipsToTheOldestSample() throws IOException {
+        SharedSampleChannel.Reader reader = mappedReader();
+        for (int p = 0; p < CAPACITY + 10; p++) {
+            channel.publish(p, p * 20L);
+        }
+        assertSamples(reader, 10, CAPACITY + 9);
+        assertEquals(10, reader.getMissed());
+    }
+
+    @Test
+    public void readerStartsAfterTheLastPublishedSample() throws IOException {
+        channel.publish(1, 20);
+        channel.publish(2, 40);
+        SharedSampleChannel.Reader reader = mappedReader();
+        assertFalse(reader.poll());
+        channel.publish(3, 60);
+        assertSamples(reader, 3, 3);
+    }
+
+    @Test
+    public void readsByTheDescriptor() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            SharedSampleChannel.Reader reader = new SharedSampleChannel.Reader(
+                    in.getFD());
+            for (int p = 0; p < CAPACITY + 3; p++) {
+                channel.publish(p, p * 20L);
+            }
+            assertSamples(reader, 3, CAPACITY + 2);
+            assertEquals(3, reader.getMissed());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void concurrentReaderSeesNoTornSamples() throws Exception {
+        final int count = 200000;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int p = 0; p < count; p++) {
+                    channel.publish(p, p * 20L);
+                }
+            }
+        };
+        SharedSampleChannel.Reader reader = mappedReader();
+        writer.start();
+        long read = 0;
+        int last = -1;
+        while (true) {
+            boolean writing = writer.isAlive();
+            if (reader.poll()) {
+                assertEquals(reader.pressure * 20L, reader.time);
+                assertTrue(reader.pressure > last);
+                last = reader.pressure;
+                read++;
+            } else if (!writing) {
+                break;
+            }
+        }
+        writer.join();
+        assertEquals(count - 1, last);
+        assertEquals(count, read + reader.getMissed());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnotherLayout() throws IOException {
+        new SharedSampleChannel.Reader(ByteBuffer.allocate(
+                SharedSampleChannel.size(CAPACITY)));
+    }
+
+    @Test
+    public void ignoresSamplesAfterClose() throws IOException {
+        SharedSampleChannel.Reader reader = mappedReader();
+        channel.publish(1, 20);
+        channel.close();
+        channel.publish(2, 40);
+        assertSamples(reader, 1, 1);
+    }
+}
@@ -0,0 +1,105 @@
+package eb.ohrh.bfvadapt.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eb.ohrh.bfvadapt.model.SampleRingBuffer;
+
+/**
+ * Offers samples at 50 Hz to subscription groups with deadbands.
+ */
+public class SubscriptionGroupTest {
+
+    private final SampleRingBuffer.Sample sample = new SampleRingBuffer.Sample();
+    private long time;
+
+    /** Offers the next sample, 20 ms after the previous one. */
+    private void offer(SubscriptionGroup group, int pressure, int vario) {
+        time += 20;
+        sample.time = time;
+        sample.pressure = pressure;
+        sample.vario = vario;
+        group.offer(sample);
+    }
+
+    /** A group with deadbands of 5 Pa and 10 cm/s, without intervals */
+    private static SubscriptionGroup deadbandGroup() {
+        return new SubscriptionGroup(0, SubscriptionGroup.MODE_DECIMATE, 5,
+                0, 10, 0);
+    }
+
+    @Test
+    public void suppressesSmallChanges() {
+        SubscriptionGroup group = deadbandGroup();
+        offer(group, 95000, 0);
+        assertTrue(group.emitted);
+        assertTrue(group.varioEmitted);
+        offer(group, 95004, 9);
+        assertFalse(group.emitted);
+        assertFalse(group.varioEmitted);
+        offer(group, 95005, 10);
+        assertTrue(group.emitted);
+        assertTrue(group.varioEmitted);
+    }
+
+    @Test
+    public void clientJoiningLateGetsTheCurrentValue() {
+        SubscriptionGroup group = deadbandGroup();
+        offer(group, 95000, 0);
+        // On the ground: The values stay within the deadband
+        for (int i = 0; i < 500; i++) {
+            offer(group, 95000 + i % 3, i % 5);
+            assertFalse(group.emitted || group.varioEmitted);
+        }
+        group.memberJoined();
+        offer(group, 95001, 2);
+        assertTrue(group.emitted);
+        assertTrue(group.varioEmitted);
+        assertEquals(95001, group.pressure);
+        assertEquals(2, group.vario);
+        // Then suppressed again
+        offer(group, 95002, 3);
+        assertFalse(group.emitted || group.varioEmitted);
+    }
+
+    @Test
+    public void joiningWaitsForTheNextOutputOfTheRate() {
+        // 5 per second, one output every 10 samples
+        SubscriptionGroup group = new SubscriptionGroup(5,
+                SubscriptionGroup.MODE_DECIMATE, 5, 0, 10, 0);
+        offer(group, 95000, 0);
+        assertTrue(group.emitted);
+        group.memberJoined();
+        for (int i = 0; i < 9; i++) {
+            offer(group, 95000, 0);
+            assertFalse(group.emitted);
+        }
+        offer(group, 95000, 0);
+        assertTrue(group.emitted);
+        assertTrue(group.varioEmitted);
+    }
+
+    @Test
+    public void varioHasItsOwnInterval() {
+        // Pressure at least every second, vario every 200 ms
+        SubscriptionGroup group = new SubscriptionGroup(0,
+                SubscriptionGroup.MODE_DECIMATE, 5, 1000, 10, 200);
+        int pressures = 0;
+        int varios = 0;
+        for (int i = 0; i < 500; i++) {
+            offer(group, 95000, 0);
+            if (group.emitted) {
+                pressures++;
+            }
+            if (group.varioEmitted) {
+                varios++;
+            }
+        }
+        // 10 seconds
+        assertEquals(10, pressures);
+        assertEquals(50, varios);
+    }
+}
@@ -0,0 +1,110 @@
+package eb.ohrh.bfvadapt.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import eb.ohrh.bfvadapt.bluetooth.BFVSettings;
+import eb.ohrh.bfvadapt.bluetooth.ConnectedThread;
+
+/**
+ * Plays the endless synthetic stream in real time, as the default replay does,
+ * and disconnects it.
+ */
+public class ReplaySourceTest {
+
+    /** Counts the samples and the end of the stream */
+    private static class Listener implements ConnectedThread.BFVVarioListener {
+        volatile int samples;
+        volatile boolean lost;
+
+        @Override
+        public void connectionLost() {
+            lost = true;
+        }
+
+        @Override
+        public void updatePressure(int pressure, long currentTime,
+                long arrivalNanos) {
+            samples++;
+        }
+
+        @Override
+        public void updateBattery(double d) {
+        }
+
+        @Override
+        public void updateTemperature(double celsius) {
+        }
+
+        @Override
+        public void updateVersion(int version) {
+        }
+
+        @Override
+        public void updateSettings(BFVSettings settings) {
+        }
+    }
+
+    private static ReplaySource endlessReplay() {
+        return new ReplaySource("Synthetic", new SyntheticRecordStream(-1), 1);
+    }
+
+    @Test
+    public void replayStopsAfterClose() throws Exception {
+        ReplaySource source = endlessReplay();
+        Listener listener = new Listener();
+        ConnectedThread thread = new ConnectedThread(source, listener);
+        thread.start();
+        Thread.sleep(200);
+        assertTrue("Samples " + listener.samples, listener.samples > 0);
+
+        source.close();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        assertTrue(listener.lost);
+        int samples = listener.samples;
+        Thread.sleep(100);
+        assertEquals(samples, listener.samples);
+    }
+
+    @Test
+    public void closeWakesUpAWaitingRead() throws Exception {
+        // Only two records, 20 ms apart, at 1/100 of the speed
+        final ReplaySource source = new ReplaySource("Slow",
+                new SyntheticRecordStream(2), 0.01);
+        final InputStream in = source.getInputStream();
+        byte[] buffer = new byte[32];
+        assertTrue(in.read(buffer, 0, buffer.length) > 0);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    source.close();
+                } catch (Exception e) {
+                }
+            }
+        }.start();
+        long start = System.nanoTime();
+        // The next line would be due after 2 seconds
+        assertEquals(-1, in.read(buffer, 0, buffer.length));
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void interruptStopsTheReplay() throws Exception {
+        Listener listener = new Listener();
+        ConnectedThread thread = new ConnectedThread(endlessReplay(), listener);
+        thread.start();
+        Thread.sleep(100);
+        thread.interrupt();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+    }
+}